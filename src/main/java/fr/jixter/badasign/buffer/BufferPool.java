@@ -0,0 +1,178 @@
+package fr.jixter.badasign.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of fixed-size byte segments, grouped in size classes. Large PDF payloads are held as a chain
+ * of segments rather than one contiguous array, so they never become humongous G1 allocations, and
+ * segments are reused across requests instead of being left to the GC.
+ *
+ * <p>Outstanding segments are tracked by identity, so releasing a segment twice, or one this pool
+ * did not hand out, is logged and ignored instead of corrupting the counts or pooling a segment
+ * that is still in use. With leak detection enabled, every outstanding segment also remembers where
+ * it was acquired, so tests can assert that all segments went back to the pool.
+ */
+public class BufferPool {
+
+  private static final Logger logger = LoggerFactory.getLogger(BufferPool.class);
+  // Acquisition site of the outstanding segments when leak detection is off
+  private static final Throwable UNTRACKED_SITE = new Throwable("Leak detection disabled");
+
+  private final int[] sizeClasses;
+  private final boolean direct;
+  private final boolean leakDetection;
+  private final List<ConcurrentLinkedDeque<ByteBuffer>> freeLists;
+  private final AtomicInteger[] pooledCounts;
+  private final int[] maxPooledPerClass;
+  // ByteBuffer equality is content-based, segments must be tracked by identity
+  private final Map<ByteBuffer, Throwable> outstandingSegments =
+      Collections.synchronizedMap(new IdentityHashMap<>());
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong bytesSaved = new AtomicLong();
+  private final AtomicLong outstanding = new AtomicLong();
+
+  /**
+   * @param sizeClasses segment sizes in bytes, the largest one being the maximum segment size
+   * @param maxPooledBytes upper bound of the memory retained by each size class
+   * @param direct whether segments are allocated off-heap
+   * @param leakDetection whether to record the acquisition site of each outstanding segment
+   */
+  public BufferPool(int[] sizeClasses, long maxPooledBytes, boolean direct, boolean leakDetection) {
+    if (sizeClasses.length == 0) {
+      throw new IllegalArgumentException("At least one size class is required");
+    }
+    this.sizeClasses = Arrays.stream(sizeClasses).sorted().toArray();
+    this.direct = direct;
+    this.leakDetection = leakDetection;
+    this.freeLists = new ArrayList<>(sizeClasses.length);
+    this.pooledCounts = new AtomicInteger[sizeClasses.length];
+    this.maxPooledPerClass = new int[sizeClasses.length];
+    for (int i = 0; i < this.sizeClasses.length; i++) {
+      freeLists.add(new ConcurrentLinkedDeque<>());
+      pooledCounts[i] = new AtomicInteger();
+      maxPooledPerClass[i] = (int) Math.max(1, maxPooledBytes / this.sizeClasses[i]);
+    }
+  }
+
+  /**
+   * Acquires a cleared segment of at least {@code minCapacity} bytes, capped at the largest size
+   * class. The segment must be given back with {@link #release(ByteBuffer)}.
+   */
+  public ByteBuffer acquire(int minCapacity) {
+    int sizeClass = sizeClassFor(minCapacity);
+    requests.incrementAndGet();
+
+    ByteBuffer segment = freeLists.get(sizeClass).pollFirst();
+    if (segment != null) {
+      pooledCounts[sizeClass].decrementAndGet();
+      hits.incrementAndGet();
+      bytesSaved.addAndGet(segment.capacity());
+    } else {
+      int size = sizeClasses[sizeClass];
+      segment = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    outstanding.incrementAndGet();
+    outstandingSegments.put(
+        segment, leakDetection ? new Throwable("Segment acquired here") : UNTRACKED_SITE);
+    return segment;
+  }
+
+  /**
+   * Gives a segment back to the pool; it must not be used afterwards. Segments that are not
+   * outstanding, i.e. already released or not acquired from this pool, are ignored.
+   */
+  public void release(ByteBuffer segment) {
+    if (outstandingSegments.remove(segment) == null) {
+      logger.warn(
+          "Ignoring release of a segment already released or not acquired from this pool",
+          new Throwable());
+      return;
+    }
+    outstanding.decrementAndGet();
+
+    int sizeClass = Arrays.binarySearch(sizeClasses, segment.capacity());
+    if (sizeClass < 0 || segment.isDirect() != direct) {
+      return;
+    }
+    // Retain up to the per-class budget, let the GC take the rest
+    if (pooledCounts[sizeClass].incrementAndGet() <= maxPooledPerClass[sizeClass]) {
+      segment.clear();
+      freeLists.get(sizeClass).offerFirst(segment);
+    } else {
+      pooledCounts[sizeClass].decrementAndGet();
+    }
+  }
+
+  public int getMaxSegmentSize() {
+    return sizeClasses[sizeClasses.length - 1];
+  }
+
+  /** Returns the size class that follows the given segment size, or the largest one */
+  int nextSegmentSize(int currentSize) {
+    for (int size : sizeClasses) {
+      if (size > currentSize) {
+        return size;
+      }
+    }
+    return getMaxSegmentSize();
+  }
+
+  public long getRequests() {
+    return requests.get();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** Bytes served from the pool instead of being allocated */
+  public long getBytesSaved() {
+    return bytesSaved.get();
+  }
+
+  /** Segments acquired and not yet released */
+  public long getOutstanding() {
+    return outstanding.get();
+  }
+
+  public double getHitRatio() {
+    long total = requests.get();
+    return total == 0 ? 0 : (double) hits.get() / total;
+  }
+
+  /**
+   * Acquisition sites of the segments that are still outstanding. Only populated when leak
+   * detection is enabled.
+   */
+  public List<Throwable> getLeaks() {
+    if (!leakDetection) {
+      return List.of();
+    }
+    synchronized (outstandingSegments) {
+      return List.copyOf(outstandingSegments.values());
+    }
+  }
+
+  private int sizeClassFor(int minCapacity) {
+    for (int i = 0; i < sizeClasses.length; i++) {
+      if (sizeClasses[i] >= minCapacity) {
+        return i;
+      }
+    }
+    return sizeClasses.length - 1;
+  }
+}
@@ -0,0 +1,90 @@
+package fr.jixter.badasign.buffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Output stream writing to a channel through a single {@link BufferPool} segment, flushed to the
+ * channel each time it fills. Memory stays at one segment however large the output, unlike a {@link
+ * PooledOutputStream} that holds all of it. Closing flushes the remaining bytes and gives the
+ * segment back to the pool; the channel is left open for its owner.
+ */
+public class PooledChannelOutputStream extends OutputStream {
+
+  private final BufferPool pool;
+  private final WritableByteChannel channel;
+  private ByteBuffer buffer;
+  private long size;
+
+  public PooledChannelOutputStream(BufferPool pool, WritableByteChannel channel) {
+    this.pool = pool;
+    this.channel = channel;
+    this.buffer = pool.acquire(pool.getMaxSegmentSize());
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+    if (!buffer.hasRemaining()) {
+      drain();
+    }
+    buffer.put((byte) b);
+    size++;
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    ensureOpen();
+    while (length > 0) {
+      if (!buffer.hasRemaining()) {
+        drain();
+      }
+      int chunk = Math.min(length, buffer.remaining());
+      buffer.put(bytes, offset, chunk);
+      offset += chunk;
+      length -= chunk;
+      size += chunk;
+    }
+  }
+
+  /** Number of bytes written */
+  public long size() {
+    return size;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    drain();
+  }
+
+  /** Flushes the buffered bytes and releases the segment; later calls do nothing */
+  @Override
+  public void close() throws IOException {
+    if (buffer == null) {
+      return;
+    }
+    try {
+      drain();
+    } finally {
+      pool.release(buffer);
+      buffer = null;
+    }
+  }
+
+  private void drain() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  private void ensureOpen() throws IOException {
+    if (buffer == null) {
+      throw new IOException("Stream already closed");
+    }
+  }
+}
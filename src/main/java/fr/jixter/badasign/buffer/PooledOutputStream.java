@@ -0,0 +1,158 @@
+package fr.jixter.badasign.buffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output stream writing into a chain of {@link BufferPool} segments. Segments grow through the size
+ * classes, so small outputs stay small and large ones never need a contiguous array. Closing the
+ * stream only ends writing: the content stays readable until {@link #release()} hands the segments
+ * back to the pool, which the owner must call once done with it.
+ */
+public class PooledOutputStream extends OutputStream {
+
+  private final BufferPool pool;
+  private final List<ByteBuffer> segments = new ArrayList<>();
+  private ByteBuffer current;
+  private long size;
+  private boolean closed;
+  private boolean released;
+
+  public PooledOutputStream(BufferPool pool) {
+    this.pool = pool;
+  }
+
+  @Override
+  public void write(int b) {
+    ensureWritable();
+    current.put((byte) b);
+    size++;
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) {
+    while (length > 0) {
+      ensureWritable();
+      int chunk = Math.min(length, current.remaining());
+      current.put(bytes, offset, chunk);
+      offset += chunk;
+      length -= chunk;
+      size += chunk;
+    }
+  }
+
+  /** Number of bytes written */
+  public long size() {
+    return size;
+  }
+
+  /** Writes the content to the given stream */
+  public void writeTo(OutputStream out) throws IOException {
+    writeTo(Channels.newChannel(out));
+  }
+
+  /** Writes the content to the given channel, with a single gathering write when supported */
+  public void writeTo(WritableByteChannel channel) throws IOException {
+    ByteBuffer[] views = readableViews();
+    if (channel instanceof GatheringByteChannel gathering) {
+      long remaining = size;
+      while (remaining > 0) {
+        remaining -= gathering.write(views);
+      }
+    } else {
+      for (ByteBuffer view : views) {
+        while (view.hasRemaining()) {
+          channel.write(view);
+        }
+      }
+    }
+  }
+
+  /** Opens a stream over the content; it must be consumed before {@link #release()} */
+  public InputStream newInputStream() {
+    ByteBuffer[] views = readableViews();
+    return new InputStream() {
+      private int index;
+
+      @Override
+      public int read() {
+        ByteBuffer view = nextReadable();
+        return view == null ? -1 : view.get() & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+          return 0;
+        }
+        ByteBuffer view = nextReadable();
+        if (view == null) {
+          return -1;
+        }
+        int chunk = Math.min(length, view.remaining());
+        view.get(bytes, offset, chunk);
+        return chunk;
+      }
+
+      @Override
+      public int available() {
+        ByteBuffer view = nextReadable();
+        return view == null ? 0 : view.remaining();
+      }
+
+      private ByteBuffer nextReadable() {
+        while (index < views.length && !views[index].hasRemaining()) {
+          index++;
+        }
+        return index < views.length ? views[index] : null;
+      }
+    };
+  }
+
+  /** Ends writing; the content stays readable until {@link #release()} */
+  @Override
+  public void close() {
+    closed = true;
+  }
+
+  /** Releases the segments back to the pool; later calls do nothing */
+  public synchronized void release() {
+    closed = true;
+    if (released) {
+      return;
+    }
+    released = true;
+    segments.forEach(pool::release);
+    segments.clear();
+    current = null;
+  }
+
+  private void ensureWritable() {
+    if (closed) {
+      throw new IllegalStateException("Stream already closed");
+    }
+    if (current == null || !current.hasRemaining()) {
+      int nextSize = current == null ? 0 : pool.nextSegmentSize(current.capacity());
+      current = pool.acquire(nextSize);
+      segments.add(current);
+    }
+  }
+
+  private ByteBuffer[] readableViews() {
+    if (released) {
+      throw new IllegalStateException("Stream already released to the pool");
+    }
+    ByteBuffer[] views = new ByteBuffer[segments.size()];
+    for (int i = 0; i < views.length; i++) {
+      views[i] = segments.get(i).duplicate().flip();
+    }
+    return views;
+  }
+}
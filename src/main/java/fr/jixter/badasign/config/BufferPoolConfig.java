@@ -0,0 +1,71 @@
+package fr.jixter.badasign.config;
+
+import fr.jixter.badasign.buffer.BufferPool;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.List;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Pool of byte segments holding PDF bytes on their way to disk or to Yousign. Keep the largest size
+ * class well below half a G1 region (1MB regions on small heaps) so segments are never allocated as
+ * humongous objects.
+ */
+@Configuration
+@Getter
+public class BufferPoolConfig {
+
+  private static final Logger logger = LoggerFactory.getLogger(BufferPoolConfig.class);
+
+  private final List<DataSize> sizeClasses;
+  private final DataSize maxPooledBytes;
+  private final boolean direct;
+  private final boolean leakDetection;
+
+  public BufferPoolConfig(
+      @Value("${buffer.pool.size-classes:16KB,64KB,256KB}") List<DataSize> sizeClasses,
+      @Value("${buffer.pool.max-pooled-bytes:64MB}") DataSize maxPooledBytes,
+      @Value("${buffer.pool.direct:false}") boolean direct,
+      @Value("${buffer.pool.leak-detection:false}") boolean leakDetection) {
+    this.sizeClasses = sizeClasses;
+    this.maxPooledBytes = maxPooledBytes;
+    this.direct = direct;
+    this.leakDetection = leakDetection;
+    logger.info(
+        "BufferPoolConfig: sizeClasses={}, maxPooledBytes={}, direct={}",
+        sizeClasses,
+        maxPooledBytes,
+        direct);
+  }
+
+  @Bean
+  public BufferPool bufferPool(MeterRegistry meterRegistry) {
+    int[] sizes = sizeClasses.stream().mapToInt(size -> Math.toIntExact(size.toBytes())).toArray();
+    BufferPool pool = new BufferPool(sizes, maxPooledBytes.toBytes(), direct, leakDetection);
+
+    FunctionCounter.builder("badasign.buffer.pool.requests", pool, BufferPool::getRequests)
+        .description("Segments requested from the buffer pool")
+        .register(meterRegistry);
+    FunctionCounter.builder("badasign.buffer.pool.hits", pool, BufferPool::getHits)
+        .description("Segment requests served from the pool")
+        .register(meterRegistry);
+    FunctionCounter.builder("badasign.buffer.pool.bytes.saved", pool, BufferPool::getBytesSaved)
+        .description("Bytes reused from the pool instead of allocated")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+    Gauge.builder("badasign.buffer.pool.hit.ratio", pool, BufferPool::getHitRatio)
+        .description("Share of segment requests served from the pool")
+        .register(meterRegistry);
+    Gauge.builder("badasign.buffer.pool.outstanding", pool, BufferPool::getOutstanding)
+        .description("Segments acquired and not yet released")
+        .register(meterRegistry);
+    return pool;
+  }
+}
@@ -0,0 +1,179 @@
+package fr.jixter.badasign.config;
+
+import fr.jixter.badasign.service.PdfFillingService;
+import fr.jixter.badasign.service.PdfTemplateRegistry;
+import fr.jixter.badasign.service.PdfTemplateRegistry.PdfTemplate;
+import fr.jixter.badasign.service.YousignServiceV3;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
+import org.apache.pdfbox.pdmodel.interactive.form.PDField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs synthetic fills against every registered template, plus a dry run of the Yousign request
+ * building, until per-fill latency settles. Exposed as the {@code warmup} health contributor, which
+ * is part of the readiness group: the node reports ready only once warm-up is over.
+ */
+@Component("warmup")
+public class JitWarmup implements HealthIndicator {
+
+  private static final Logger logger = LoggerFactory.getLogger(JitWarmup.class);
+
+  private final PdfFillingService pdfFillingService;
+  private final PdfTemplateRegistry templateRegistry;
+  private final YousignServiceV3 yousignService;
+  private final boolean enabled;
+  private final int roundSize;
+  private final int maxRounds;
+  private final double settleTolerance;
+  private final Duration maxDuration;
+
+  private volatile boolean done;
+  private volatile boolean settled;
+  private volatile int rounds;
+  private volatile long durationMillis;
+
+  public JitWarmup(
+      PdfFillingService pdfFillingService,
+      PdfTemplateRegistry templateRegistry,
+      YousignServiceV3 yousignService,
+      MeterRegistry meterRegistry,
+      @Value("${warmup.enabled:true}") boolean enabled,
+      @Value("${warmup.round-size:20}") int roundSize,
+      @Value("${warmup.max-rounds:30}") int maxRounds,
+      @Value("${warmup.settle-tolerance:0.1}") double settleTolerance,
+      @Value("${warmup.max-duration:60s}") Duration maxDuration) {
+    this.pdfFillingService = pdfFillingService;
+    this.templateRegistry = templateRegistry;
+    this.yousignService = yousignService;
+    this.enabled = enabled;
+    this.roundSize = roundSize;
+    this.maxRounds = maxRounds;
+    this.settleTolerance = settleTolerance;
+    this.maxDuration = maxDuration;
+
+    TimeGauge.builder(
+            "badasign.warmup.duration", this, TimeUnit.MILLISECONDS, w -> w.durationMillis)
+        .description("Time spent warming up before reporting ready")
+        .register(meterRegistry);
+    Gauge.builder("badasign.warmup.rounds", this, w -> w.rounds)
+        .description("Warm-up rounds run before latency settled")
+        .register(meterRegistry);
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void start() {
+    if (!enabled) {
+      logger.info("JIT warm-up disabled");
+      done = true;
+      return;
+    }
+    Thread.ofPlatform().daemon().name("jit-warmup").start(this::run);
+  }
+
+  @Override
+  public Health health() {
+    if (!done) {
+      return Health.outOfService().withDetail("rounds", rounds).build();
+    }
+    return Health.up()
+        .withDetail("rounds", rounds)
+        .withDetail("settled", settled)
+        .withDetail("durationMs", durationMillis)
+        .build();
+  }
+
+  private void run() {
+    long start = System.nanoTime();
+    long deadline = start + maxDuration.toNanos();
+    try {
+      List<String> templateIds = templateRegistry.getTemplateIds();
+      Map<String, Map<String, String>> syntheticData = new HashMap<>();
+      for (String templateId : templateIds) {
+        syntheticData.put(templateId, syntheticData(templateId));
+      }
+      logger.info("=== JIT warm-up started on templates {} ===", templateIds);
+      if (syntheticData.isEmpty()) {
+        yousignService.dryRunRequestBuilding();
+        return;
+      }
+
+      double previousMedian = Double.NaN;
+      while (rounds < maxRounds && System.nanoTime() < deadline) {
+        double median = runRound(syntheticData);
+        rounds++;
+        logger.debug("Warm-up round {}: median fill {} ms", rounds, String.format("%.2f", median));
+
+        if (Math.abs(median - previousMedian) <= previousMedian * settleTolerance) {
+          settled = true;
+          break;
+        }
+        previousMedian = median;
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.warn("JIT warm-up aborted: {}", e.getMessage(), e);
+    } finally {
+      durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      done = true;
+      logger.info(
+          "=== JIT warm-up complete in {} ms after {} rounds (latency settled: {}) ===",
+          durationMillis,
+          rounds,
+          settled);
+    }
+  }
+
+  /** Runs one round of fills over every template and returns the median fill time in ms */
+  private double runRound(Map<String, Map<String, String>> syntheticData) throws IOException {
+    double[] timings = new double[roundSize * syntheticData.size()];
+    int index = 0;
+    for (int i = 0; i < roundSize; i++) {
+      for (Map.Entry<String, Map<String, String>> entry : syntheticData.entrySet()) {
+        long fillStart = System.nanoTime();
+        Path filled = pdfFillingService.fillPdfTemplate(entry.getKey(), entry.getValue());
+        timings[index++] = (System.nanoTime() - fillStart) / 1_000_000.0;
+        pdfFillingService.deleteTempFile(filled);
+      }
+      yousignService.dryRunRequestBuilding();
+    }
+    Arrays.sort(timings);
+    return timings[timings.length / 2];
+  }
+
+  /** Builds a value for every field of the template */
+  private Map<String, String> syntheticData(String templateId) throws IOException {
+    Map<String, String> data = new HashMap<>();
+    Optional<PdfTemplate> template = templateRegistry.find(templateId);
+    if (template.isEmpty()) {
+      return data;
+    }
+    try (PDDocument document = PDDocument.load(template.get().content())) {
+      PDAcroForm acroForm = document.getDocumentCatalog().getAcroForm();
+      if (acroForm != null) {
+        for (PDField field : acroForm.getFieldTree()) {
+          data.put(field.getFullyQualifiedName(), "Warm-up " + field.getPartialName());
+        }
+      }
+    }
+    return data;
+  }
+}
@@ -0,0 +1,80 @@
+package fr.jixter.badasign.config;
+
+import fr.jixter.badasign.util.LocalTimestampAuthority;
+import fr.jixter.badasign.util.PadesSigner;
+import java.io.IOException;
+import java.nio.file.Path;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Local PAdES signing backend, used instead of Yousign when {@code signature.backend} is {@code
+ * local}. Documents are signed with a key from a PKCS#12 keystore. Without one, startup fails
+ * unless {@code signature.local.allow-self-signed} opts into a key generated at startup, whose
+ * signatures no one can trust.
+ */
+@Configuration
+@Getter
+public class LocalSigningConfig {
+
+  private static final Logger logger = LoggerFactory.getLogger(LocalSigningConfig.class);
+
+  private final String backend;
+  private final String keystore;
+  private final String keystorePassword;
+  private final String keyAlias;
+  private final boolean allowSelfSigned;
+  private final boolean timestamp;
+  private final String timestampPolicy;
+  private final String reason;
+  private final int poolSize;
+
+  public LocalSigningConfig(
+      @Value("${signature.backend:yousign}") String backend,
+      @Value("${signature.local.keystore:}") String keystore,
+      @Value("${signature.local.keystore-password:}") String keystorePassword,
+      @Value("${signature.local.key-alias:}") String keyAlias,
+      @Value("${signature.local.allow-self-signed:false}") boolean allowSelfSigned,
+      @Value("${signature.local.timestamp:false}") boolean timestamp,
+      @Value("${signature.local.timestamp-policy:1.3.6.1.4.1.0.1}") String timestampPolicy,
+      @Value("${signature.local.reason:Countersignature}") String reason,
+      @Value("${signature.local.pool-size:0}") int poolSize) {
+    this.backend = backend;
+    this.keystore = keystore;
+    this.keystorePassword = keystorePassword;
+    this.keyAlias = keyAlias;
+    this.allowSelfSigned = allowSelfSigned;
+    this.timestamp = timestamp;
+    this.timestampPolicy = timestampPolicy;
+    this.reason = reason;
+    // Default to one signing thread per core
+    this.poolSize = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+    logger.info(
+        "LocalSigningConfig: backend={}, keystore={}, timestamp={}", backend, keystore, timestamp);
+  }
+
+  /** The signing key, loaded once and shared by every signature */
+  @Bean
+  @ConditionalOnProperty(name = "signature.backend", havingValue = "local")
+  public PadesSigner padesSigner() throws IOException {
+    // B-T adds a signature timestamp from the local authority stub; B-B has none
+    LocalTimestampAuthority timestampAuthority =
+        timestamp ? LocalTimestampAuthority.selfSigned(timestampPolicy) : null;
+    if (keystore.isEmpty()) {
+      if (!allowSelfSigned) {
+        throw new IllegalStateException(
+            "signature.backend=local needs signature.local.keystore, or"
+                + " signature.local.allow-self-signed=true to sign with a throwaway key");
+      }
+      logger.warn("No signing keystore configured, signing with a self-signed key");
+      return PadesSigner.selfSigned("CN=Badasign Local Signing", timestampAuthority);
+    }
+    return PadesSigner.fromKeyStore(
+        Path.of(keystore), keystorePassword.toCharArray(), keyAlias, timestampAuthority);
+  }
+}
@@ -0,0 +1,30 @@
+package fr.jixter.badasign.config;
+
+import java.time.Duration;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * How generated PDFs are written and how long they stay downloadable. Linearized output lets a
+ * browser show the first page before the whole file has arrived.
+ */
+@Configuration
+@Getter
+public class PdfOutputConfig {
+
+  private static final Logger logger = LoggerFactory.getLogger(PdfOutputConfig.class);
+
+  private final boolean linearized;
+  private final Duration retention;
+
+  public PdfOutputConfig(
+      @Value("${pdf.output.linearized:false}") boolean linearized,
+      @Value("${pdf.output.retention:15m}") Duration retention) {
+    this.linearized = linearized;
+    this.retention = retention;
+    logger.info("PdfOutputConfig: linearized={}, retention={}", linearized, retention);
+  }
+}
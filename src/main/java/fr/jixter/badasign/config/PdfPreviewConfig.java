@@ -0,0 +1,48 @@
+package fr.jixter.badasign.config;
+
+import java.time.Duration;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Page previews are rendered on their own small pool, so a burst of previews cannot delay the fills
+ * and merges running on the render pool. Rendered pages are cached in memory.
+ */
+@Configuration
+@Getter
+public class PdfPreviewConfig {
+
+  private static final Logger logger = LoggerFactory.getLogger(PdfPreviewConfig.class);
+
+  private final int poolSize;
+  private final int queueCapacity;
+  private final int defaultDpi;
+  private final int maxDpi;
+  private final DataSize cacheSize;
+  private final Duration timeout;
+
+  public PdfPreviewConfig(
+      @Value("${pdf.preview.pool-size:2}") int poolSize,
+      @Value("${pdf.preview.queue-capacity:16}") int queueCapacity,
+      @Value("${pdf.preview.default-dpi:96}") int defaultDpi,
+      @Value("${pdf.preview.max-dpi:300}") int maxDpi,
+      @Value("${pdf.preview.cache-size:64MB}") DataSize cacheSize,
+      @Value("${pdf.preview.timeout:30s}") Duration timeout) {
+    this.poolSize = poolSize;
+    this.queueCapacity = queueCapacity;
+    this.defaultDpi = defaultDpi;
+    this.maxDpi = maxDpi;
+    this.cacheSize = cacheSize;
+    this.timeout = timeout;
+    logger.info(
+        "PdfPreviewConfig: poolSize={}, queueCapacity={}, maxDpi={}, cacheSize={}",
+        poolSize,
+        queueCapacity,
+        maxDpi,
+        cacheSize);
+  }
+}
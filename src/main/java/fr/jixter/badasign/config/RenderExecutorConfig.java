@@ -0,0 +1,52 @@
+package fr.jixter.badasign.config;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Dedicated pool for CPU-bound PDF work (fill, flatten, save), kept apart from the request threads.
+ * The queue is bounded: once it is full, submissions are rejected so callers can answer 503 instead
+ * of letting latency grow.
+ */
+@Configuration
+@Getter
+public class RenderExecutorConfig {
+
+  private static final Logger logger = LoggerFactory.getLogger(RenderExecutorConfig.class);
+
+  private final int poolSize;
+  private final int queueCapacity;
+  private final int retryAfterSeconds;
+
+  public RenderExecutorConfig(
+      @Value("${pdf.render.pool-size:0}") int poolSize,
+      @Value("${pdf.render.queue-capacity:64}") int queueCapacity,
+      @Value("${pdf.render.retry-after-seconds:2}") int retryAfterSeconds) {
+    // Default to one render thread per core
+    this.poolSize = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+    this.queueCapacity = queueCapacity;
+    this.retryAfterSeconds = retryAfterSeconds;
+    logger.info(
+        "RenderExecutorConfig: poolSize={}, queueCapacity={}", this.poolSize, this.queueCapacity);
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public ThreadPoolExecutor renderExecutor() {
+    return new ThreadPoolExecutor(
+        poolSize,
+        poolSize,
+        0L,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueCapacity),
+        new CustomizableThreadFactory("pdf-render-"),
+        new ThreadPoolExecutor.AbortPolicy());
+  }
+}
@@ -0,0 +1,39 @@
+package fr.jixter.badasign.config;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Resumable uploads of documents to sign: where chunks are spooled, how large a document may be,
+ * and how long an upload nobody resumes is kept.
+ */
+@Configuration
+@Getter
+public class ResumableUploadConfig {
+
+  private static final Logger logger = LoggerFactory.getLogger(ResumableUploadConfig.class);
+
+  private final Path directory;
+  private final DataSize maxSize;
+  private final Duration expireAfter;
+
+  public ResumableUploadConfig(
+      @Value("${signature.uploads.directory:upload-spool}") Path directory,
+      @Value("${signature.uploads.max-size:512MB}") DataSize maxSize,
+      @Value("${signature.uploads.expire-after:24h}") Duration expireAfter) {
+    this.directory = directory;
+    this.maxSize = maxSize;
+    this.expireAfter = expireAfter;
+    logger.info(
+        "ResumableUploadConfig: directory={}, maxSize={}, expireAfter={}",
+        directory,
+        maxSize,
+        expireAfter);
+  }
+}
@@ -0,0 +1,51 @@
+package fr.jixter.badasign.config;
+
+import fr.jixter.badasign.service.SignatureCheckpointStore;
+import java.nio.file.Path;
+import java.time.Duration;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Step-level checkpoints of the Yousign flow: where they are kept, how often a failed flow is
+ * resumed in place, and when an abandoned draft is cleaned up.
+ */
+@Configuration
+@Getter
+public class YousignCheckpointConfig {
+
+  private static final Logger logger = LoggerFactory.getLogger(YousignCheckpointConfig.class);
+
+  private final Path directory;
+  private final int maxAttempts;
+  private final Duration retryBackoff;
+  private final Duration abandonAfter;
+  private final Duration retention;
+
+  public YousignCheckpointConfig(
+      @Value("${yousign.checkpoints.directory:yousign-checkpoints}") Path directory,
+      @Value("${yousign.checkpoints.max-attempts:3}") int maxAttempts,
+      @Value("${yousign.checkpoints.retry-backoff:1s}") Duration retryBackoff,
+      @Value("${yousign.checkpoints.abandon-after:1h}") Duration abandonAfter,
+      @Value("${yousign.checkpoints.retention:24h}") Duration retention) {
+    this.directory = directory;
+    this.maxAttempts = maxAttempts;
+    this.retryBackoff = retryBackoff;
+    this.abandonAfter = abandonAfter;
+    this.retention = retention;
+    logger.info(
+        "YousignCheckpointConfig: directory={}, maxAttempts={}, abandonAfter={}",
+        directory,
+        maxAttempts,
+        abandonAfter);
+  }
+
+  @Bean
+  public SignatureCheckpointStore signatureCheckpointStore() {
+    return new SignatureCheckpointStore(directory);
+  }
+}
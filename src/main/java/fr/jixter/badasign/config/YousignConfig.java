@@ -1,5 +1,6 @@
 package fr.jixter.badasign.config;
 
+import java.time.Duration;
 import lombok.Getter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,15 +12,38 @@ import org.springframework.context.annotation.Configuration;
 public class YousignConfig {
 
   private static final Logger logger = LoggerFactory.getLogger(YousignConfig.class);
+  public static final String CIRCUIT_BREAKER_NAME = "yousign";
 
   private final String baseUrl;
   private final String apiKey;
+  private final Duration connectTimeout;
+  private final Duration readTimeout;
+  private final boolean deferWhenOpen;
+  private final int deferQueueCapacity;
+  private final int uploadMaxConcurrency;
+  private final int uploadMaxConcurrencyPerRequest;
+  private final Duration uploadPendingAcquireTimeout;
 
   public YousignConfig(
       @Value("${yousign.api.base-url}") String baseUrl,
-      @Value("${yousign.api.api-key}") String apiKey) {
+      @Value("${yousign.api.api-key}") String apiKey,
+      @Value("${yousign.api.connect-timeout:5s}") Duration connectTimeout,
+      @Value("${yousign.api.read-timeout:30s}") Duration readTimeout,
+      @Value("${yousign.circuit-breaker.defer-when-open:false}") boolean deferWhenOpen,
+      @Value("${yousign.circuit-breaker.defer-queue-capacity:100}") int deferQueueCapacity,
+      @Value("${yousign.upload.max-concurrency:16}") int uploadMaxConcurrency,
+      @Value("${yousign.upload.max-concurrency-per-request:4}") int uploadMaxConcurrencyPerRequest,
+      @Value("${yousign.upload.pending-acquire-timeout:30s}")
+          Duration uploadPendingAcquireTimeout) {
     this.baseUrl = baseUrl;
     this.apiKey = apiKey;
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    this.deferWhenOpen = deferWhenOpen;
+    this.deferQueueCapacity = deferQueueCapacity;
+    this.uploadMaxConcurrency = uploadMaxConcurrency;
+    this.uploadMaxConcurrencyPerRequest = uploadMaxConcurrencyPerRequest;
+    this.uploadPendingAcquireTimeout = uploadPendingAcquireTimeout;
     logger.info("YousignConfig: apiKey={}", apiKey);
   }
 }
@@ -0,0 +1,34 @@
+package fr.jixter.badasign.config;
+
+import java.nio.file.Path;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Server-side template mode: signature requests are created from the Yousign template mapped to the
+ * current version of a PDF template in {@code mapping-file}, with only the field values and signer
+ * data.
+ */
+@Configuration
+@Getter
+public class YousignTemplateConfig {
+
+  private static final Logger logger = LoggerFactory.getLogger(YousignTemplateConfig.class);
+
+  private final boolean enabled;
+  private final Path mappingFile;
+  private final String signerLabel;
+
+  public YousignTemplateConfig(
+      @Value("${yousign.templates.enabled:false}") boolean enabled,
+      @Value("${yousign.templates.mapping-file:yousign-templates.json}") Path mappingFile,
+      @Value("${yousign.templates.signer-label:Signer}") String signerLabel) {
+    this.enabled = enabled;
+    this.mappingFile = mappingFile;
+    this.signerLabel = signerLabel;
+    logger.info("YousignTemplateConfig: enabled={}, mappingFile={}", enabled, mappingFile);
+  }
+}
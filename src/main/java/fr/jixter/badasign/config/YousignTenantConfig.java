@@ -0,0 +1,61 @@
+package fr.jixter.badasign.config;
+
+import java.time.Duration;
+import java.util.Map;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+/**
+ * Client companies served with their own Yousign account, selected per request with the {@code
+ * X-Tenant-Id} header, and how Yousign flows share capacity between them. Requests without the
+ * header use the {@code default} tenant, configured under {@code yousign.api}.
+ */
+@Configuration
+@Getter
+public class YousignTenantConfig {
+
+  private static final Logger logger = LoggerFactory.getLogger(YousignTenantConfig.class);
+
+  private final Map<String, TenantSettings> tenants;
+  private final int defaultRateLimit;
+  private final Duration rateLimitPeriod;
+  private final int maxConcurrentFlows;
+  private final double batchMaxShare;
+
+  /**
+   * One tenant's account. Unset values fall back to {@code yousign.api} and {@code
+   * yousign.upload.max-concurrency}.
+   *
+   * @param rateLimit Yousign calls allowed per {@code yousign.rate-limit-period}, 0 for no limit
+   * @param weight share of the flow capacity the tenant gets when tenants compete for it
+   */
+  public record TenantSettings(
+      String baseUrl, String apiKey, Integer maxConnections, Integer rateLimit, Integer weight) {}
+
+  public YousignTenantConfig(
+      Environment environment,
+      @Value("${yousign.api.rate-limit:0}") int defaultRateLimit,
+      @Value("${yousign.rate-limit-period:1s}") Duration rateLimitPeriod,
+      @Value("${yousign.scheduler.max-concurrent-flows:32}") int maxConcurrentFlows,
+      @Value("${yousign.scheduler.batch-max-share:0.5}") double batchMaxShare) {
+    this.tenants =
+        Binder.get(environment)
+            .bind("yousign.tenants", Bindable.mapOf(String.class, TenantSettings.class))
+            .orElse(Map.of());
+    this.defaultRateLimit = defaultRateLimit;
+    this.rateLimitPeriod = rateLimitPeriod;
+    this.maxConcurrentFlows = maxConcurrentFlows;
+    this.batchMaxShare = batchMaxShare;
+    logger.info(
+        "YousignTenantConfig: tenants={}, maxConcurrentFlows={}, batchMaxShare={}",
+        tenants.keySet(),
+        maxConcurrentFlows,
+        batchMaxShare);
+  }
+}
@@ -1,11 +1,23 @@
 package fr.jixter.badasign.controller;
 
+import fr.jixter.badasign.config.PdfOutputConfig;
+import fr.jixter.badasign.config.PdfPreviewConfig;
+import fr.jixter.badasign.service.PdfDocumentStore;
 import fr.jixter.badasign.service.PdfFillingService;
+import fr.jixter.badasign.service.PdfPreviewService;
+import fr.jixter.badasign.service.PdfPreviewService.PreviewListener;
+import fr.jixter.badasign.service.PdfTemplateRegistry;
+import fr.jixter.badasign.service.RenderQueueFullException;
 import java.io.IOException;
+import java.net.URI;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Future;
 import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,6 +28,7 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 @RestController
 @RequestMapping("/api/pdf")
@@ -25,15 +38,27 @@ public class PdfController {
   private static final Logger logger = LoggerFactory.getLogger(PdfController.class);
 
   private final PdfFillingService pdfFillingService;
+  private final PdfDocumentStore documentStore;
+  private final PdfOutputConfig outputConfig;
+  private final PdfPreviewService previewService;
+  private final PdfPreviewConfig previewConfig;
 
   @PostMapping(value = "/fill", produces = MediaType.APPLICATION_PDF_VALUE)
-  public ResponseEntity<Resource> fillPdfTemplate(@RequestBody Map<String, String> formData) {
+  public ResponseEntity<Resource> fillPdfTemplate(
+      @RequestBody Map<String, String> formData,
+      @RequestParam(value = "templateId", defaultValue = PdfTemplateRegistry.DEFAULT_TEMPLATE_ID)
+          String templateId,
+      @RequestParam(value = "linearized", required = false) Boolean linearized,
+      @RequestParam(value = "flatten", defaultValue = "true") boolean flatten) {
 
-    logger.info("Received request to fill PDF template with {} fields", formData.size());
+    logger.info(
+        "Received request to fill PDF template '{}' with {} fields", templateId, formData.size());
 
     try {
-      // Fill the PDF template
-      Path filledPdfPath = pdfFillingService.fillPdfTemplate(formData);
+      // Fill the PDF template, keeping the form fields if it is to be amended later
+      Path filledPdfPath =
+          pdfFillingService.fillPdfTemplate(templateId, formData, linearized(linearized), flatten);
+      String documentId = documentStore.register(filledPdfPath);
 
       // Create resource from the filled PDF
       Resource resource = new FileSystemResource(filledPdfPath);
@@ -48,17 +73,193 @@ public class PdfController {
       HttpHeaders headers = new HttpHeaders();
       headers.add(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"");
       headers.add(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_PDF_VALUE);
+      headers.add(HttpHeaders.CONTENT_LOCATION, documentLocation(documentId));
 
       logger.info("PDF template filled successfully, returning file: {}", filename);
 
       return ResponseEntity.ok().headers(headers).body(resource);
 
+    } catch (RenderQueueFullException e) {
+      logger.warn("Rejected request, PDF render queue is full");
+      return serviceUnavailable(e);
+    } catch (IllegalArgumentException e) {
+      logger.warn("Invalid request: {}", e.getMessage());
+      return ResponseEntity.badRequest().build();
     } catch (IOException e) {
       logger.error("Error filling PDF template: {}", e.getMessage(), e);
       return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
     }
   }
 
+  @PostMapping(value = "/merge", produces = MediaType.APPLICATION_PDF_VALUE)
+  public ResponseEntity<Resource> mergePdfTemplates(
+      @RequestBody List<Map<String, String>> records,
+      @RequestParam(value = "templateId", defaultValue = PdfTemplateRegistry.DEFAULT_TEMPLATE_ID)
+          String templateId,
+      @RequestParam(value = "linearized", required = false) Boolean linearized) {
+
+    logger.info("Received request to merge {} filled PDF templates", records.size());
+
+    if (records.isEmpty()) {
+      logger.warn("Empty record list received");
+      return ResponseEntity.badRequest().build();
+    }
+
+    try {
+      Path mergedPdfPath =
+          pdfFillingService.fillAndMergePdfTemplates(templateId, records, linearized(linearized));
+      String documentId = documentStore.register(mergedPdfPath);
+      Resource resource = new FileSystemResource(mergedPdfPath);
+
+      String filename =
+          "merged-contracts-"
+              + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"))
+              + ".pdf";
+
+      HttpHeaders headers = new HttpHeaders();
+      headers.add(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"");
+      headers.add(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_PDF_VALUE);
+      headers.add(HttpHeaders.CONTENT_LOCATION, documentLocation(documentId));
+
+      logger.info("PDF templates merged successfully, returning file: {}", filename);
+
+      return ResponseEntity.ok().headers(headers).body(resource);
+
+    } catch (RenderQueueFullException e) {
+      logger.warn("Rejected request, PDF render queue is full");
+      return serviceUnavailable(e);
+    } catch (IllegalArgumentException e) {
+      logger.warn("Invalid request: {}", e.getMessage());
+      return ResponseEntity.badRequest().build();
+    } catch (IOException e) {
+      logger.error("Error merging PDF templates: {}", e.getMessage(), e);
+      return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+    }
+  }
+
+  /**
+   * Renders pages of the filled template as PNG images, streamed as server-sent events: one {@code
+   * page} event per page, {@code {"page": 1, "image": "data:image/png;base64,..."}}. Rendering of
+   * the pages left is cancelled when the client goes away.
+   */
+  @PostMapping(value = "/preview", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public ResponseEntity<SseEmitter> previewPdfTemplate(
+      @RequestBody Map<String, String> formData,
+      @RequestParam(value = "templateId", defaultValue = PdfTemplateRegistry.DEFAULT_TEMPLATE_ID)
+          String templateId,
+      @RequestParam(value = "pages", defaultValue = "1") List<Integer> pages,
+      @RequestParam(value = "dpi", required = false) Integer dpi) {
+
+    logger.info("Received request to preview pages {} of PDF template '{}'", pages, templateId);
+
+    SseEmitter emitter = new SseEmitter(previewConfig.getTimeout().toMillis());
+    try {
+      Future<?> rendering =
+          previewService.renderPreview(
+              templateId,
+              formData,
+              pages,
+              dpi != null ? dpi : previewConfig.getDefaultDpi(),
+              new PreviewListener() {
+                @Override
+                public void onPage(int page, byte[] png) throws IOException {
+                  String image = "data:image/png;base64," + Base64.getEncoder().encodeToString(png);
+                  emitter.send(
+                      SseEmitter.event()
+                          .name("page")
+                          .data(Map.of("page", page, "image", image), MediaType.APPLICATION_JSON));
+                }
+
+                @Override
+                public void onComplete() {
+                  emitter.complete();
+                }
+
+                @Override
+                public void onError(Exception e) {
+                  logger.warn(
+                      "Preview of PDF template '{}' stopped: {}", templateId, e.getMessage());
+                  emitter.completeWithError(e);
+                }
+              });
+
+      // A client disconnect surfaces as an error or a timeout of the async request
+      emitter.onCompletion(() -> rendering.cancel(true));
+      emitter.onTimeout(() -> rendering.cancel(true));
+      emitter.onError(e -> rendering.cancel(true));
+      return ResponseEntity.ok(emitter);
+
+    } catch (RenderQueueFullException e) {
+      logger.warn("Rejected preview request, PDF preview queue is full");
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+          .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+          .build();
+    } catch (IllegalArgumentException e) {
+      logger.warn("Invalid request: {}", e.getMessage());
+      return ResponseEntity.badRequest().build();
+    } catch (IOException e) {
+      logger.error("Error previewing PDF template: {}", e.getMessage(), e);
+      return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+    }
+  }
+
+  /**
+   * Serves a PDF generated by {@code /fill} or {@code /merge} for display in the browser. Range
+   * requests are answered with 206 partial content, so a viewer can show the first page of a
+   * linearized PDF before the rest has arrived.
+   */
+  @GetMapping(value = "/documents/{documentId}", produces = MediaType.APPLICATION_PDF_VALUE)
+  public ResponseEntity<Resource> getDocument(@PathVariable String documentId) {
+    return documentStore
+        .find(documentId)
+        .<ResponseEntity<Resource>>map(
+            path ->
+                ResponseEntity.ok()
+                    .header(
+                        HttpHeaders.CONTENT_DISPOSITION,
+                        "inline; filename=\"" + path.getFileName() + "\"")
+                    .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                    .contentType(MediaType.APPLICATION_PDF)
+                    .eTag(documentId)
+                    .body(new FileSystemResource(path)))
+        .orElseGet(() -> ResponseEntity.notFound().build());
+  }
+
+  /**
+   * Amends a stored document, filled with {@code flatten=false}, with the changed field values. The
+   * change is appended as an incremental update, so existing signatures stay valid. The amended
+   * document is stored under a new id, given by the {@code Location} header.
+   */
+  @PostMapping(value = "/documents/{documentId}/amend", consumes = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<Resource> amendDocument(
+      @PathVariable String documentId, @RequestBody Map<String, String> delta) {
+
+    logger.info("Received request to amend document {} with {} fields", documentId, delta.size());
+
+    Optional<Path> document = documentStore.find(documentId);
+    if (document.isEmpty()) {
+      return ResponseEntity.notFound().build();
+    }
+
+    try {
+      Path amendedPdfPath = pdfFillingService.amendPdf(document.get(), delta);
+      String amendedId = documentStore.register(amendedPdfPath);
+
+      logger.info("Document {} amended as {}", documentId, amendedId);
+      return ResponseEntity.created(URI.create(documentLocation(amendedId))).build();
+
+    } catch (RenderQueueFullException e) {
+      logger.warn("Rejected request, PDF render queue is full");
+      return serviceUnavailable(e);
+    } catch (IllegalArgumentException e) {
+      logger.warn("Invalid request: {}", e.getMessage());
+      return ResponseEntity.badRequest().build();
+    } catch (IOException e) {
+      logger.error("Error amending document {}: {}", documentId, e.getMessage(), e);
+      return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+    }
+  }
+
   @GetMapping("/sample-data")
   public ResponseEntity<Map<String, String>> getSampleFormData() {
     logger.info("Received request for sample form data");
@@ -79,4 +280,18 @@ public class PdfController {
     logger.info("Returning sample form data with {} fields", sampleData.size());
     return ResponseEntity.ok(sampleData);
   }
+
+  private boolean linearized(Boolean requested) {
+    return requested != null ? requested : outputConfig.isLinearized();
+  }
+
+  private static String documentLocation(String documentId) {
+    return "/api/pdf/documents/" + documentId;
+  }
+
+  private static ResponseEntity<Resource> serviceUnavailable(RenderQueueFullException e) {
+    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+        .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+        .build();
+  }
 }
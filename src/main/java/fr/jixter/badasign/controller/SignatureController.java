@@ -1,13 +1,38 @@
 package fr.jixter.badasign.controller;
 
-import fr.jixter.badasign.service.YousignServiceV3;
+import fr.jixter.badasign.config.YousignTemplateConfig;
+import fr.jixter.badasign.service.ChecksumMismatchException;
+import fr.jixter.badasign.service.DeferredSignatureQueue;
+import fr.jixter.badasign.service.IdempotencyKeyConflictException;
+import fr.jixter.badasign.service.PdfFillingService;
+import fr.jixter.badasign.service.PdfTemplateRegistry;
+import fr.jixter.badasign.service.RenderQueueFullException;
+import fr.jixter.badasign.service.ResumableUploadService;
+import fr.jixter.badasign.service.ResumableUploadService.UploadStatus;
+import fr.jixter.badasign.service.SignatureDocument;
+import fr.jixter.badasign.service.SignatureService;
+import fr.jixter.badasign.service.TemplateNotProvisionedException;
+import fr.jixter.badasign.service.UploadConflictException;
+import fr.jixter.badasign.service.YousignUnavailableException;
+import jakarta.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -21,17 +46,31 @@ public class SignatureController {
 
   private static final Logger logger = LoggerFactory.getLogger(SignatureController.class);
   public static final String DOCUMENT_ID = "documentId";
+  public static final String DOCUMENT_IDS = "documentIds";
   public static final String STATUS = "status";
   public static final String ERROR = "error";
+  public static final String TUS_RESUMABLE = "Tus-Resumable";
+  public static final String UPLOAD_LENGTH = "Upload-Length";
+  public static final String UPLOAD_OFFSET = "Upload-Offset";
+  public static final String UPLOAD_CHECKSUM = "Upload-Checksum";
+  public static final String OFFSET_OCTET_STREAM = "application/offset+octet-stream";
+  public static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+  private static final int CHECKSUM_MISMATCH = 460;
+  private static final Pattern IDEMPOTENCY_KEY_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,64}");
 
-  private final YousignServiceV3 yousignService;
+  private final SignatureService signatureService;
+  private final DeferredSignatureQueue deferredSignatureQueue;
+  private final YousignTemplateConfig templateConfig;
+  private final PdfFillingService pdfFillingService;
+  private final ResumableUploadService resumableUploadService;
 
   @PostMapping(value = "/upload", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
-  public ResponseEntity<Map<String, String>> uploadDocument(
+  public ResponseEntity<Map<String, Object>> uploadDocument(
       @RequestParam("file") MultipartFile file,
       @RequestParam("fileName") String fileName,
       @RequestParam("email") String email,
-      @RequestParam("name") String name) {
+      @RequestParam("name") String name,
+      @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
 
     logger.info("Received request to upload document: {}", fileName);
 
@@ -39,15 +78,23 @@ public class SignatureController {
       logger.warn("Empty file received");
       return ResponseEntity.badRequest().body(Map.of(ERROR, "File is empty"));
     }
+    if (!isValidIdempotencyKey(idempotencyKey)) {
+      return invalidIdempotencyKey();
+    }
+    String flowId = flowId(idempotencyKey);
 
+    Path tempFile = null;
     try {
       // Save uploaded file temporarily
-      Path tempFile = Files.createTempFile("upload-", ".pdf");
+      tempFile = Files.createTempFile("upload-", ".pdf");
       file.transferTo(tempFile.toFile());
 
-      // Upload to Yousign
+      // Hand over to the signature backend
       String documentId =
-          yousignService.processDocumentForSignature(tempFile, fileName, email, name);
+          signatureService
+              .processDocumentsForSignature(
+                  flowId, List.of(new SignatureDocument(tempFile, fileName)), email, name)
+              .get(0);
 
       // Clean up temporary file
       Files.deleteIfExists(tempFile);
@@ -56,10 +103,397 @@ public class SignatureController {
       return ResponseEntity.ok(
           Map.of(DOCUMENT_ID, documentId, "fileName", fileName, STATUS, "uploaded"));
 
+    } catch (YousignUnavailableException e) {
+      return yousignUnavailable(
+          flowId, List.of(new SignatureDocument(tempFile, fileName)), email, name, e);
+    } catch (IdempotencyKeyConflictException e) {
+      deleteTempFiles(List.of(new SignatureDocument(tempFile, fileName)));
+      return idempotencyKeyReused(e);
+    } catch (IllegalArgumentException e) {
+      deleteTempFiles(List.of(new SignatureDocument(tempFile, fileName)));
+      return ResponseEntity.badRequest().body(Map.of(ERROR, e.getMessage()));
     } catch (IOException e) {
       logger.error("Error uploading document: {}", e.getMessage(), e);
       return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
           .body(Map.of(ERROR, "Failed to upload document: " + e.getMessage()));
     }
   }
+
+  @PostMapping(value = "/upload-multiple", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+  public ResponseEntity<Map<String, Object>> uploadDocuments(
+      @RequestParam("files") List<MultipartFile> files,
+      @RequestParam("email") String email,
+      @RequestParam("name") String name,
+      @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+
+    logger.info("Received request to upload {} documents into one signature request", files.size());
+
+    if (files.isEmpty() || files.stream().anyMatch(MultipartFile::isEmpty)) {
+      logger.warn("Empty file received");
+      return ResponseEntity.badRequest().body(Map.of(ERROR, "File is empty"));
+    }
+    if (!isValidIdempotencyKey(idempotencyKey)) {
+      return invalidIdempotencyKey();
+    }
+    String flowId = flowId(idempotencyKey);
+
+    List<SignatureDocument> documents = new ArrayList<>(files.size());
+    try {
+      // Save uploaded files temporarily
+      for (MultipartFile file : files) {
+        Path tempFile = Files.createTempFile("upload-", ".pdf");
+        documents.add(new SignatureDocument(tempFile, fileName(file, documents.size())));
+        file.transferTo(tempFile.toFile());
+      }
+
+      // Hand over to the signature backend, documents are processed concurrently
+      List<String> documentIds =
+          signatureService.processDocumentsForSignature(flowId, documents, email, name);
+      deleteTempFiles(documents);
+
+      logger.info("{} documents uploaded successfully with IDs: {}", documents.size(), documentIds);
+      Map<String, Object> body = new LinkedHashMap<>();
+      if (documentIds.size() == 1) {
+        // One signature request for all the documents, as Yousign creates
+        body.put(DOCUMENT_ID, documentIds.get(0));
+      }
+      body.put(DOCUMENT_IDS, documentIds);
+      body.put("fileName", fileNames(documents));
+      body.put(STATUS, "uploaded");
+      return ResponseEntity.ok(body);
+
+    } catch (YousignUnavailableException e) {
+      return yousignUnavailable(flowId, documents, email, name, e);
+    } catch (IdempotencyKeyConflictException e) {
+      deleteTempFiles(documents);
+      return idempotencyKeyReused(e);
+    } catch (IllegalArgumentException e) {
+      deleteTempFiles(documents);
+      return ResponseEntity.badRequest().body(Map.of(ERROR, e.getMessage()));
+    } catch (IOException e) {
+      logger.error("Error uploading documents: {}", e.getMessage(), e);
+      deleteTempFiles(documents);
+      return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+          .body(Map.of(ERROR, "Failed to upload documents: " + e.getMessage()));
+    }
+  }
+
+  /**
+   * Starts a signature from a PDF template and its field values. With Yousign server-side templates
+   * enabled, only the values are sent; otherwise, or while the template has no Yousign template
+   * provisioned for its current version, the template is filled here and uploaded.
+   */
+  @PostMapping(value = "/template", consumes = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<Map<String, Object>> signFromTemplate(
+      @RequestBody Map<String, String> data,
+      @RequestParam(defaultValue = PdfTemplateRegistry.DEFAULT_TEMPLATE_ID) String templateId,
+      @RequestParam("email") String email,
+      @RequestParam("name") String name,
+      @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+
+    logger.info("Received request to sign template '{}' with {} fields", templateId, data.size());
+
+    if (!isValidIdempotencyKey(idempotencyKey)) {
+      return invalidIdempotencyKey();
+    }
+
+    String flowId = flowId(idempotencyKey);
+    if (templateConfig.isEnabled()) {
+      try {
+        String documentId =
+            signatureService.processTemplateForSignature(flowId, templateId, data, email, name);
+        logger.info("Signature request {} created from Yousign template", documentId);
+        return ResponseEntity.ok(
+            Map.of(DOCUMENT_ID, documentId, "templateId", templateId, STATUS, "uploaded"));
+      } catch (TemplateNotProvisionedException e) {
+        logger.warn("{}; filling and uploading template '{}' instead", e.getMessage(), templateId);
+      } catch (YousignUnavailableException e) {
+        logger.warn("Yousign unavailable, failing fast: {}", e.getMessage());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+            .body(Map.of(ERROR, "Signature service temporarily unavailable: " + e.getMessage()));
+      } catch (IdempotencyKeyConflictException e) {
+        return idempotencyKeyReused(e);
+      } catch (IllegalArgumentException e) {
+        return ResponseEntity.badRequest().body(Map.of(ERROR, e.getMessage()));
+      } catch (IOException e) {
+        logger.error("Error signing template: {}", e.getMessage(), e);
+        return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+            .body(Map.of(ERROR, "Failed to sign template: " + e.getMessage()));
+      }
+    }
+
+    List<SignatureDocument> documents = new ArrayList<>(1);
+    try {
+      Path filledPdf = pdfFillingService.fillPdfTemplate(templateId, data);
+      documents.add(new SignatureDocument(filledPdf, templateId + ".pdf"));
+
+      String documentId =
+          signatureService.processDocumentsForSignature(flowId, documents, email, name).get(0);
+      deleteTempFiles(documents);
+
+      logger.info("Filled template uploaded successfully with ID: {}", documentId);
+      return ResponseEntity.ok(
+          Map.of(DOCUMENT_ID, documentId, "templateId", templateId, STATUS, "uploaded"));
+
+    } catch (YousignUnavailableException e) {
+      return yousignUnavailable(flowId, documents, email, name, e);
+    } catch (RenderQueueFullException e) {
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+          .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+          .body(Map.of(ERROR, e.getMessage()));
+    } catch (IdempotencyKeyConflictException e) {
+      deleteTempFiles(documents);
+      return idempotencyKeyReused(e);
+    } catch (IllegalArgumentException e) {
+      deleteTempFiles(documents);
+      return ResponseEntity.badRequest().body(Map.of(ERROR, e.getMessage()));
+    } catch (IOException e) {
+      logger.error("Error signing template: {}", e.getMessage(), e);
+      deleteTempFiles(documents);
+      return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+          .body(Map.of(ERROR, "Failed to sign template: " + e.getMessage()));
+    }
+  }
+
+  /**
+   * Starts a resumable upload of {@code Upload-Length} bytes. Chunks are then sent with {@code
+   * PATCH} to the returned location, and the upload is signed with {@code POST .../sign}.
+   */
+  @PostMapping("/uploads")
+  public ResponseEntity<Map<String, Object>> createUpload(
+      @RequestHeader(UPLOAD_LENGTH) long uploadLength, @RequestParam("fileName") String fileName) {
+    try {
+      UploadStatus upload = resumableUploadService.create(fileName, uploadLength);
+      return ResponseEntity.created(URI.create("/api/signature/uploads/" + upload.id()))
+          .header(TUS_RESUMABLE, "1.0.0")
+          .body(Map.of("uploadId", upload.id(), "fileName", fileName));
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().body(Map.of(ERROR, e.getMessage()));
+    } catch (IOException e) {
+      logger.error("Error starting upload: {}", e.getMessage(), e);
+      return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+          .body(Map.of(ERROR, "Failed to start upload: " + e.getMessage()));
+    }
+  }
+
+  /** Returns the offset to resume an upload from */
+  @RequestMapping(value = "/uploads/{uploadId}", method = RequestMethod.HEAD)
+  public ResponseEntity<Void> uploadOffset(@PathVariable String uploadId) {
+    return resumableUploadService
+        .find(uploadId)
+        .map(
+            upload ->
+                ResponseEntity.ok()
+                    .header(TUS_RESUMABLE, "1.0.0")
+                    .header(UPLOAD_OFFSET, String.valueOf(upload.offset()))
+                    .header(UPLOAD_LENGTH, String.valueOf(upload.length()))
+                    .cacheControl(CacheControl.noStore())
+                    .<Void>build())
+        .orElseGet(() -> ResponseEntity.notFound().build());
+  }
+
+  /**
+   * Writes the request body at {@code Upload-Offset}, which must be the current offset. With an
+   * {@code Upload-Checksum} header ({@code sha256 <base64>}, also md5 or sha1), a chunk that does
+   * not match is discarded and answered with 460.
+   */
+  @PatchMapping(value = "/uploads/{uploadId}", consumes = OFFSET_OCTET_STREAM)
+  public ResponseEntity<Map<String, Object>> appendUpload(
+      @PathVariable String uploadId,
+      @RequestHeader(UPLOAD_OFFSET) long uploadOffset,
+      @RequestHeader(value = UPLOAD_CHECKSUM, required = false) String checksum,
+      HttpServletRequest request) {
+    try {
+      long offset =
+          resumableUploadService.append(uploadId, uploadOffset, request.getInputStream(), checksum);
+      return ResponseEntity.noContent()
+          .header(TUS_RESUMABLE, "1.0.0")
+          .header(UPLOAD_OFFSET, String.valueOf(offset))
+          .build();
+    } catch (NoSuchElementException e) {
+      return ResponseEntity.notFound().build();
+    } catch (UploadConflictException e) {
+      return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of(ERROR, e.getMessage()));
+    } catch (ChecksumMismatchException e) {
+      return ResponseEntity.status(CHECKSUM_MISMATCH).body(Map.of(ERROR, e.getMessage()));
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().body(Map.of(ERROR, e.getMessage()));
+    } catch (IOException e) {
+      logger.warn("Upload {} chunk failed: {}", uploadId, e.getMessage());
+      return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+          .body(Map.of(ERROR, "Failed to write chunk: " + e.getMessage()));
+    }
+  }
+
+  /** Abandons an upload */
+  @DeleteMapping("/uploads/{uploadId}")
+  public ResponseEntity<Map<String, Object>> deleteUpload(@PathVariable String uploadId) {
+    try {
+      resumableUploadService.delete(uploadId);
+      return ResponseEntity.noContent().header(TUS_RESUMABLE, "1.0.0").build();
+    } catch (NoSuchElementException e) {
+      return ResponseEntity.notFound().build();
+    } catch (UploadConflictException e) {
+      return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of(ERROR, e.getMessage()));
+    } catch (IOException e) {
+      logger.error("Error deleting upload {}: {}", uploadId, e.getMessage(), e);
+      return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+          .body(Map.of(ERROR, "Failed to delete upload: " + e.getMessage()));
+    }
+  }
+
+  /**
+   * Sends a complete upload for signature, straight from the spool file. The upload is kept until
+   * the signature request is created or deferred, so a failed attempt can be retried on it.
+   */
+  @PostMapping("/uploads/{uploadId}/sign")
+  public ResponseEntity<Map<String, Object>> signUpload(
+      @PathVariable String uploadId,
+      @RequestParam("email") String email,
+      @RequestParam("name") String name) {
+    SignatureDocument document;
+    try {
+      document = resumableUploadService.complete(uploadId);
+    } catch (NoSuchElementException e) {
+      return ResponseEntity.notFound().build();
+    } catch (UploadConflictException e) {
+      return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of(ERROR, e.getMessage()));
+    }
+
+    List<SignatureDocument> documents = List.of(document);
+    boolean handedOver = false;
+    try {
+      // The upload id doubles as the flow id, so a retry or a deferred replay resumes this flow
+      String documentId =
+          signatureService.processDocumentsForSignature(uploadId, documents, email, name).get(0);
+      handedOver = true;
+      resumableUploadService.finish(uploadId);
+      deleteTempFiles(documents);
+
+      logger.info("Resumable upload {} sent for signature with ID: {}", uploadId, documentId);
+      return ResponseEntity.ok(
+          Map.of(DOCUMENT_ID, documentId, "fileName", document.fileName(), STATUS, "uploaded"));
+
+    } catch (YousignUnavailableException e) {
+      Optional<ResponseEntity<Map<String, Object>>> deferred =
+          defer(uploadId, documents, email, name);
+      if (deferred.isPresent()) {
+        handedOver = true;
+        resumableUploadService.finish(uploadId);
+        return deferred.get();
+      }
+      logger.warn("Yousign unavailable, upload {} kept for a retry: {}", uploadId, e.getMessage());
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+          .body(Map.of(ERROR, "Signature service temporarily unavailable: " + e.getMessage()));
+    } catch (IdempotencyKeyConflictException e) {
+      return idempotencyKeyReused(e);
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().body(Map.of(ERROR, e.getMessage()));
+    } catch (IOException e) {
+      logger.error("Error signing upload {}: {}", uploadId, e.getMessage(), e);
+      return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+          .body(Map.of(ERROR, "Failed to upload document: " + e.getMessage()));
+    } finally {
+      if (!handedOver) {
+        // Keep the spool file, the client retries the signature without uploading again
+        resumableUploadService.release(uploadId);
+      }
+    }
+  }
+
+  /**
+   * Defers the upload when enabled, otherwise fails fast while Yousign is unavailable. The deferred
+   * flow keeps its id, so its replay resumes whatever steps it completed before the circuit opened.
+   */
+  private ResponseEntity<Map<String, Object>> yousignUnavailable(
+      String flowId,
+      List<SignatureDocument> documents,
+      String email,
+      String name,
+      YousignUnavailableException e) {
+    Optional<ResponseEntity<Map<String, Object>>> deferred = defer(flowId, documents, email, name);
+    if (deferred.isPresent()) {
+      return deferred.get();
+    }
+
+    logger.warn("Yousign unavailable, failing fast: {}", e.getMessage());
+    deleteTempFiles(documents);
+    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+        .body(Map.of(ERROR, "Signature service temporarily unavailable: " + e.getMessage()));
+  }
+
+  /**
+   * Defers a flow when the queue is enabled and has room. The queue then takes ownership of the
+   * temporary files.
+   *
+   * @return the 202 response, or empty when the flow was not deferred
+   */
+  private Optional<ResponseEntity<Map<String, Object>>> defer(
+      String flowId, List<SignatureDocument> documents, String email, String name) {
+    if (!deferredSignatureQueue.isEnabled()) {
+      return Optional.empty();
+    }
+    return deferredSignatureQueue
+        .defer(flowId, documents, email, name)
+        .map(
+            deferralId ->
+                ResponseEntity.status(HttpStatus.ACCEPTED)
+                    .body(
+                        Map.of(
+                            "deferralId",
+                            deferralId,
+                            "fileName",
+                            fileNames(documents),
+                            STATUS,
+                            "deferred")));
+  }
+
+  private static boolean isValidIdempotencyKey(String idempotencyKey) {
+    return idempotencyKey == null || IDEMPOTENCY_KEY_PATTERN.matcher(idempotencyKey).matches();
+  }
+
+  /**
+   * The client's idempotency key as the flow id, so that a retried request resumes the flow the
+   * first one started instead of creating a second signature request
+   */
+  private static String flowId(String idempotencyKey) {
+    return idempotencyKey != null ? idempotencyKey : UUID.randomUUID().toString();
+  }
+
+  private static ResponseEntity<Map<String, Object>> invalidIdempotencyKey() {
+    return ResponseEntity.badRequest()
+        .body(
+            Map.of(
+                ERROR,
+                IDEMPOTENCY_KEY + " must be 1 to 64 letters, digits, '-' or '_' characters"));
+  }
+
+  private static ResponseEntity<Map<String, Object>> idempotencyKeyReused(
+      IdempotencyKeyConflictException e) {
+    logger.warn("Idempotency key reused for a different request: {}", e.getMessage());
+    return ResponseEntity.unprocessableEntity()
+        .body(
+            Map.of(
+                ERROR, IDEMPOTENCY_KEY + " already used for another request: " + e.getMessage()));
+  }
+
+  /** The client's file name, or a positional one when the part has none */
+  private static String fileName(MultipartFile file, int index) {
+    String fileName = file.getOriginalFilename();
+    return fileName != null && !fileName.isBlank() ? fileName : "document-" + (index + 1) + ".pdf";
+  }
+
+  private static String fileNames(List<SignatureDocument> documents) {
+    return documents.stream().map(SignatureDocument::fileName).collect(Collectors.joining(", "));
+  }
+
+  private static void deleteTempFiles(List<SignatureDocument> documents) {
+    for (SignatureDocument document : documents) {
+      try {
+        Files.deleteIfExists(document.pdfPath());
+      } catch (IOException e) {
+        logger.warn("Failed to delete temporary file: {}", document.pdfPath(), e);
+      }
+    }
+  }
 }
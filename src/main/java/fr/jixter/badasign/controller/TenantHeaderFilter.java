@@ -0,0 +1,78 @@
+package fr.jixter.badasign.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.jixter.badasign.service.TenantContext;
+import fr.jixter.badasign.service.TenantContext.Lane;
+import fr.jixter.badasign.service.YousignTenants;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Map;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Sets the {@link TenantContext} of signature requests from the {@code X-Tenant-Id} header (the
+ * default tenant when absent) and the {@code X-Priority} header ({@code interactive}, the default,
+ * or {@code batch}). Requests for an unknown tenant or priority are rejected with 400.
+ */
+@Component
+public class TenantHeaderFilter extends OncePerRequestFilter {
+
+  public static final String TENANT_HEADER = "X-Tenant-Id";
+  public static final String PRIORITY_HEADER = "X-Priority";
+
+  private final YousignTenants tenants;
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  public TenantHeaderFilter(YousignTenants tenants) {
+    this.tenants = tenants;
+  }
+
+  @Override
+  protected boolean shouldNotFilter(HttpServletRequest request) {
+    return !request.getRequestURI().startsWith("/api/signature/");
+  }
+
+  @Override
+  protected void doFilterInternal(
+      HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+      throws ServletException, IOException {
+    String tenantId = request.getHeader(TENANT_HEADER);
+    if (tenantId == null || tenantId.isBlank()) {
+      tenantId = TenantContext.DEFAULT_TENANT;
+    }
+    if (!tenants.exists(tenantId)) {
+      reject(response, "Unknown tenant: " + tenantId);
+      return;
+    }
+
+    String priority = request.getHeader(PRIORITY_HEADER);
+    Lane lane;
+    if (priority == null || priority.isBlank() || priority.equalsIgnoreCase("interactive")) {
+      lane = Lane.INTERACTIVE;
+    } else if (priority.equalsIgnoreCase("batch")) {
+      lane = Lane.BATCH;
+    } else {
+      reject(response, "Unknown priority: " + priority);
+      return;
+    }
+
+    TenantContext.set(new TenantContext(tenantId, lane));
+    try {
+      filterChain.doFilter(request, response);
+    } finally {
+      TenantContext.clear();
+    }
+  }
+
+  private void reject(HttpServletResponse response, String error) throws IOException {
+    response.setStatus(HttpStatus.BAD_REQUEST.value());
+    response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+    objectMapper.writeValue(response.getOutputStream(), Map.of(SignatureController.ERROR, error));
+  }
+}
@@ -0,0 +1,10 @@
+package fr.jixter.badasign.diagnostics;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("fr.jixter.badasign.FieldFill")
+@Label("Field Fill")
+@Description("AcroForm fields set from the request data")
+public class FieldFillEvent extends PdfStageEvent {}
@@ -0,0 +1,10 @@
+package fr.jixter.badasign.diagnostics;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("fr.jixter.badasign.Flatten")
+@Label("Flatten")
+@Description("AcroForm flattened into page content")
+public class FlattenEvent extends PdfStageEvent {}
@@ -0,0 +1,64 @@
+package fr.jixter.badasign.diagnostics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.boot.actuate.endpoint.web.annotation.WebEndpoint;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+/** Actuator endpoint ({@code /actuator/jfr}) returning a dump of the current JFR recording */
+@Component
+@WebEndpoint(id = "jfr")
+@RequiredArgsConstructor
+public class JfrEndpoint {
+
+  private static final Logger logger = LoggerFactory.getLogger(JfrEndpoint.class);
+
+  private final JfrRecordingService jfrRecordingService;
+
+  @ReadOperation(produces = "application/octet-stream")
+  public WebEndpointResponse<Resource> dump() {
+    try {
+      Path file = jfrRecordingService.dump();
+      if (file == null) {
+        return new WebEndpointResponse<>(WebEndpointResponse.STATUS_NOT_FOUND);
+      }
+      return new WebEndpointResponse<>(new TemporaryFileResource(file.toFile()));
+    } catch (IOException e) {
+      logger.error("Error dumping JFR recording: {}", e.getMessage(), e);
+      return new WebEndpointResponse<>(WebEndpointResponse.STATUS_INTERNAL_SERVER_ERROR);
+    }
+  }
+
+  /** Resource that deletes its file once it has been streamed to the client */
+  private static final class TemporaryFileResource extends FileSystemResource {
+
+    private TemporaryFileResource(File file) {
+      super(file);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      return new FileInputStream(getFile()) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            Files.deleteIfExists(getFile().toPath());
+          }
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package fr.jixter.badasign.diagnostics;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.Configuration;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Keeps an always-on, low-overhead JFR recording and dumps it on demand, so that GC pauses,
+ * allocation and lock contention can be correlated with the badasign stage events.
+ *
+ * <p>Events that capture the process environment (environment variables, system properties, JVM
+ * arguments) are turned off whatever the settings, since they carry the Yousign API keys.
+ */
+@Service
+public class JfrRecordingService {
+
+  private static final Logger logger = LoggerFactory.getLogger(JfrRecordingService.class);
+  private static final String RECORDING_NAME = "badasign-continuous";
+  private static final List<String> SECRET_BEARING_EVENTS =
+      List.of("jdk.InitialEnvironmentVariable", "jdk.InitialSystemProperty", "jdk.JVMInformation");
+
+  private final boolean enabled;
+  private final String settings;
+  private final Duration maxAge;
+  private final DataSize maxSize;
+
+  private Recording recording;
+
+  public JfrRecordingService(
+      @Value("${diagnostics.jfr.enabled:true}") boolean enabled,
+      @Value("${diagnostics.jfr.settings:default}") String settings,
+      @Value("${diagnostics.jfr.max-age:15m}") Duration maxAge,
+      @Value("${diagnostics.jfr.max-size:100MB}") DataSize maxSize) {
+    this.enabled = enabled;
+    this.settings = settings;
+    this.maxAge = maxAge;
+    this.maxSize = maxSize;
+  }
+
+  @PostConstruct
+  void start() {
+    if (!enabled || !FlightRecorder.isAvailable()) {
+      logger.info("Continuous JFR recording disabled");
+      return;
+    }
+
+    try {
+      Map<String, String> eventSettings =
+          new HashMap<>(Configuration.getConfiguration(settings).getSettings());
+      SECRET_BEARING_EVENTS.forEach(event -> eventSettings.put(event + "#enabled", "false"));
+      recording = new Recording(eventSettings);
+      recording.setName(RECORDING_NAME);
+      recording.setToDisk(true);
+      recording.setMaxAge(maxAge);
+      recording.setMaxSize(maxSize.toBytes());
+      recording.start();
+      logger.info(
+          "Continuous JFR recording started (settings={}, maxAge={}, maxSize={})",
+          settings,
+          maxAge,
+          maxSize);
+    } catch (IOException | ParseException e) {
+      logger.warn("Could not start continuous JFR recording: {}", e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Dumps the continuous recording into a temporary file. Recordings started with {@code
+   * -XX:StartFlightRecording} are left out, as their settings may record the environment; dump
+   * those with {@code jcmd}.
+   *
+   * @return Path to the recording file, or null if no recording data is available
+   */
+  public Path dump() throws IOException {
+    if (recording == null) {
+      logger.warn("No JFR recording data available to dump");
+      return null;
+    }
+    Path file = Files.createTempFile("badasign-", ".jfr");
+    // The size of a running recording only counts completed chunks, dumping flushes the current one
+    recording.dump(file);
+    if (Files.size(file) == 0) {
+      logger.warn("No JFR recording data available to dump");
+      Files.delete(file);
+      return null;
+    }
+    logger.info("JFR recording dumped to {} ({} bytes)", file, Files.size(file));
+    return file;
+  }
+
+  @PreDestroy
+  void stop() {
+    if (recording != null) {
+      recording.close();
+    }
+  }
+}
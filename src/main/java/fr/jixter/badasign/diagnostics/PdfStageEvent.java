@@ -0,0 +1,23 @@
+package fr.jixter.badasign.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/** Base JFR event for a stage of the PDF filling pipeline */
+@Category({"Badasign", "PDF"})
+@StackTrace(false)
+public abstract class PdfStageEvent extends Event {
+
+  @Label("Template Id")
+  public String templateId;
+
+  @Label("Field Count")
+  public int fieldCount;
+
+  @Label("Bytes")
+  @DataAmount
+  public long bytes;
+}
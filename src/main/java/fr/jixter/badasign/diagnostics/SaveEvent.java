@@ -0,0 +1,10 @@
+package fr.jixter.badasign.diagnostics;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("fr.jixter.badasign.Save")
+@Label("Save")
+@Description("Filled document written to its output file")
+public class SaveEvent extends PdfStageEvent {}
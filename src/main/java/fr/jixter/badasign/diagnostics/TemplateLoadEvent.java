@@ -0,0 +1,10 @@
+package fr.jixter.badasign.diagnostics;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("fr.jixter.badasign.TemplateLoad")
+@Label("Template Load")
+@Description("Template parsed from the template store")
+public class TemplateLoadEvent extends PdfStageEvent {}
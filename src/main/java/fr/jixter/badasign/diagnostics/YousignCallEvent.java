@@ -0,0 +1,35 @@
+package fr.jixter.badasign.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("fr.jixter.badasign.YousignCall")
+@Label("Yousign Call")
+@Description("HTTP call to the Yousign API")
+@Category({"Badasign", "Yousign"})
+@StackTrace(false)
+public class YousignCallEvent extends Event {
+
+  @Label("Operation")
+  public String operation;
+
+  @Label("Tenant")
+  public String tenantId;
+
+  @Label("HTTP Status")
+  @Description("HTTP status code, or 0 when no response was received")
+  public int httpStatus;
+
+  @Label("Request Bytes")
+  @DataAmount
+  public long requestBytes;
+
+  @Label("Response Bytes")
+  @DataAmount
+  public long responseBytes;
+}
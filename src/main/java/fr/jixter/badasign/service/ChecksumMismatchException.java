@@ -0,0 +1,9 @@
+package fr.jixter.badasign.service;
+
+/** Thrown when an upload chunk does not match the checksum sent with it; the chunk is discarded */
+public class ChecksumMismatchException extends RuntimeException {
+
+  public ChecksumMismatchException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,189 @@
+package fr.jixter.badasign.service;
+
+import fr.jixter.badasign.config.YousignConfig;
+import fr.jixter.badasign.service.YousignTenants.YousignTenant;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Holds signature flows that could not start while their tenant's Yousign circuit was open and
+ * replays them once that circuit lets calls through again. Only used when {@code
+ * yousign.circuit-breaker.defer-when-open} is enabled. Each tenant has its own queue, within a
+ * shared {@code defer-queue-capacity}, drained on its own circuit's transitions. Replays run for
+ * the tenant that deferred the flow, in the batch lane, under the flow's own id: a flow the circuit
+ * interrupted midway resumes from its checkpoint instead of creating a second signature request.
+ */
+@Service
+public class DeferredSignatureQueue {
+
+  private static final Logger logger = LoggerFactory.getLogger(DeferredSignatureQueue.class);
+
+  private final YousignServiceV3 yousignService;
+  private final YousignConfig yousignConfig;
+  // Deferred flows by tenant id, and their total across tenants
+  private final Map<String, Deque<DeferredSignature>> queues = new ConcurrentHashMap<>();
+  private final AtomicInteger size = new AtomicInteger();
+  // Flows queued or being replayed
+  private final Set<String> pending = ConcurrentHashMap.newKeySet();
+  private final Set<String> draining = ConcurrentHashMap.newKeySet();
+
+  public DeferredSignatureQueue(
+      YousignServiceV3 yousignService,
+      YousignConfig yousignConfig,
+      YousignTenants tenants,
+      MeterRegistry meterRegistry) {
+    this.yousignService = yousignService;
+    this.yousignConfig = yousignConfig;
+
+    Gauge.builder("badasign.yousign.deferred", size, AtomicInteger::get)
+        .description("Signature flows waiting for the Yousign circuit to close")
+        .register(meterRegistry);
+
+    for (YousignTenant tenant : tenants.getAll()) {
+      tenant
+          .circuitBreaker()
+          .getEventPublisher()
+          .onStateTransition(
+              event -> {
+                CircuitBreaker.State toState = event.getStateTransition().getToState();
+                if (toState == CircuitBreaker.State.CLOSED
+                    || toState == CircuitBreaker.State.HALF_OPEN) {
+                  drain(tenant.id());
+                }
+              });
+    }
+  }
+
+  public boolean isEnabled() {
+    return yousignConfig.isDeferWhenOpen();
+  }
+
+  /**
+   * Defers a signature flow until Yousign is reachable again. The queue takes ownership of the PDF
+   * files and deletes them once the flow has been replayed. A flow deferred again, e.g. by a client
+   * retry, is only replayed once.
+   *
+   * @return the deferral id, which is the flow id, or empty if the queue is full
+   */
+  public Optional<String> defer(
+      String flowId, List<SignatureDocument> documents, String signerEmail, String signerName) {
+    if (!pending.add(flowId)) {
+      logger.info("Signature flow {} is already deferred", flowId);
+      deleteQuietly(documents);
+      return Optional.of(flowId);
+    }
+    DeferredSignature deferred =
+        new DeferredSignature(
+            flowId, TenantContext.current().tenantId(), documents, signerEmail, signerName);
+    if (size.incrementAndGet() > yousignConfig.getDeferQueueCapacity()) {
+      size.decrementAndGet();
+      pending.remove(flowId);
+      logger.warn("Deferred signature queue is full, rejecting {} document(s)", documents.size());
+      return Optional.empty();
+    }
+    queue(deferred.tenantId()).offerLast(deferred);
+    logger.info(
+        "Deferred signature {} of tenant '{}' with {} document(s) ({} waiting)",
+        deferred.id(),
+        deferred.tenantId(),
+        documents.size(),
+        size.get());
+    return Optional.of(deferred.id());
+  }
+
+  public int size() {
+    return size.get();
+  }
+
+  /** Whether a flow is waiting to be replayed, or being replayed */
+  public boolean contains(String flowId) {
+    return pending.contains(flowId);
+  }
+
+  private Deque<DeferredSignature> queue(String tenantId) {
+    return queues.computeIfAbsent(tenantId, id -> new LinkedBlockingDeque<>());
+  }
+
+  private void drain(String tenantId) {
+    if (queue(tenantId).isEmpty() || !draining.add(tenantId)) {
+      return;
+    }
+    Thread.ofVirtual()
+        .name("yousign-deferred-drain-" + tenantId)
+        .start(
+            () -> {
+              try {
+                drainQueue(queue(tenantId));
+              } finally {
+                draining.remove(tenantId);
+              }
+            });
+  }
+
+  private void drainQueue(Deque<DeferredSignature> queue) {
+    DeferredSignature deferred;
+    while ((deferred = queue.pollFirst()) != null) {
+      size.decrementAndGet();
+      try {
+        DeferredSignature replayed = deferred;
+        List<String> requestIds =
+            new TenantContext(deferred.tenantId(), TenantContext.Lane.BATCH)
+                .run(
+                    () ->
+                        yousignService.processDocumentsForSignature(
+                            replayed.id(),
+                            replayed.documents(),
+                            replayed.signerEmail(),
+                            replayed.signerName()));
+        logger.info("Deferred signature {} processed as request {}", deferred.id(), requestIds);
+        pending.remove(deferred.id());
+        deleteQuietly(deferred.documents());
+      } catch (YousignUnavailableException e) {
+        // Circuit opened again, keep the flow at the head of the queue for the next transition:
+        // the replay resumes from the steps this attempt completed
+        queue.offerFirst(deferred);
+        size.incrementAndGet();
+        logger.info(
+            "Yousign still unavailable for tenant '{}', {} deferred signatures waiting",
+            deferred.tenantId(),
+            queue.size());
+        return;
+      } catch (IOException | RuntimeException e) {
+        logger.error("Deferred signature {} failed: {}", deferred.id(), e.getMessage(), e);
+        pending.remove(deferred.id());
+        deleteQuietly(deferred.documents());
+      }
+    }
+  }
+
+  private static void deleteQuietly(List<SignatureDocument> documents) {
+    for (SignatureDocument document : documents) {
+      try {
+        Files.deleteIfExists(document.pdfPath());
+      } catch (IOException e) {
+        logger.warn("Failed to delete deferred file: {}", document.pdfPath(), e);
+      }
+    }
+  }
+
+  private record DeferredSignature(
+      String id,
+      String tenantId,
+      List<SignatureDocument> documents,
+      String signerEmail,
+      String signerName) {}
+}
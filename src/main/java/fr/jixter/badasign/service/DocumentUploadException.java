@@ -0,0 +1,40 @@
+package fr.jixter.badasign.service;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+import lombok.Getter;
+
+/** Thrown when one or more documents of a signature request could not be uploaded */
+@Getter
+public class DocumentUploadException extends IOException {
+
+  private final String signatureRequestId;
+  private final List<UploadFailure> failures;
+
+  /**
+   * One document that failed to upload, identified by its position in the request since file names
+   * need not be unique
+   */
+  public record UploadFailure(int index, String fileName, Throwable error) {}
+
+  public DocumentUploadException(String signatureRequestId, List<UploadFailure> failures) {
+    super(
+        failures.size()
+            + " document(s) failed to upload: "
+            + failures.stream()
+                .map(
+                    failure ->
+                        "#"
+                            + (failure.index() + 1)
+                            + " "
+                            + failure.fileName()
+                            + " ("
+                            + failure.error().getMessage()
+                            + ")")
+                .collect(Collectors.joining(", ")));
+    this.signatureRequestId = signatureRequestId;
+    this.failures = List.copyOf(failures);
+    failures.forEach(failure -> addSuppressed(failure.error()));
+  }
+}
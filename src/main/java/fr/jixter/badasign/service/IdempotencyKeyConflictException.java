@@ -0,0 +1,12 @@
+package fr.jixter.badasign.service;
+
+/**
+ * Thrown when a signature flow id, i.e. a client's idempotency key, is reused for another flow:
+ * another tenant's, or one with other documents
+ */
+public class IdempotencyKeyConflictException extends RuntimeException {
+
+  public IdempotencyKeyConflictException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,181 @@
+package fr.jixter.badasign.service;
+
+import fr.jixter.badasign.config.LocalSigningConfig;
+import fr.jixter.badasign.util.PadesSigner;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Signs documents locally with PAdES instead of sending them to Yousign, for internal
+ * countersignatures that need no third party. Enabled with {@code signature.backend: local}.
+ *
+ * <p>Signing is CPU-bound (hashing, RSA): documents are signed in parallel on a dedicated pool of
+ * {@code signature.local.pool-size} threads, all sharing the key loaded at startup. Each signed
+ * document is kept in the {@link PdfDocumentStore} and downloadable at {@code
+ * /api/pdf/documents/{id}}.
+ */
+@Service
+@Primary
+@ConditionalOnProperty(name = "signature.backend", havingValue = "local")
+public class LocalPadesSigningService implements SignatureService {
+
+  private static final Logger logger = LoggerFactory.getLogger(LocalPadesSigningService.class);
+
+  private final PadesSigner signer;
+  private final PdfFillingService pdfFillingService;
+  private final PdfDocumentStore documentStore;
+  private final LocalSigningConfig signingConfig;
+  private final ExecutorService signingExecutor;
+  private final Timer signTimer;
+
+  public LocalPadesSigningService(
+      PadesSigner signer,
+      PdfFillingService pdfFillingService,
+      PdfDocumentStore documentStore,
+      LocalSigningConfig signingConfig,
+      MeterRegistry meterRegistry) {
+    this.signer = signer;
+    this.pdfFillingService = pdfFillingService;
+    this.documentStore = documentStore;
+    this.signingConfig = signingConfig;
+    this.signingExecutor =
+        Executors.newFixedThreadPool(
+            signingConfig.getPoolSize(), new CustomizableThreadFactory("pades-sign-"));
+    this.signTimer =
+        Timer.builder("badasign.signature.local")
+            .description("Time to sign one document locally")
+            .tag("level", signer.isTimestamped() ? "B-T" : "B-B")
+            .register(meterRegistry);
+    logger.info(
+        "Local PAdES signing as '{}' on {} threads",
+        signer.getCertificate().getSubjectX500Principal().getName(),
+        signingConfig.getPoolSize());
+  }
+
+  /**
+   * Signs one document
+   *
+   * @return the id of the signed document
+   */
+  @Override
+  public String processDocumentForSignature(
+      Path pdfPath, String fileName, String signerEmail, String signerName) throws IOException {
+    return processDocumentsForSignature(
+            List.of(new SignatureDocument(pdfPath, fileName)), signerEmail, signerName)
+        .get(0);
+  }
+
+  /**
+   * Signs the documents in parallel, all or nothing: when one fails, the others signed so far are
+   * discarded
+   *
+   * @return the ids of the signed documents, in the order of the given documents
+   */
+  @Override
+  public List<String> processDocumentsForSignature(
+      List<SignatureDocument> documents, String signerEmail, String signerName) throws IOException {
+    List<Future<Path>> signatures = new ArrayList<>(documents.size());
+    for (SignatureDocument document : documents) {
+      signatures.add(signingExecutor.submit(() -> sign(document)));
+    }
+
+    List<Path> signedFiles = new ArrayList<>(documents.size());
+    Throwable failure = null;
+    for (Future<Path> signature : signatures) {
+      try {
+        signedFiles.add(signature.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        signatures.forEach(pending -> pending.cancel(true));
+        deleteQuietly(signedFiles);
+        throw new IOException("Interrupted while signing", e);
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause();
+          // Documents not picked up yet are not worth signing any more
+          signatures.forEach(pending -> pending.cancel(false));
+        }
+      } catch (CancellationException e) {
+        // Cancelled after the first failure
+      }
+    }
+    if (failure != null) {
+      deleteQuietly(signedFiles);
+      if (failure instanceof IOException ioException) {
+        throw ioException;
+      }
+      throw new IOException("Local signing failed: " + failure.getMessage(), failure);
+    }
+
+    // Only registered once every document is signed, so a failure leaves nothing downloadable
+    List<String> documentIds = signedFiles.stream().map(documentStore::register).toList();
+    logger.info(
+        "Signed {} document(s) locally for {} <{}>", documents.size(), signerName, signerEmail);
+    return documentIds;
+  }
+
+  /** Fills the template and signs the filled document */
+  @Override
+  public String processTemplateForSignature(
+      String templateId, Map<String, String> data, String signerEmail, String signerName)
+      throws IOException {
+    Path filledPdf = pdfFillingService.fillPdfTemplate(templateId, data);
+    try {
+      return processDocumentForSignature(filledPdf, templateId + ".pdf", signerEmail, signerName);
+    } finally {
+      pdfFillingService.deleteTempFile(filledPdf);
+    }
+  }
+
+  /** Signs a document into a temporary file, deleted again if signing fails */
+  private Path sign(SignatureDocument document) throws IOException {
+    Path signed = Files.createTempFile("signed-", ".pdf");
+    Timer.Sample sample = Timer.start();
+    try {
+      signer.sign(document.pdfPath(), signed, signingConfig.getReason());
+      if (Thread.currentThread().isInterrupted()) {
+        // Cancelled while signing: nobody collects the signed file
+        throw new InterruptedIOException("Signing cancelled");
+      }
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(signed);
+      throw e;
+    }
+    sample.stop(signTimer);
+    return signed;
+  }
+
+  private static void deleteQuietly(List<Path> files) {
+    for (Path file : files) {
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        logger.warn("Failed to delete signed document {}: {}", file, e.getMessage());
+      }
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    signingExecutor.shutdownNow();
+  }
+}
@@ -0,0 +1,80 @@
+package fr.jixter.badasign.service;
+
+import fr.jixter.badasign.config.PdfOutputConfig;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Keeps generated PDFs downloadable by id for {@code pdf.output.retention}, so a browser viewer can
+ * fetch them again with byte-range requests. The store owns the files and deletes them once they
+ * expire.
+ */
+@Service
+public class PdfDocumentStore {
+
+  private static final Logger logger = LoggerFactory.getLogger(PdfDocumentStore.class);
+
+  private final PdfOutputConfig outputConfig;
+  private final Map<String, StoredDocument> documents = new ConcurrentHashMap<>();
+
+  public PdfDocumentStore(PdfOutputConfig outputConfig) {
+    this.outputConfig = outputConfig;
+  }
+
+  /**
+   * Takes ownership of a generated PDF
+   *
+   * @return the id the document can be downloaded with
+   */
+  public String register(Path file) {
+    String id = UUID.randomUUID().toString();
+    documents.put(id, new StoredDocument(file, Instant.now().plus(outputConfig.getRetention())));
+    return id;
+  }
+
+  /** Finds a document that has not expired yet */
+  public Optional<Path> find(String id) {
+    StoredDocument document = documents.get(id);
+    if (document == null || document.expiresAt().isBefore(Instant.now())) {
+      return Optional.empty();
+    }
+    return Optional.of(document.file());
+  }
+
+  @Scheduled(fixedDelay = 1, timeUnit = TimeUnit.MINUTES)
+  public void deleteExpired() {
+    Instant now = Instant.now();
+    documents
+        .entrySet()
+        .removeIf(
+            entry -> {
+              if (entry.getValue().expiresAt().isAfter(now)) {
+                return false;
+              }
+              deleteQuietly(entry.getValue().file());
+              return true;
+            });
+  }
+
+  private static void deleteQuietly(Path file) {
+    try {
+      Files.deleteIfExists(file);
+      logger.debug("Expired document deleted: {}", file);
+    } catch (IOException e) {
+      logger.warn("Failed to delete expired document: {}", file, e);
+    }
+  }
+
+  private record StoredDocument(Path file, Instant expiresAt) {}
+}
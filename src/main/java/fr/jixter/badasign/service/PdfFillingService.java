@@ -1,36 +1,127 @@
 package fr.jixter.badasign.service;
 
+import fr.jixter.badasign.buffer.BufferPool;
+import fr.jixter.badasign.buffer.PooledChannelOutputStream;
+import fr.jixter.badasign.config.PdfOutputConfig;
+import fr.jixter.badasign.config.RenderExecutorConfig;
+import fr.jixter.badasign.diagnostics.FieldFillEvent;
+import fr.jixter.badasign.diagnostics.FlattenEvent;
+import fr.jixter.badasign.diagnostics.SaveEvent;
+import fr.jixter.badasign.diagnostics.TemplateLoadEvent;
+import fr.jixter.badasign.service.PdfImageCache.EncodedImage;
+import fr.jixter.badasign.service.PdfTemplateRegistry.PdfTemplate;
+import fr.jixter.badasign.util.PdfBundleWriter;
+import fr.jixter.badasign.util.PdfLinearizer;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import lombok.RequiredArgsConstructor;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSUpdateInfo;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDAppearanceContentStream;
 import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationWidget;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceDictionary;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceStream;
 import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
 import org.apache.pdfbox.pdmodel.interactive.form.PDField;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.io.ClassPathResource;
 import org.springframework.stereotype.Service;
 
 @Service
+@RequiredArgsConstructor
 public class PdfFillingService {
 
   private static final Logger logger = LoggerFactory.getLogger(PdfFillingService.class);
-  private static final String TEMPLATE_PATH = "templates/contract-template.pdf";
+  private static final long BUNDLE_MAIN_MEMORY_BYTES = 16L * 1024 * 1024;
+  // Template id reported in the JFR events of an amendment, which has no template
+  private static final String AMENDMENT = "amendment";
+
+  private final ThreadPoolExecutor renderExecutor;
+  private final RenderExecutorConfig renderExecutorConfig;
+  private final PdfTemplateRegistry templateRegistry;
+  private final BufferPool bufferPool;
+  private final PdfImageCache imageCache;
+  private final PdfOutputConfig outputConfig;
 
   /**
-   * Fills a PDF template with the provided data and returns a temporary file
+   * Fills the default PDF template with the provided data and returns a temporary file
    *
    * @param data Map containing field names and their values
    * @return Path to the filled PDF temporary file
    * @throws IOException if there's an error processing the PDF
+   * @throws RenderQueueFullException if the render queue cannot accept more work
    */
   public Path fillPdfTemplate(Map<String, String> data) throws IOException {
-    logger.info("Starting PDF template filling with {} fields", data.size());
+    return fillPdfTemplate(PdfTemplateRegistry.DEFAULT_TEMPLATE_ID, data);
+  }
 
-    // Load the template from resources
-    PDDocument document = loadTemplate();
+  /**
+   * Fills a PDF template with the provided data and returns a temporary file
+   *
+   * @param templateId Id of the template in the {@link PdfTemplateRegistry}
+   * @param data Map containing field names and their values
+   * @return Path to the filled PDF temporary file
+   * @throws IOException if there's an error processing the PDF
+   * @throws RenderQueueFullException if the render queue cannot accept more work
+   */
+  public Path fillPdfTemplate(String templateId, Map<String, String> data) throws IOException {
+    return fillPdfTemplate(templateId, data, outputConfig.isLinearized());
+  }
+
+  /**
+   * Same as {@link #fillPdfTemplate(String, Map)} with an explicit output format
+   *
+   * @param linearized whether to write a linearized PDF, see {@link PdfLinearizer}
+   */
+  public Path fillPdfTemplate(String templateId, Map<String, String> data, boolean linearized)
+      throws IOException {
+    return fillPdfTemplate(templateId, data, linearized, true);
+  }
+
+  /**
+   * Same as {@link #fillPdfTemplate(String, Map, boolean)}, optionally keeping the form fields
+   *
+   * @param flatten whether to flatten the form; an unflattened document can later be amended with
+   *     {@link #amendPdf(Path, Map)}
+   */
+  public Path fillPdfTemplate(
+      String templateId, Map<String, String> data, boolean linearized, boolean flatten)
+      throws IOException {
+    return render(() -> renderFilledTemplate(templateId, data, linearized, flatten));
+  }
+
+  private Path renderFilledTemplate(
+      String templateId, Map<String, String> data, boolean linearized, boolean flatten)
+      throws IOException {
+    logger.info("Starting PDF template '{}' filling with {} fields", templateId, data.size());
+
+    // Load the template from the registry
+    PDDocument document = loadTemplate(templateId);
 
     try {
       // Get the form from the document
@@ -42,13 +133,15 @@ public class PdfFillingService {
       }
 
       // Fill the form fields
-      fillFormFields(acroForm, data);
+      fillFormFields(templateId, document, acroForm, data);
 
       // Flatten the form (make fields non-editable)
-      acroForm.flatten();
+      if (flatten) {
+        flatten(templateId, acroForm);
+      }
 
       // Create temporary file
-      Path tempFile = createTempFile(document);
+      Path tempFile = createTempFile(templateId, document, linearized);
 
       logger.info("PDF template filled successfully. Temporary file created at: {}", tempFile);
       return tempFile;
@@ -58,44 +151,359 @@ public class PdfFillingService {
     }
   }
 
-  /** Loads the PDF template from resources */
-  private PDDocument loadTemplate() throws IOException {
+  /**
+   * Fills the PDF template once per record and merges all filled contracts into a single PDF. Fonts
+   * and XObjects shared by the contracts are stored only once in the output.
+   *
+   * @param records List of maps containing field names and their values, one per contract
+   * @return Path to the merged PDF temporary file
+   * @throws IOException if there's an error processing the PDFs
+   * @throws RenderQueueFullException if the render queue cannot accept more work
+   */
+  public Path fillAndMergePdfTemplates(List<Map<String, String>> records) throws IOException {
+    return fillAndMergePdfTemplates(PdfTemplateRegistry.DEFAULT_TEMPLATE_ID, records);
+  }
+
+  /**
+   * Same as {@link #fillAndMergePdfTemplates(List)} for the given template
+   *
+   * @param templateId Id of the template in the {@link PdfTemplateRegistry}
+   */
+  public Path fillAndMergePdfTemplates(String templateId, List<Map<String, String>> records)
+      throws IOException {
+    return fillAndMergePdfTemplates(templateId, records, outputConfig.isLinearized());
+  }
+
+  /**
+   * Same as {@link #fillAndMergePdfTemplates(String, List)} with an explicit output format
+   *
+   * @param linearized whether to write a linearized PDF, see {@link PdfLinearizer}
+   */
+  public Path fillAndMergePdfTemplates(
+      String templateId, List<Map<String, String>> records, boolean linearized) throws IOException {
+    return render(() -> renderMergedTemplates(templateId, records, linearized));
+  }
+
+  private Path renderMergedTemplates(
+      String templateId, List<Map<String, String>> records, boolean linearized) throws IOException {
+    logger.info(
+        "Starting bundle merge of {} filled contracts from template '{}'",
+        records.size(),
+        templateId);
+
+    // Spill the bundle to a scratch file once it outgrows the in-memory budget
+    try (PdfBundleWriter bundle =
+        new PdfBundleWriter(MemoryUsageSetting.setupMixed(BUNDLE_MAIN_MEMORY_BYTES))) {
+      for (Map<String, String> data : records) {
+        try (PDDocument document = fillTemplateDocument(templateId, data)) {
+          bundle.append(document);
+        }
+      }
+
+      Path tempFile = Files.createTempFile("merged-contracts-", ".pdf");
+      SaveEvent saveEvent = new SaveEvent();
+      saveEvent.begin();
+      bundle.save(tempFile, linearized);
+      saveEvent.templateId = templateId;
+      saveEvent.bytes = Files.size(tempFile);
+      saveEvent.commit();
+
+      logger.info(
+          "Merged {} contracts into {} pages ({} shared resource reuses). Temporary file created"
+              + " at: {}",
+          records.size(),
+          bundle.getPageCount(),
+          bundle.getSharedHits(),
+          tempFile);
+      return tempFile;
+    }
+  }
+
+  /**
+   * Amends a filled, unflattened PDF with changed field values. Only the objects the change touches
+   * (the fields, their widgets and appearances, and the path to them from the catalog) are appended
+   * to a copy of the original as an incremental update: the original bytes, and any signature over
+   * them, are left untouched. Only the appended bytes grow with the change; parsing the original,
+   * copying it and streaming it through to the update still grow with the document.
+   *
+   * @param filledPdf PDF previously filled with {@code flatten=false}
+   * @param delta Map containing the names and new values of the changed fields
+   * @return Path to the amended PDF temporary file
+   * @throws IllegalArgumentException if the document has no form or a field does not exist
+   * @throws RenderQueueFullException if the render queue cannot accept more work
+   */
+  public Path amendPdf(Path filledPdf, Map<String, String> delta) throws IOException {
+    return render(() -> renderAmendment(filledPdf, delta));
+  }
+
+  private Path renderAmendment(Path filledPdf, Map<String, String> delta) throws IOException {
+    logger.info("Amending {} with {} changed fields", filledPdf.getFileName(), delta.size());
+
+    try (PDDocument document = PDDocument.load(filledPdf.toFile())) {
+      PDAcroForm acroForm = document.getDocumentCatalog().getAcroForm();
+      if (acroForm == null) {
+        throw new IllegalArgumentException("Document has no form to amend, was it flattened?");
+      }
+      for (String fieldName : delta.keySet()) {
+        if (acroForm.getField(fieldName) == null) {
+          throw new IllegalArgumentException("Unknown field: " + fieldName);
+        }
+      }
+
+      fillFormFields(AMENDMENT, document, acroForm, delta);
+      markForIncrementalUpdate(document, acroForm, delta.keySet());
+
+      SaveEvent event = new SaveEvent();
+      event.begin();
+      long originalSize = Files.size(filledPdf);
+      Path tempFile = Files.createTempFile("amended-contract-", ".pdf");
+      try {
+        // Copy the original as is, then append only the update PDFBox writes after it
+        Files.copy(filledPdf, tempFile, StandardCopyOption.REPLACE_EXISTING);
+        try (OutputStream out =
+            new IncrementOutputStream(
+                Files.newOutputStream(tempFile, StandardOpenOption.APPEND), originalSize)) {
+          document.saveIncremental(out);
+        }
+      } catch (IOException | RuntimeException e) {
+        Files.deleteIfExists(tempFile);
+        throw e;
+      }
+      event.templateId = AMENDMENT;
+      event.bytes = Files.size(tempFile) - originalSize;
+      event.commit();
+
+      logger.info(
+          "Amendment appended {} bytes to a {} byte document. Temporary file created at: {}",
+          event.bytes,
+          originalSize,
+          tempFile);
+      return tempFile;
+    }
+  }
+
+  /**
+   * Flags the objects changed by setting the given fields, and every object on the way to them from
+   * the catalog, so an incremental save writes them and nothing else
+   */
+  private static void markForIncrementalUpdate(
+      PDDocument document, PDAcroForm acroForm, Collection<String> fieldNames) {
+    document.getDocumentCatalog().getCOSObject().setNeedToBeUpdated(true);
+    COSDictionary acroFormDictionary = acroForm.getCOSObject();
+    acroFormDictionary.setNeedToBeUpdated(true);
+    markForUpdate(acroFormDictionary.getDictionaryObject(COSName.FIELDS));
+    // Appearance generation may add fonts to the default resources
+    if (acroFormDictionary.getDictionaryObject(COSName.DR) instanceof COSDictionary resources) {
+      resources.setNeedToBeUpdated(true);
+      markForUpdate(resources.getDictionaryObject(COSName.FONT));
+    }
+
+    for (String fieldName : fieldNames) {
+      PDField field = acroForm.getField(fieldName);
+      for (PDField node = field; node != null; node = node.getParent()) {
+        node.getCOSObject().setNeedToBeUpdated(true);
+        markForUpdate(node.getCOSObject().getDictionaryObject(COSName.KIDS));
+      }
+      for (PDAnnotationWidget widget : field.getWidgets()) {
+        widget.getCOSObject().setNeedToBeUpdated(true);
+        PDAppearanceDictionary appearance = widget.getAppearance();
+        if (appearance == null) {
+          continue;
+        }
+        appearance.getCOSObject().setNeedToBeUpdated(true);
+        markForUpdate(appearance.getCOSObject().getDictionaryObject(COSName.N));
+      }
+    }
+  }
+
+  /**
+   * Flags an object for the next incremental save, with the streams of an appearance subdictionary
+   */
+  private static void markForUpdate(COSBase object) {
+    if (object instanceof COSUpdateInfo updateInfo) {
+      updateInfo.setNeedToBeUpdated(true);
+    }
+    if (object instanceof COSDictionary dictionary && !(object instanceof COSStream)) {
+      for (COSBase value : dictionary.getValues()) {
+        COSBase resolved = value instanceof COSObject reference ? reference.getObject() : value;
+        if (resolved instanceof COSStream stream) {
+          stream.setNeedToBeUpdated(true);
+        }
+      }
+    }
+  }
+
+  /**
+   * Fills and flattens a template in memory on the calling thread, for tasks already running on a
+   * PDF pool. The caller closes the document.
+   *
+   * @param templateId Id of the template in the {@link PdfTemplateRegistry}
+   * @param data Map containing field names and their values
+   */
+  public PDDocument fillTemplateDocument(String templateId, Map<String, String> data)
+      throws IOException {
+    PDDocument document = loadTemplate(templateId);
+    try {
+      PDAcroForm acroForm = document.getDocumentCatalog().getAcroForm();
+      if (acroForm != null) {
+        fillFormFields(templateId, document, acroForm, data);
+        flatten(templateId, acroForm);
+      }
+      return document;
+    } catch (IOException | RuntimeException e) {
+      document.close();
+      throw e;
+    }
+  }
+
+  /** Runs a CPU-bound PDF task on the render pool and waits for its result */
+  private <T> T render(Callable<T> task) throws IOException {
+    Future<T> future;
     try {
-      ClassPathResource resource = new ClassPathResource(TEMPLATE_PATH);
-      if (!resource.exists()) {
-        logger.warn("Template file not found at {}. Creating a blank document.", TEMPLATE_PATH);
-        return new PDDocument();
+      future = renderExecutor.submit(task);
+    } catch (RejectedExecutionException e) {
+      logger.warn(
+          "PDF render queue full ({} tasks queued), rejecting request",
+          renderExecutor.getQueue().size());
+      throw new RenderQueueFullException(renderExecutorConfig.getRetryAfterSeconds(), e);
+    }
+
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException ioException) {
+        throw ioException;
       }
+      if (e.getCause() instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+      throw new IOException("PDF rendering failed", e.getCause());
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for PDF rendering", e);
+    }
+  }
 
-      try (InputStream inputStream = resource.getInputStream()) {
-        return PDDocument.load(inputStream);
+  /** Loads the PDF template from the registry */
+  private PDDocument loadTemplate(String templateId) throws IOException {
+    TemplateLoadEvent event = new TemplateLoadEvent();
+    event.begin();
+    try {
+      Optional<PdfTemplate> template = templateRegistry.find(templateId);
+      if (template.isEmpty()) {
+        logger.warn("Template '{}' not found. Creating a blank document.", templateId);
+        return new PDDocument();
       }
+
+      PDDocument document = PDDocument.load(template.get().content());
+      event.templateId = templateId;
+      event.bytes = template.get().content().length;
+      event.commit();
+      return document;
     } catch (IOException e) {
       logger.error("Error loading PDF template: {}", e.getMessage());
       throw new IOException("Failed to load PDF template", e);
     }
   }
 
-  /** Fills the form fields with the provided data */
-  private void fillFormFields(PDAcroForm acroForm, Map<String, String> data) throws IOException {
+  /** Fills the form fields with the provided data, images being given as base64 data URLs */
+  private void fillFormFields(
+      String templateId, PDDocument document, PDAcroForm acroForm, Map<String, String> data)
+      throws IOException {
+    FieldFillEvent event = new FieldFillEvent();
+    event.begin();
+    Map<String, PDImageXObject> images = new HashMap<>();
     for (Map.Entry<String, String> entry : data.entrySet()) {
       String fieldName = entry.getKey();
       String fieldValue = entry.getValue();
 
       PDField field = acroForm.getField(fieldName);
-      if (field != null) {
+      if (field != null && PdfImageCache.isImageDataUrl(fieldValue)) {
+        placeImage(document, field, fieldValue, images);
+        logger.debug("Filled field '{}' with an image", fieldName);
+      } else if (field != null) {
         field.setValue(fieldValue);
         logger.debug("Filled field '{}' with value '{}'", fieldName, fieldValue);
       } else {
         logger.warn("Field '{}' not found in the PDF form", fieldName);
       }
     }
+    event.templateId = templateId;
+    event.fieldCount = data.size();
+    event.commit();
+  }
+
+  /**
+   * Draws an image into each widget of the field, scaled to fit and centered. The image is added to
+   * the document once, however many fields show it.
+   */
+  private void placeImage(
+      PDDocument document, PDField field, String dataUrl, Map<String, PDImageXObject> images)
+      throws IOException {
+    EncodedImage encoded = imageCache.get(PdfImageCache.decodeDataUrl(dataUrl));
+    PDImageXObject image = images.get(encoded.hash());
+    if (image == null) {
+      image = encoded.toXObject(document);
+      images.put(encoded.hash(), image);
+    }
+
+    for (PDAnnotationWidget widget : field.getWidgets()) {
+      PDRectangle rectangle = widget.getRectangle();
+      float scale =
+          Math.min(
+              rectangle.getWidth() / image.getWidth(), rectangle.getHeight() / image.getHeight());
+      float width = image.getWidth() * scale;
+      float height = image.getHeight() * scale;
+
+      PDAppearanceStream appearance = new PDAppearanceStream(document);
+      appearance.setBBox(new PDRectangle(rectangle.getWidth(), rectangle.getHeight()));
+      appearance.setResources(new PDResources());
+      try (PDAppearanceContentStream content = new PDAppearanceContentStream(appearance)) {
+        content.drawImage(
+            image,
+            (rectangle.getWidth() - width) / 2,
+            (rectangle.getHeight() - height) / 2,
+            width,
+            height);
+      }
+
+      // Flattening turns the appearance into page content
+      PDAppearanceDictionary appearances = new PDAppearanceDictionary();
+      appearances.setNormalAppearance(appearance);
+      widget.setAppearance(appearances);
+    }
+  }
+
+  /** Flattens the form (make fields non-editable) */
+  private void flatten(String templateId, PDAcroForm acroForm) throws IOException {
+    FlattenEvent event = new FlattenEvent();
+    event.begin();
+    int fieldCount = acroForm.getFields().size();
+    acroForm.flatten();
+    event.templateId = templateId;
+    event.fieldCount = fieldCount;
+    event.commit();
   }
 
   /** Creates a temporary file with the filled PDF */
-  private Path createTempFile(PDDocument document) throws IOException {
+  private Path createTempFile(String templateId, PDDocument document, boolean linearized)
+      throws IOException {
+    SaveEvent event = new SaveEvent();
+    event.begin();
     Path tempFile = Files.createTempFile("filled-contract-", ".pdf");
-    document.save(tempFile.toFile());
+    // Stream to the file through one pooled segment, so memory does not grow with the document
+    try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE);
+        PooledChannelOutputStream out = new PooledChannelOutputStream(bufferPool, channel)) {
+      if (linearized) {
+        new PdfLinearizer(document).save(out);
+      } else {
+        document.save(out);
+      }
+      event.bytes = out.size();
+    }
+    event.templateId = templateId;
+    event.commit();
     return tempFile;
   }
 
@@ -117,6 +525,38 @@ public class PdfFillingService {
     }
   }
 
+  /**
+   * Discards the copy of the original document PDFBox writes ahead of an incremental update, so
+   * only the update itself reaches the file
+   */
+  private static class IncrementOutputStream extends FilterOutputStream {
+
+    private long toSkip;
+
+    IncrementOutputStream(OutputStream out, long originalSize) {
+      super(out);
+      this.toSkip = originalSize;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (toSkip > 0) {
+        toSkip--;
+      } else {
+        out.write(b);
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      int skipped = (int) Math.min(toSkip, len);
+      toSkip -= skipped;
+      if (len > skipped) {
+        out.write(b, off + skipped, len - skipped);
+      }
+    }
+  }
+
   /** Deletes the temporary file */
   public void deleteTempFile(Path tempFile) {
     try {
@@ -0,0 +1,327 @@
+package fr.jixter.badasign.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Process-wide cache of images encoded as PDF image streams, keyed by the SHA-256 of the source
+ * bytes. An image is decoded and encoded once; each document then gets an XObject built from the
+ * cached stream without re-encoding. Bounded in bytes, least recently used images are evicted
+ * first. Images are only decoded once their header shows they fit {@code pdf.images.max-pixels}, so
+ * a small file declaring huge dimensions cannot exhaust the heap.
+ */
+@Service
+public class PdfImageCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(PdfImageCache.class);
+
+  private static final String IMAGE_DATA_URL_PREFIX = "data:image/";
+  private static final String BASE64_MARKER = ";base64,";
+
+  private final long maxBytes;
+  private final long maxPixels;
+  private final Map<String, EncodedImage> images = new LinkedHashMap<>(16, 0.75f, true);
+  private long cachedBytes;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * An image as an encoded PDF image stream: its filtered data, its stream dictionary (without
+   * length or soft mask) and its encoded soft mask, if any
+   */
+  public record EncodedImage(
+      String hash, byte[] data, COSDictionary parameters, EncodedImage softMask) {
+
+    long size() {
+      return data.length + streamBytes(parameters) + (softMask != null ? softMask.size() : 0);
+    }
+
+    /** Creates an image XObject in the document from the encoded stream, without re-encoding */
+    public PDImageXObject toXObject(PDDocument document) throws IOException {
+      return new PDImageXObject(new PDStream(toStream(document)), null);
+    }
+
+    private COSStream toStream(PDDocument document) throws IOException {
+      COSStream stream = document.getDocument().createCOSStream();
+      for (Map.Entry<COSName, COSBase> entry : parameters.entrySet()) {
+        stream.setItem(entry.getKey(), copyOf(entry.getValue(), document.getDocument()));
+      }
+      try (OutputStream out = stream.createRawOutputStream()) {
+        out.write(data);
+      }
+      if (softMask != null) {
+        stream.setItem(COSName.SMASK, softMask.toStream(document));
+      }
+      return stream;
+    }
+  }
+
+  public PdfImageCache(
+      @Value("${pdf.images.cache-size:32MB}") DataSize maxBytes,
+      @Value("${pdf.images.max-pixels:16000000}") long maxPixels,
+      MeterRegistry meterRegistry) {
+    this.maxBytes = maxBytes.toBytes();
+    this.maxPixels = maxPixels;
+
+    FunctionCounter.builder("badasign.pdf.images.cache.hits", hits, AtomicLong::get)
+        .description("Field images served from the encoded image cache")
+        .register(meterRegistry);
+    FunctionCounter.builder("badasign.pdf.images.cache.misses", misses, AtomicLong::get)
+        .description("Field images decoded and encoded")
+        .register(meterRegistry);
+    Gauge.builder("badasign.pdf.images.cache.size", this, PdfImageCache::getCachedBytes)
+        .description("Bytes of encoded images held in the cache")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Returns the encoded form of an image, encoding it on first use
+   *
+   * @param imageBytes PNG, JPEG or any other format readable by ImageIO
+   * @throws IllegalArgumentException if the bytes are not a readable image, or the image has more
+   *     than {@code pdf.images.max-pixels} pixels
+   */
+  public EncodedImage get(byte[] imageBytes) throws IOException {
+    String hash = hash(imageBytes);
+    synchronized (this) {
+      EncodedImage cached = images.get(hash);
+      if (cached != null) {
+        hits.incrementAndGet();
+        return cached;
+      }
+    }
+
+    // Encode outside the lock; two threads may encode the same image once, which is harmless
+    misses.incrementAndGet();
+    checkDimensions(imageBytes);
+    EncodedImage encoded = encode(hash, imageBytes);
+    put(encoded);
+    return encoded;
+  }
+
+  /** Whether a field value is an image, given as a base64 {@code data:image/...} URL */
+  public static boolean isImageDataUrl(String value) {
+    return value != null && value.startsWith(IMAGE_DATA_URL_PREFIX);
+  }
+
+  /**
+   * Decodes the bytes of a base64 image data URL
+   *
+   * @throws IllegalArgumentException if the value is not a base64 data URL
+   */
+  public static byte[] decodeDataUrl(String dataUrl) {
+    int separator = dataUrl.indexOf(BASE64_MARKER);
+    if (!isImageDataUrl(dataUrl) || separator < 0) {
+      throw new IllegalArgumentException("Image values must be base64 data:image/ URLs");
+    }
+    return Base64.getDecoder().decode(dataUrl.substring(separator + BASE64_MARKER.length()));
+  }
+
+  public synchronized long getCachedBytes() {
+    return cachedBytes;
+  }
+
+  private synchronized void put(EncodedImage encoded) {
+    if (encoded.size() > maxBytes || images.containsKey(encoded.hash())) {
+      return;
+    }
+    images.put(encoded.hash(), encoded);
+    cachedBytes += encoded.size();
+
+    var eldest = images.values().iterator();
+    while (cachedBytes > maxBytes && eldest.hasNext()) {
+      EncodedImage evicted = eldest.next();
+      eldest.remove();
+      cachedBytes -= evicted.size();
+      logger.debug("Evicted image {} from the cache ({} bytes)", evicted.hash(), evicted.size());
+    }
+  }
+
+  /** Reads the image dimensions from its header, without decoding it */
+  private void checkDimensions(byte[] imageBytes) throws IOException {
+    try (ImageInputStream in =
+        ImageIO.createImageInputStream(new ByteArrayInputStream(imageBytes))) {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) {
+        throw new IllegalArgumentException("Unsupported image format");
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        if ((long) width * height > maxPixels) {
+          throw new IllegalArgumentException(
+              "Image of "
+                  + width
+                  + "x"
+                  + height
+                  + " pixels exceeds the limit of "
+                  + maxPixels
+                  + " pixels");
+        }
+      } catch (IIOException e) {
+        throw new IllegalArgumentException("Unreadable image: " + e.getMessage(), e);
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  private static EncodedImage encode(String hash, byte[] imageBytes) throws IOException {
+    if (!isJpeg(imageBytes)) {
+      BufferedImage bufferedImage = ImageIO.read(new ByteArrayInputStream(imageBytes));
+      if (bufferedImage == null) {
+        throw new IllegalArgumentException("Unsupported image format");
+      }
+      return encode(hash, bufferedImage);
+    }
+    try (PDDocument scratch = new PDDocument()) {
+      // JPEG data is embedded as is (DCTDecode), no decode/re-encode round trip
+      PDImageXObject image = JPEGFactory.createFromByteArray(scratch, imageBytes);
+      logger.debug(
+          "Encoded image {} ({}x{}, {} source bytes)",
+          hash,
+          image.getWidth(),
+          image.getHeight(),
+          imageBytes.length);
+      return fromStream(hash, image.getCOSObject());
+    }
+  }
+
+  /**
+   * Encodes a decoded image losslessly. Images in a colour space other than sRGB, e.g. decoded with
+   * their embedded ICC profile, get an {@code /ICCBased} colour space carrying the profile as a
+   * stream.
+   */
+  static EncodedImage encode(String hash, BufferedImage bufferedImage) throws IOException {
+    try (PDDocument scratch = new PDDocument()) {
+      PDImageXObject image = LosslessFactory.createFromImage(scratch, bufferedImage);
+      logger.debug("Encoded image {} ({}x{})", hash, image.getWidth(), image.getHeight());
+      return fromStream(hash, image.getCOSObject());
+    }
+  }
+
+  private static EncodedImage fromStream(String hash, COSStream stream) throws IOException {
+    byte[] data;
+    try (InputStream in = stream.createRawInputStream()) {
+      data = in.readAllBytes();
+    }
+    COSDictionary parameters = new COSDictionary();
+    EncodedImage softMask = null;
+    for (Map.Entry<COSName, COSBase> entry : stream.entrySet()) {
+      if (COSName.SMASK.equals(entry.getKey())) {
+        softMask = fromStream(hash + "-smask", (COSStream) entry.getValue());
+      } else if (!COSName.LENGTH.equals(entry.getKey())) {
+        // Nested streams (ICC profiles, lookup tables) are detached from the scratch document
+        parameters.setItem(entry.getKey(), copyOf(entry.getValue(), null));
+      }
+    }
+    return new EncodedImage(hash, data, parameters, softMask);
+  }
+
+  /**
+   * Deep copy of an image dictionary value, so documents never share its objects. Streams are
+   * copied with their filtered data into the target document, or into memory when it is null.
+   */
+  private static COSBase copyOf(COSBase value, COSDocument target) throws IOException {
+    if (value instanceof COSObject reference) {
+      value = reference.getObject();
+    }
+    if (value instanceof COSStream stream) {
+      COSStream copy = target != null ? target.createCOSStream() : new COSStream();
+      for (Map.Entry<COSName, COSBase> entry : stream.entrySet()) {
+        if (!COSName.LENGTH.equals(entry.getKey())) {
+          copy.setItem(entry.getKey(), copyOf(entry.getValue(), target));
+        }
+      }
+      // Cached streams are read by concurrent requests, and a stream has a single read position
+      synchronized (stream) {
+        try (InputStream in = stream.createRawInputStream();
+            OutputStream out = copy.createRawOutputStream()) {
+          in.transferTo(out);
+        }
+      }
+      return copy;
+    }
+    if (value instanceof COSDictionary dictionary) {
+      COSDictionary copy = new COSDictionary();
+      for (Map.Entry<COSName, COSBase> entry : dictionary.entrySet()) {
+        copy.setItem(entry.getKey(), copyOf(entry.getValue(), target));
+      }
+      return copy;
+    }
+    if (value instanceof COSArray array) {
+      COSArray copy = new COSArray();
+      for (COSBase item : array) {
+        copy.add(copyOf(item, target));
+      }
+      return copy;
+    }
+    return value;
+  }
+
+  /** Filtered bytes of the streams nested in a cached image dictionary */
+  private static long streamBytes(COSBase value) {
+    long bytes = value instanceof COSStream stream ? stream.getLength() : 0;
+    if (value instanceof COSDictionary dictionary) {
+      for (COSBase item : dictionary.getValues()) {
+        bytes += streamBytes(item);
+      }
+    } else if (value instanceof COSArray array) {
+      for (COSBase item : array) {
+        bytes += streamBytes(item);
+      }
+    }
+    return bytes;
+  }
+
+  private static boolean isJpeg(byte[] bytes) {
+    return bytes.length > 2 && (bytes[0] & 0xFF) == 0xFF && (bytes[1] & 0xFF) == 0xD8;
+  }
+
+  private static String hash(byte[] bytes) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+}
@@ -0,0 +1,280 @@
+package fr.jixter.badasign.service;
+
+import fr.jixter.badasign.config.PdfPreviewConfig;
+import fr.jixter.badasign.config.RenderExecutorConfig;
+import fr.jixter.badasign.service.PdfTemplateRegistry.PdfTemplate;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Renders pages of a filled template as PNG previews on a bounded background pool. Pages are cached
+ * by template version, field values, page and DPI, so the UI refreshing an unchanged preview does
+ * not fill or render anything. A preview is filled at most once, and only if one of its pages is
+ * not cached yet.
+ */
+@Service
+public class PdfPreviewService {
+
+  private static final Logger logger = LoggerFactory.getLogger(PdfPreviewService.class);
+
+  private final PdfFillingService pdfFillingService;
+  private final PdfTemplateRegistry templateRegistry;
+  private final PdfPreviewConfig previewConfig;
+  private final RenderExecutorConfig renderExecutorConfig;
+  private final ThreadPoolExecutor previewExecutor;
+
+  private final long maxCachedBytes;
+  private final Map<String, byte[]> pages = new LinkedHashMap<>(16, 0.75f, true);
+  private long cachedBytes;
+  // Page count of each template version, as filling never adds or removes pages
+  private final Map<String, Integer> pageCounts = new ConcurrentHashMap<>();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /** Receives the rendered pages of a preview, called from the preview pool */
+  public interface PreviewListener {
+
+    /**
+     * Called once per page, in the requested order. Throwing stops the preview: the pages left are
+     * not rendered.
+     */
+    void onPage(int page, byte[] png) throws IOException;
+
+    void onComplete();
+
+    void onError(Exception e);
+  }
+
+  public PdfPreviewService(
+      PdfFillingService pdfFillingService,
+      PdfTemplateRegistry templateRegistry,
+      PdfPreviewConfig previewConfig,
+      RenderExecutorConfig renderExecutorConfig,
+      MeterRegistry meterRegistry) {
+    this.pdfFillingService = pdfFillingService;
+    this.templateRegistry = templateRegistry;
+    this.previewConfig = previewConfig;
+    this.renderExecutorConfig = renderExecutorConfig;
+    this.maxCachedBytes = previewConfig.getCacheSize().toBytes();
+    this.previewExecutor =
+        new ThreadPoolExecutor(
+            previewConfig.getPoolSize(),
+            previewConfig.getPoolSize(),
+            0L,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(previewConfig.getQueueCapacity()),
+            new CustomizableThreadFactory("pdf-preview-"),
+            new ThreadPoolExecutor.AbortPolicy());
+
+    FunctionCounter.builder("badasign.pdf.preview.cache.hits", hits, AtomicLong::get)
+        .description("Preview pages served from the cache")
+        .register(meterRegistry);
+    FunctionCounter.builder("badasign.pdf.preview.cache.misses", misses, AtomicLong::get)
+        .description("Preview pages rendered")
+        .register(meterRegistry);
+    Gauge.builder("badasign.pdf.preview.cache.size", this, PdfPreviewService::getCachedBytes)
+        .description("Bytes of rendered preview pages held in the cache")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Starts rendering a preview in the background. Cancelling the returned future stops the
+   * rendering before the next page.
+   *
+   * @param pageNumbers 1-based page numbers; pages past the end of the document and repeated pages
+   *     are skipped
+   * @throws IllegalArgumentException if the template does not exist or the DPI is out of range
+   * @throws RenderQueueFullException if the preview queue cannot accept more work
+   */
+  public Future<?> renderPreview(
+      String templateId,
+      Map<String, String> data,
+      List<Integer> pageNumbers,
+      int dpi,
+      PreviewListener listener)
+      throws IOException {
+    if (dpi < 1 || dpi > previewConfig.getMaxDpi()) {
+      throw new IllegalArgumentException(
+          "DPI must be between 1 and " + previewConfig.getMaxDpi() + ": " + dpi);
+    }
+    PdfTemplate template =
+        templateRegistry
+            .find(templateId)
+            .orElseThrow(() -> new IllegalArgumentException("Unknown template: " + templateId));
+    String keyPrefix = template.version() + ":" + fieldsHash(data) + ":" + dpi + ":";
+
+    try {
+      return previewExecutor.submit(
+          () -> {
+            try {
+              render(template, data, pageNumbers, dpi, keyPrefix, listener);
+              listener.onComplete();
+            } catch (IOException | RuntimeException e) {
+              listener.onError(e);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      logger.warn(
+          "PDF preview queue full ({} tasks queued), rejecting request",
+          previewExecutor.getQueue().size());
+      throw new RenderQueueFullException(renderExecutorConfig.getRetryAfterSeconds(), e);
+    }
+  }
+
+  private void render(
+      PdfTemplate template,
+      Map<String, String> data,
+      List<Integer> pageNumbers,
+      int dpi,
+      String keyPrefix,
+      PreviewListener listener)
+      throws IOException {
+    String templateId = template.id();
+    int pageCount = pageCount(template);
+    // At most one entry per page of the document, whatever the length of the requested list
+    List<Integer> pagesToRender =
+        pageNumbers.stream()
+            .filter(page -> page != null && page >= 1 && page <= pageCount)
+            .distinct()
+            .toList();
+    if (pagesToRender.size() < pageNumbers.size()) {
+      logger.debug(
+          "Preview of '{}' skips {} missing or repeated pages",
+          templateId,
+          pageNumbers.size() - pagesToRender.size());
+    }
+
+    PDDocument document = null;
+    PDFRenderer renderer = null;
+    try {
+      for (int pageNumber : pagesToRender) {
+        if (Thread.currentThread().isInterrupted()) {
+          logger.debug("Preview of '{}' cancelled before page {}", templateId, pageNumber);
+          return;
+        }
+
+        String key = keyPrefix + pageNumber;
+        byte[] png = getCached(key);
+        if (png == null) {
+          if (document == null) {
+            document = pdfFillingService.fillTemplateDocument(templateId, data);
+            renderer = new PDFRenderer(document);
+          }
+          misses.incrementAndGet();
+          png = renderPage(renderer, pageNumber - 1, dpi);
+          put(key, png);
+        }
+        listener.onPage(pageNumber, png);
+      }
+    } finally {
+      if (document != null) {
+        document.close();
+      }
+    }
+  }
+
+  private int pageCount(PdfTemplate template) throws IOException {
+    Integer count = pageCounts.get(template.version());
+    if (count == null) {
+      try (PDDocument document = PDDocument.load(template.content())) {
+        count = document.getNumberOfPages();
+      }
+      pageCounts.put(template.version(), count);
+    }
+    return count;
+  }
+
+  private static byte[] renderPage(PDFRenderer renderer, int pageIndex, int dpi)
+      throws IOException {
+    BufferedImage image = renderer.renderImageWithDPI(pageIndex, dpi, ImageType.RGB);
+    ByteArrayOutputStream png = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", png);
+    return png.toByteArray();
+  }
+
+  public synchronized long getCachedBytes() {
+    return cachedBytes;
+  }
+
+  private synchronized byte[] getCached(String key) {
+    byte[] png = pages.get(key);
+    if (png != null) {
+      hits.incrementAndGet();
+    }
+    return png;
+  }
+
+  private synchronized void put(String key, byte[] png) {
+    if (png.length > maxCachedBytes || pages.containsKey(key)) {
+      return;
+    }
+    pages.put(key, png);
+    cachedBytes += png.length;
+
+    var eldest = pages.values().iterator();
+    while (cachedBytes > maxCachedBytes && eldest.hasNext()) {
+      cachedBytes -= eldest.next().length;
+      eldest.remove();
+    }
+  }
+
+  /**
+   * Hash of the field values, independent of the map's iteration order. Keys and values are length
+   * prefixed, so no two different maps share an encoding, and a null value has a length of -1.
+   */
+  private static String fieldsHash(Map<String, String> data) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      for (Map.Entry<String, String> entry : new TreeMap<>(data).entrySet()) {
+        updateLengthPrefixed(digest, entry.getKey());
+        updateLengthPrefixed(digest, entry.getValue());
+      }
+      return HexFormat.of().formatHex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+
+  private static void updateLengthPrefixed(MessageDigest digest, String value) {
+    byte[] bytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    int length = value != null ? bytes.length : -1;
+    digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(length).array());
+    digest.update(bytes);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    previewExecutor.shutdownNow();
+  }
+}
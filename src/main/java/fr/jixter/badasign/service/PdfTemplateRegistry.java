@@ -0,0 +1,97 @@
+package fr.jixter.badasign.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.stereotype.Service;
+
+/**
+ * Registry of the PDF templates available for filling. Templates are the {@code templates/*.pdf}
+ * classpath resources, identified by their file name without extension, and kept in memory once
+ * read so fills do not go back to the classpath.
+ */
+@Service
+public class PdfTemplateRegistry {
+
+  private static final Logger logger = LoggerFactory.getLogger(PdfTemplateRegistry.class);
+  public static final String DEFAULT_TEMPLATE_ID = "contract-template";
+  private static final String TEMPLATES_DIR = "templates/";
+  private static final Pattern TEMPLATE_ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]+");
+
+  private final Map<String, PdfTemplate> templates = new ConcurrentHashMap<>();
+
+  /**
+   * A template's content and version. The version is derived from the content, so it changes
+   * whenever the template file does.
+   */
+  public record PdfTemplate(String id, String version, byte[] content) {}
+
+  /** Lists the ids of all templates found on the classpath */
+  public List<String> getTemplateIds() throws IOException {
+    Resource[] resources =
+        new PathMatchingResourcePatternResolver()
+            .getResources("classpath*:" + TEMPLATES_DIR + "*.pdf");
+    List<String> ids = new ArrayList<>();
+    for (Resource resource : resources) {
+      String filename = resource.getFilename();
+      if (filename != null) {
+        ids.add(filename.substring(0, filename.length() - ".pdf".length()));
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Finds a template by id
+   *
+   * @return the template, or empty if no such template exists
+   * @throws IllegalArgumentException if the id is not a valid template id
+   */
+  public Optional<PdfTemplate> find(String templateId) throws IOException {
+    if (!TEMPLATE_ID_PATTERN.matcher(templateId).matches()) {
+      throw new IllegalArgumentException("Invalid template id: " + templateId);
+    }
+
+    PdfTemplate template = templates.get(templateId);
+    if (template != null) {
+      return Optional.of(template);
+    }
+
+    // Missing templates are not cached: the initializer may still create them
+    ClassPathResource resource = new ClassPathResource(TEMPLATES_DIR + templateId + ".pdf");
+    if (!resource.exists()) {
+      return Optional.empty();
+    }
+
+    byte[] content;
+    try (InputStream inputStream = resource.getInputStream()) {
+      content = inputStream.readAllBytes();
+    }
+    template = new PdfTemplate(templateId, version(content), content);
+    templates.put(templateId, template);
+    logger.info("Registered PDF template '{}' version {}", templateId, template.version());
+    return Optional.of(template);
+  }
+
+  private static String version(byte[] content) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+      return HexFormat.of().formatHex(digest, 0, 8);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package fr.jixter.badasign.service;
+
+import lombok.Getter;
+
+/** Thrown when the PDF render queue is full and the request cannot be accepted right now */
+@Getter
+public class RenderQueueFullException extends RuntimeException {
+
+  private final int retryAfterSeconds;
+
+  public RenderQueueFullException(int retryAfterSeconds, Throwable cause) {
+    super("PDF render queue is full, retry in " + retryAfterSeconds + "s", cause);
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+}
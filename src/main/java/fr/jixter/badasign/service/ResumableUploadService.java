@@ -0,0 +1,358 @@
+package fr.jixter.badasign.service;
+
+import fr.jixter.badasign.buffer.BufferPool;
+import fr.jixter.badasign.config.ResumableUploadConfig;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+/**
+ * Documents uploaded in chunks, tus style, so a dropped connection only costs the chunk in flight.
+ * Each chunk is written straight into the upload's spool file at its offset; once the last byte is
+ * in, the spool file itself is handed to the signature flow. The upload is only forgotten once the
+ * flow has taken the file: a signature that fails can be retried without uploading again.
+ *
+ * <p>Uploads belong to the tenant that created them and are kept in memory: an upload interrupted
+ * by a restart has to start over. Uploads not resumed for {@code signature.uploads.expire-after}
+ * are deleted.
+ */
+@Service
+public class ResumableUploadService {
+
+  private static final Logger logger = LoggerFactory.getLogger(ResumableUploadService.class);
+  private static final int CHUNK_BUFFER_SIZE = 64 * 1024;
+  private static final Map<String, String> CHECKSUM_ALGORITHMS =
+      Map.of("md5", "MD5", "sha1", "SHA-1", "sha256", "SHA-256");
+
+  private final ResumableUploadConfig uploadConfig;
+  private final BufferPool bufferPool;
+  private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+
+  /** Where an upload stands, {@code offset} being the number of bytes received so far */
+  public record UploadStatus(String id, String fileName, long length, long offset) {}
+
+  public ResumableUploadService(
+      ResumableUploadConfig uploadConfig, BufferPool bufferPool, MeterRegistry meterRegistry) {
+    this.uploadConfig = uploadConfig;
+    this.bufferPool = bufferPool;
+    deleteLeftovers();
+    Gauge.builder("badasign.upload.resumable.active", uploads, Map::size)
+        .description("Resumable uploads started and not finished yet")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Starts an upload of {@code length} bytes
+   *
+   * @throws IllegalArgumentException if the length is negative or above {@code
+   *     signature.uploads.max-size}
+   */
+  public UploadStatus create(String fileName, long length) throws IOException {
+    if (length < 0 || length > uploadConfig.getMaxSize().toBytes()) {
+      throw new IllegalArgumentException(
+          "Upload length must be between 0 and " + uploadConfig.getMaxSize().toBytes() + " bytes");
+    }
+    Files.createDirectories(uploadConfig.getDirectory());
+    String id = UUID.randomUUID().toString();
+    Path file = Files.createFile(uploadConfig.getDirectory().resolve(id + ".part"));
+    Upload upload = new Upload(id, TenantContext.current().tenantId(), fileName, length, file);
+    upload.expiresAt = Instant.now().plus(uploadConfig.getExpireAfter());
+    uploads.put(id, upload);
+    logger.info("Started resumable upload {} of '{}' ({} bytes)", id, fileName, length);
+    return upload.status();
+  }
+
+  /** Finds an upload of the current tenant */
+  public Optional<UploadStatus> find(String id) {
+    return Optional.ofNullable(uploads.get(id))
+        .filter(upload -> upload.tenantId.equals(TenantContext.current().tenantId()))
+        .map(Upload::status);
+  }
+
+  /**
+   * Writes a chunk at {@code offset}. With a checksum ({@code "<algorithm> <base64 digest>"}, md5,
+   * sha1 or sha256), the chunk is only kept if it matches. Without one, the bytes received before a
+   * broken connection are kept, and the client resumes from there.
+   *
+   * @return the new offset
+   * @throws NoSuchElementException if the current tenant has no such upload
+   * @throws UploadConflictException if {@code offset} is not the current offset, or another chunk
+   *     is being written
+   * @throws ChecksumMismatchException if the chunk does not match its checksum
+   * @throws IllegalArgumentException if the checksum is malformed or the chunk goes past the upload
+   *     length
+   */
+  public long append(String id, long offset, InputStream body, String checksum) throws IOException {
+    Upload upload = lock(id, "Upload " + id + " is receiving another chunk");
+    try {
+      MessageDigest digest = checksum != null ? digest(checksum) : null;
+      byte[] expected = checksum != null ? expectedDigest(checksum) : null;
+      if (upload.completing) {
+        throw new UploadConflictException("Upload " + id + " is being signed");
+      }
+      if (offset != upload.offset) {
+        throw new UploadConflictException(
+            "Upload-Offset " + offset + " does not match the current offset " + upload.offset);
+      }
+      long written = write(upload, offset, body, digest);
+      if (digest != null && !MessageDigest.isEqual(digest.digest(), expected)) {
+        truncate(upload, offset);
+        throw new ChecksumMismatchException("Chunk at offset " + offset + " failed its checksum");
+      }
+      upload.offset = offset + written;
+      upload.expiresAt = Instant.now().plus(uploadConfig.getExpireAfter());
+      return upload.offset;
+    } finally {
+      upload.lock.unlock();
+    }
+  }
+
+  private long write(Upload upload, long offset, InputStream body, MessageDigest digest)
+      throws IOException {
+    long written = 0;
+    ByteBuffer buffer = bufferPool.acquire(CHUNK_BUFFER_SIZE);
+    try (FileChannel channel = FileChannel.open(upload.file, StandardOpenOption.WRITE)) {
+      channel.position(offset);
+      ReadableByteChannel in = Channels.newChannel(body);
+      try {
+        while (in.read(buffer) >= 0) {
+          buffer.flip();
+          if (offset + written + buffer.remaining() > upload.length) {
+            throw new IllegalArgumentException(
+                "Chunk goes past the upload length of " + upload.length + " bytes");
+          }
+          if (digest != null) {
+            digest.update(buffer.duplicate());
+          }
+          while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+          }
+          buffer.clear();
+        }
+      } catch (IOException | RuntimeException e) {
+        if (digest != null || e instanceof IllegalArgumentException) {
+          channel.truncate(offset);
+        } else {
+          // Keep what arrived before the connection broke, the client resumes after it
+          upload.offset = offset + written;
+          upload.expiresAt = Instant.now().plus(uploadConfig.getExpireAfter());
+          logger.info(
+              "Upload {} interrupted at offset {}: {}", upload.id, upload.offset, e.getMessage());
+        }
+        throw e;
+      }
+    } finally {
+      bufferPool.release(buffer);
+    }
+    return written;
+  }
+
+  /**
+   * Starts completing a complete upload: its spool file, handed over as is, is signed while the
+   * upload stays known but takes no more chunks. The caller then either {@link #finish finishes}
+   * the upload, taking ownership of the file, or {@link #release releases} it for another attempt.
+   *
+   * @throws NoSuchElementException if the current tenant has no such upload
+   * @throws UploadConflictException if bytes are still missing, a chunk is being written, or the
+   *     upload is already being completed
+   */
+  public SignatureDocument complete(String id) {
+    Upload upload = lock(id, "Upload " + id + " is receiving a chunk");
+    try {
+      if (upload.offset != upload.length) {
+        throw new UploadConflictException(
+            "Upload " + id + " has " + upload.offset + " of " + upload.length + " bytes");
+      }
+      if (upload.completing) {
+        throw new UploadConflictException("Upload " + id + " is already being signed");
+      }
+      upload.completing = true;
+      return new SignatureDocument(upload.file, upload.fileName);
+    } finally {
+      upload.lock.unlock();
+    }
+  }
+
+  /** Forgets an upload being completed, whose spool file now belongs to the caller */
+  public void finish(String id) {
+    Upload upload = uploads.remove(id);
+    if (upload != null) {
+      logger.info("Resumable upload {} handed over for signature", id);
+    }
+  }
+
+  /**
+   * Returns an upload being completed to the complete state, its spool file kept, so that signing
+   * it can be retried. It expires as if its last chunk had just arrived.
+   */
+  public void release(String id) {
+    Upload upload = uploads.get(id);
+    if (upload == null) {
+      return;
+    }
+    upload.lock.lock();
+    try {
+      upload.completing = false;
+      upload.expiresAt = Instant.now().plus(uploadConfig.getExpireAfter());
+    } finally {
+      upload.lock.unlock();
+    }
+  }
+
+  /**
+   * Abandons an upload and deletes what was received
+   *
+   * @throws NoSuchElementException if the current tenant has no such upload
+   * @throws UploadConflictException if a chunk is being written, or the upload is being signed
+   */
+  public void delete(String id) throws IOException {
+    Upload upload = lock(id, "Upload " + id + " is receiving a chunk");
+    try {
+      if (upload.completing) {
+        throw new UploadConflictException("Upload " + id + " is being signed");
+      }
+      uploads.remove(id);
+      Files.deleteIfExists(upload.file);
+    } finally {
+      upload.lock.unlock();
+    }
+  }
+
+  @Scheduled(fixedDelay = 1, timeUnit = TimeUnit.MINUTES)
+  public void deleteExpired() {
+    Instant now = Instant.now();
+    for (Upload upload : uploads.values()) {
+      if (upload.expiresAt.isAfter(now) || !upload.lock.tryLock()) {
+        continue;
+      }
+      try {
+        // A chunk may have arrived between the check and the lock; uploads being signed are
+        // released or finished by their signature
+        if (upload.expiresAt.isAfter(now) || upload.completing) {
+          continue;
+        }
+        uploads.remove(upload.id);
+        Files.deleteIfExists(upload.file);
+        logger.info("Expired resumable upload {} deleted", upload.id);
+      } catch (IOException e) {
+        logger.warn("Failed to delete expired upload: {}", upload.file, e);
+      } finally {
+        upload.lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Locks an upload of the current tenant, checking it was not deleted while waiting for the lock
+   *
+   * @throws UploadConflictException with {@code busyMessage} if the upload is locked
+   */
+  private Upload lock(String id, String busyMessage) {
+    Upload upload = uploads.get(id);
+    if (upload == null || !upload.tenantId.equals(TenantContext.current().tenantId())) {
+      throw new NoSuchElementException("Unknown upload: " + id);
+    }
+    if (!upload.lock.tryLock()) {
+      throw new UploadConflictException(busyMessage);
+    }
+    if (uploads.get(id) != upload) {
+      upload.lock.unlock();
+      throw new NoSuchElementException("Unknown upload: " + id);
+    }
+    return upload;
+  }
+
+  private static void truncate(Upload upload, long offset) throws IOException {
+    try (FileChannel channel = FileChannel.open(upload.file, StandardOpenOption.WRITE)) {
+      channel.truncate(offset);
+    }
+  }
+
+  private static MessageDigest digest(String checksum) {
+    String algorithm = CHECKSUM_ALGORITHMS.get(checksum.split(" ", 2)[0].toLowerCase());
+    if (algorithm == null) {
+      throw new IllegalArgumentException("Unsupported checksum algorithm: " + checksum);
+    }
+    try {
+      return MessageDigest.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] expectedDigest(String checksum) {
+    String[] parts = checksum.split(" ", 2);
+    if (parts.length < 2) {
+      throw new IllegalArgumentException("Checksum has no digest: " + checksum);
+    }
+    return Base64.getDecoder().decode(parts[1].trim());
+  }
+
+  /** Spool files of uploads from before a restart cannot be resumed, their offsets are gone */
+  private void deleteLeftovers() {
+    if (!Files.isDirectory(uploadConfig.getDirectory())) {
+      return;
+    }
+    try (DirectoryStream<Path> files =
+        Files.newDirectoryStream(uploadConfig.getDirectory(), "*.part")) {
+      for (Path file : files) {
+        Files.deleteIfExists(file);
+      }
+    } catch (IOException e) {
+      logger.warn(
+          "Could not clean up the upload spool {}: {}",
+          uploadConfig.getDirectory(),
+          e.getMessage());
+    }
+  }
+
+  private static class Upload {
+
+    private final String id;
+    private final String tenantId;
+    private final String fileName;
+    private final long length;
+    private final Path file;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long offset;
+    private volatile Instant expiresAt;
+    // Set while the complete upload is being signed
+    private volatile boolean completing;
+
+    Upload(String id, String tenantId, String fileName, long length, Path file) {
+      this.id = id;
+      this.tenantId = tenantId;
+      this.fileName = fileName;
+      this.length = length;
+      this.file = file;
+    }
+
+    UploadStatus status() {
+      return new UploadStatus(id, fileName, length, offset);
+    }
+  }
+}
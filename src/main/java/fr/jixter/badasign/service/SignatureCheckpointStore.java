@@ -0,0 +1,311 @@
+package fr.jixter.badasign.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Progress of each Yousign signature flow, one JSON file per flow, so a failed flow can resume from
+ * its last completed step instead of creating a new signature request. A checkpoint is only written
+ * once the flow has created something on the Yousign side.
+ */
+public class SignatureCheckpointStore {
+
+  private static final Logger logger = LoggerFactory.getLogger(SignatureCheckpointStore.class);
+  private static final Pattern FLOW_ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]+");
+  private static final int DIGEST_BUFFER_SIZE = 64 * 1024;
+
+  private final Path directory;
+  private final Map<String, SignatureCheckpoint> checkpoints = new ConcurrentHashMap<>();
+  private final Map<String, Object> writeLocks = new ConcurrentHashMap<>();
+  private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+
+  /**
+   * The steps a signature flow has completed: the signature request, then one Yousign document per
+   * uploaded file (null until uploaded), then the signer, then activation. {@code tenantId} is the
+   * Yousign account the flow runs against; checkpoints written before tenants existed belong to the
+   * default one. {@code documentsDigest} identifies the documents the flow was started with, or the
+   * template and field values of a flow started from a Yousign template, which has no documents; it
+   * is null in checkpoints written before it was recorded.
+   */
+  public record SignatureCheckpoint(
+      String flowId,
+      String tenantId,
+      String documentsDigest,
+      String requestId,
+      List<String> documentIds,
+      String signerId,
+      boolean activated,
+      Instant updatedAt) {
+
+    public SignatureCheckpoint {
+      tenantId = Objects.requireNonNullElse(tenantId, TenantContext.DEFAULT_TENANT);
+    }
+
+    static SignatureCheckpoint start(
+        String flowId, String tenantId, String documentsDigest, int documentCount) {
+      return new SignatureCheckpoint(
+          flowId,
+          tenantId,
+          documentsDigest,
+          null,
+          Collections.nCopies(documentCount, null),
+          null,
+          false,
+          Instant.now());
+    }
+
+    public boolean documentsUploaded() {
+      return documentIds.stream().allMatch(Objects::nonNull);
+    }
+
+    public SignatureCheckpoint withRequestId(String requestId) {
+      return new SignatureCheckpoint(
+          flowId,
+          tenantId,
+          documentsDigest,
+          requestId,
+          documentIds,
+          signerId,
+          activated,
+          Instant.now());
+    }
+
+    public SignatureCheckpoint withDocumentId(int index, String documentId) {
+      List<String> ids = new ArrayList<>(documentIds);
+      ids.set(index, documentId);
+      return new SignatureCheckpoint(
+          flowId,
+          tenantId,
+          documentsDigest,
+          requestId,
+          Collections.unmodifiableList(ids),
+          signerId,
+          activated,
+          Instant.now());
+    }
+
+    public SignatureCheckpoint withSignerId(String signerId) {
+      return new SignatureCheckpoint(
+          flowId,
+          tenantId,
+          documentsDigest,
+          requestId,
+          documentIds,
+          signerId,
+          activated,
+          Instant.now());
+    }
+
+    public SignatureCheckpoint withActivated() {
+      return new SignatureCheckpoint(
+          flowId, tenantId, documentsDigest, requestId, documentIds, signerId, true, Instant.now());
+    }
+  }
+
+  public SignatureCheckpointStore(Path directory) {
+    this.directory = directory;
+    if (!Files.isDirectory(directory)) {
+      return;
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.json")) {
+      for (Path file : files) {
+        try {
+          SignatureCheckpoint checkpoint =
+              objectMapper.readValue(file.toFile(), SignatureCheckpoint.class);
+          checkpoints.put(checkpoint.flowId(), checkpoint);
+        } catch (IOException e) {
+          logger.warn("Ignoring unreadable signature checkpoint {}: {}", file, e.getMessage());
+        }
+      }
+      logger.info("Loaded {} signature checkpoints from {}", checkpoints.size(), directory);
+    } catch (IOException e) {
+      logger.warn("Could not list signature checkpoints in {}: {}", directory, e.getMessage());
+    }
+  }
+
+  /**
+   * Returns the checkpoint of a flow, starting a new one if the flow has none
+   *
+   * @throws IllegalArgumentException if the flow id is invalid
+   * @throws IdempotencyKeyConflictException if the flow was checkpointed for another tenant or with
+   *     other documents
+   */
+  public SignatureCheckpoint load(String flowId, String tenantId, List<SignatureDocument> documents)
+      throws IOException {
+    checkFlowId(flowId);
+    return load(flowId, tenantId, digest(documents), documents.size());
+  }
+
+  /**
+   * Returns the checkpoint of a flow started from a Yousign template, starting a new one if the
+   * flow has none
+   *
+   * @throws IllegalArgumentException if the flow id is invalid
+   * @throws IdempotencyKeyConflictException if the flow was checkpointed for another tenant, with
+   *     documents, or with another template or other field values
+   */
+  public SignatureCheckpoint load(
+      String flowId, String tenantId, String templateId, Map<String, String> data) {
+    checkFlowId(flowId);
+    return load(flowId, tenantId, digest(templateId, data), 0);
+  }
+
+  private SignatureCheckpoint load(
+      String flowId, String tenantId, String documentsDigest, int documentCount) {
+    SignatureCheckpoint checkpoint =
+        checkpoints.computeIfAbsent(
+            flowId, id -> SignatureCheckpoint.start(id, tenantId, documentsDigest, documentCount));
+    if (!checkpoint.tenantId().equals(tenantId)) {
+      throw new IdempotencyKeyConflictException("Flow " + flowId + " belongs to another tenant");
+    }
+    if (checkpoint.documentIds().size() != documentCount) {
+      throw new IdempotencyKeyConflictException(
+          "Flow "
+              + flowId
+              + " was started with "
+              + checkpoint.documentIds().size()
+              + " document(s), not "
+              + documentCount);
+    }
+    if (checkpoint.documentsDigest() != null
+        && !checkpoint.documentsDigest().equals(documentsDigest)) {
+      throw new IdempotencyKeyConflictException(
+          "Flow " + flowId + " was started with other documents");
+    }
+    return checkpoint;
+  }
+
+  private static void checkFlowId(String flowId) {
+    if (!FLOW_ID_PATTERN.matcher(flowId).matches()) {
+      throw new IllegalArgumentException("Invalid flow id: " + flowId);
+    }
+  }
+
+  public Optional<SignatureCheckpoint> find(String flowId) {
+    return Optional.ofNullable(checkpoints.get(flowId));
+  }
+
+  public Collection<SignatureCheckpoint> getAll() {
+    return List.copyOf(checkpoints.values());
+  }
+
+  /**
+   * Records a completed step and persists the checkpoint. Steps of the same flow are applied one at
+   * a time, so concurrent uploads each keep their document id.
+   *
+   * @throws IllegalStateException if the flow has no checkpoint, e.g. it was swept meanwhile
+   */
+  public SignatureCheckpoint update(String flowId, UnaryOperator<SignatureCheckpoint> step)
+      throws IOException {
+    SignatureCheckpoint updated =
+        checkpoints.computeIfPresent(flowId, (id, current) -> step.apply(current));
+    if (updated == null) {
+      throw new IllegalStateException("No checkpoint for signature flow " + flowId);
+    }
+    // Written outside the map's lock, under the flow's own: each write persists the latest state,
+    // so whichever of two concurrent steps writes last, the file holds both
+    synchronized (writeLock(flowId)) {
+      SignatureCheckpoint latest = checkpoints.get(flowId);
+      if (latest != null) {
+        write(latest);
+      }
+    }
+    return updated;
+  }
+
+  /** Forgets a flow, once it is complete or its draft has been cleaned up */
+  public void remove(String flowId) throws IOException {
+    synchronized (writeLock(flowId)) {
+      checkpoints.remove(flowId);
+      Files.deleteIfExists(directory.resolve(flowId + ".json"));
+    }
+    writeLocks.remove(flowId);
+  }
+
+  /** SHA-256 over the name and content of each document, in order */
+  private static String digest(List<SignatureDocument> documents) throws IOException {
+    MessageDigest digest = sha256();
+    byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+    for (SignatureDocument document : documents) {
+      byte[] name = document.fileName().getBytes(StandardCharsets.UTF_8);
+      digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(name.length).array());
+      digest.update(name);
+      digest.update(
+          ByteBuffer.allocate(Long.BYTES).putLong(Files.size(document.pdfPath())).array());
+      try (InputStream in = Files.newInputStream(document.pdfPath())) {
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+          digest.update(buffer, 0, read);
+        }
+      }
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  /** SHA-256 over the template id and the field values, in key order */
+  private static String digest(String templateId, Map<String, String> data) {
+    MessageDigest digest = sha256();
+    updateLengthPrefixed(digest, templateId);
+    for (Map.Entry<String, String> entry : new TreeMap<>(data).entrySet()) {
+      updateLengthPrefixed(digest, entry.getKey());
+      updateLengthPrefixed(digest, entry.getValue());
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  /** Null values have a length of -1, so they differ from any string */
+  private static void updateLengthPrefixed(MessageDigest digest, String value) {
+    byte[] bytes = value != null ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    int length = value != null ? bytes.length : -1;
+    digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(length).array());
+    digest.update(bytes);
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+
+  private Object writeLock(String flowId) {
+    return writeLocks.computeIfAbsent(flowId, id -> new Object());
+  }
+
+  private void write(SignatureCheckpoint checkpoint) throws IOException {
+    Files.createDirectories(directory);
+    // Write aside then move, so a crash never leaves a truncated checkpoint behind
+    Path temp = Files.createTempFile(directory, checkpoint.flowId() + "-", ".tmp");
+    objectMapper.writeValue(temp.toFile(), checkpoint);
+    Files.move(
+        temp,
+        directory.resolve(checkpoint.flowId() + ".json"),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+}
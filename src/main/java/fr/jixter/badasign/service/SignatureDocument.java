@@ -0,0 +1,6 @@
+package fr.jixter.badasign.service;
+
+import java.nio.file.Path;
+
+/** A PDF to upload into a signature request, with the file name shown to the signer */
+public record SignatureDocument(Path pdfPath, String fileName) {}
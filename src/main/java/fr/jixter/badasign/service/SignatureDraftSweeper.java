@@ -0,0 +1,96 @@
+package fr.jixter.badasign.service;
+
+import fr.jixter.badasign.config.YousignCheckpointConfig;
+import fr.jixter.badasign.service.SignatureCheckpointStore.SignatureCheckpoint;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+
+/**
+ * Cleans up signature flows nobody resumed. A flow left unfinished for {@code
+ * yousign.checkpoints.abandon-after} has its Yousign draft deleted and its checkpoint dropped, so
+ * it does not linger as an orphaned request; completed flows are forgotten after {@code
+ * yousign.checkpoints.retention}. Drafts are deleted with the account of the tenant that created
+ * them. Flows waiting in the {@link DeferredSignatureQueue} are left alone, however old: their
+ * replay resumes them.
+ */
+@Component
+public class SignatureDraftSweeper {
+
+  private static final Logger logger = LoggerFactory.getLogger(SignatureDraftSweeper.class);
+
+  private final SignatureCheckpointStore checkpointStore;
+  private final YousignServiceV3 yousignService;
+  private final YousignCheckpointConfig checkpointConfig;
+  private final DeferredSignatureQueue deferredSignatureQueue;
+
+  public SignatureDraftSweeper(
+      SignatureCheckpointStore checkpointStore,
+      YousignServiceV3 yousignService,
+      YousignCheckpointConfig checkpointConfig,
+      DeferredSignatureQueue deferredSignatureQueue) {
+    this.checkpointStore = checkpointStore;
+    this.yousignService = yousignService;
+    this.checkpointConfig = checkpointConfig;
+    this.deferredSignatureQueue = deferredSignatureQueue;
+  }
+
+  @Scheduled(fixedDelay = 5, timeUnit = TimeUnit.MINUTES)
+  public void sweep() {
+    Instant now = Instant.now();
+    for (SignatureCheckpoint checkpoint : checkpointStore.getAll()) {
+      if (deferredSignatureQueue.contains(checkpoint.flowId())) {
+        continue;
+      }
+      Duration age = Duration.between(checkpoint.updatedAt(), now);
+      try {
+        if (checkpoint.activated()) {
+          if (age.compareTo(checkpointConfig.getRetention()) > 0) {
+            checkpointStore.remove(checkpoint.flowId());
+          }
+        } else if (age.compareTo(checkpointConfig.getAbandonAfter()) > 0) {
+          deleteDraft(checkpoint);
+          checkpointStore.remove(checkpoint.flowId());
+        }
+      } catch (YousignUnavailableException e) {
+        logger.info("Yousign unavailable, abandoned drafts will be swept later");
+        return;
+      } catch (IOException | IllegalArgumentException e) {
+        // IllegalArgumentException: the flow's tenant is no longer configured
+        logger.warn(
+            "Failed to clean up signature flow {}: {}", checkpoint.flowId(), e.getMessage());
+      }
+    }
+  }
+
+  private void deleteDraft(SignatureCheckpoint checkpoint) throws IOException {
+    if (checkpoint.requestId() == null) {
+      return;
+    }
+    try {
+      new TenantContext(checkpoint.tenantId(), TenantContext.Lane.BATCH)
+          .run(
+              () -> {
+                yousignService.deleteSignatureRequest(checkpoint.requestId());
+                return null;
+              });
+      logger.info(
+          "Deleted draft signature request {} of abandoned flow {}",
+          checkpoint.requestId(),
+          checkpoint.flowId());
+    } catch (IOException e) {
+      if (!(e.getCause() instanceof HttpClientErrorException clientError
+          && clientError.getStatusCode().isSameCodeAs(HttpStatus.NOT_FOUND))) {
+        throw e;
+      }
+      // Already gone on the Yousign side
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package fr.jixter.badasign.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A signature backend: Yousign ({@link YousignServiceV3}) or local PAdES signing ({@link
+ * LocalPadesSigningService}), selected with {@code signature.backend}. Callers keep ownership of
+ * the files they pass in.
+ */
+public interface SignatureService {
+
+  /**
+   * Complete flow for one document
+   *
+   * @return the id to follow the signature with
+   */
+  String processDocumentForSignature(
+      Path pdfPath, String fileName, String signerEmail, String signerName) throws IOException;
+
+  /**
+   * Complete flow for several documents signed together
+   *
+   * @return the ids to follow the signature with: the one signature request holding every document
+   *     for Yousign, one signed document per given document, in order, for local signing
+   */
+  List<String> processDocumentsForSignature(
+      List<SignatureDocument> documents, String signerEmail, String signerName) throws IOException;
+
+  /**
+   * Complete flow for several documents, identified by {@code flowId} so that running it again with
+   * the same id, e.g. a client retry, does not start it over. Backends that keep no progress simply
+   * run the flow.
+   *
+   * @return the ids to follow the signature with, as {@link #processDocumentsForSignature(List,
+   *     String, String)}
+   * @throws IdempotencyKeyConflictException if the flow id was already used for a different flow
+   */
+  default List<String> processDocumentsForSignature(
+      String flowId, List<SignatureDocument> documents, String signerEmail, String signerName)
+      throws IOException {
+    return processDocumentsForSignature(documents, signerEmail, signerName);
+  }
+
+  /**
+   * Complete flow from a PDF template and its field values
+   *
+   * @throws IllegalArgumentException if the template does not exist
+   */
+  String processTemplateForSignature(
+      String templateId, Map<String, String> data, String signerEmail, String signerName)
+      throws IOException;
+
+  /**
+   * Complete flow from a PDF template, identified by {@code flowId} like {@link
+   * #processDocumentsForSignature(String, List, String, String)}. Backends that keep no progress
+   * simply run the flow.
+   *
+   * @throws IllegalArgumentException if the template does not exist
+   * @throws IdempotencyKeyConflictException if the flow id was already used for a different flow
+   */
+  default String processTemplateForSignature(
+      String flowId,
+      String templateId,
+      Map<String, String> data,
+      String signerEmail,
+      String signerName)
+      throws IOException {
+    return processTemplateForSignature(templateId, data, signerEmail, signerName);
+  }
+}
@@ -0,0 +1,19 @@
+package fr.jixter.badasign.service;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the current version of a template has no usable Yousign template for the tenant: none
+ * is mapped, the mapping is for another version, or the mapped one does not exist in the tenant's
+ * account. Callers fall back to filling the template here and uploading it.
+ */
+public class TemplateNotProvisionedException extends IOException {
+
+  public TemplateNotProvisionedException(String message) {
+    super(message);
+  }
+
+  public TemplateNotProvisionedException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
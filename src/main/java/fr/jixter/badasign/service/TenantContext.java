@@ -0,0 +1,64 @@
+package fr.jixter.badasign.service;
+
+import java.io.IOException;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+/**
+ * The tenant a thread works for and the lane its Yousign flows are scheduled in. Set per request
+ * from the {@code X-Tenant-Id} and {@code X-Priority} headers, and around background work (deferred
+ * replays, draft sweeps); the blocking facade hands it to the reactive calls through the Reactor
+ * context.
+ */
+public record TenantContext(String tenantId, Lane lane) {
+
+  public static final String DEFAULT_TENANT = "default";
+  public static final TenantContext DEFAULT = new TenantContext(DEFAULT_TENANT, Lane.INTERACTIVE);
+
+  private static final ThreadLocal<TenantContext> CURRENT = new ThreadLocal<>();
+
+  /** Interactive flows have someone waiting on them; batch flows only get the capacity left */
+  public enum Lane {
+    INTERACTIVE,
+    BATCH
+  }
+
+  @FunctionalInterface
+  public interface Task<T> {
+    T call() throws IOException;
+  }
+
+  /** The context of the current thread, the default tenant's interactive lane if none was set */
+  public static TenantContext current() {
+    TenantContext context = CURRENT.get();
+    return context != null ? context : DEFAULT;
+  }
+
+  public static void set(TenantContext context) {
+    CURRENT.set(context);
+  }
+
+  public static void clear() {
+    CURRENT.remove();
+  }
+
+  /** The context a reactive Yousign call was subscribed with */
+  public static TenantContext from(ContextView reactorContext) {
+    return reactorContext.getOrDefault(TenantContext.class, DEFAULT);
+  }
+
+  public Context toReactorContext() {
+    return Context.of(TenantContext.class, this);
+  }
+
+  /** Runs a task on the current thread as this tenant, restoring the previous context after */
+  public <T> T run(Task<T> task) throws IOException {
+    TenantContext previous = CURRENT.get();
+    CURRENT.set(this);
+    try {
+      return task.call();
+    } finally {
+      CURRENT.set(previous);
+    }
+  }
+}
@@ -0,0 +1,216 @@
+package fr.jixter.badasign.service;
+
+import fr.jixter.badasign.config.YousignTenantConfig;
+import fr.jixter.badasign.service.TenantContext.Lane;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+/**
+ * Shares the Yousign flow capacity ({@code yousign.scheduler.max-concurrent-flows} flows in flight)
+ * between tenants. Interactive flows always go first, and batch flows never take more than {@code
+ * batch-max-share} of the capacity, so a bulk run leaves room for interactive signatures. Within a
+ * lane, waiting flows are served by weighted fair queuing: each tenant gets capacity in proportion
+ * to its weight, however many flows it has queued.
+ *
+ * <p>Waiting takes no thread: a flow is only subscribed once it gets a slot.
+ */
+@Service
+public class TenantFairScheduler {
+
+  private static final Logger logger = LoggerFactory.getLogger(TenantFairScheduler.class);
+
+  private final YousignTenants tenants;
+  private final int maxConcurrentFlows;
+  private final int maxBatchFlows;
+
+  private final Map<Lane, LaneQueue> lanes = new EnumMap<>(Lane.class);
+  private int running;
+  private int runningBatch;
+  private long sequence;
+
+  public TenantFairScheduler(
+      YousignTenants tenants, YousignTenantConfig tenantConfig, MeterRegistry meterRegistry) {
+    this.tenants = tenants;
+    this.maxConcurrentFlows = tenantConfig.getMaxConcurrentFlows();
+    this.maxBatchFlows =
+        Math.max(1, (int) (tenantConfig.getMaxConcurrentFlows() * tenantConfig.getBatchMaxShare()));
+    for (Lane lane : Lane.values()) {
+      LaneQueue queue = new LaneQueue();
+      lanes.put(lane, queue);
+      Gauge.builder("badasign.yousign.scheduler.waiting", this, s -> s.waiting(lane))
+          .description("Yousign flows waiting for a slot")
+          .tag("lane", lane.name().toLowerCase())
+          .register(meterRegistry);
+    }
+    Gauge.builder("badasign.yousign.scheduler.running", this, TenantFairScheduler::getRunning)
+        .description("Yousign flows in flight")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Runs a flow once the tenant and lane of its subscriber context get a slot. Cancelling while
+   * waiting gives up the place in the queue; the slot is released when the flow terminates.
+   */
+  public <T> Mono<T> schedule(Mono<T> flow) {
+    return Mono.deferContextual(
+        context -> {
+          TenantContext tenant = TenantContext.from(context);
+          int weight = tenants.get(tenant.tenantId()).weight();
+          return Mono.usingWhen(
+              Mono.<Slot>create(sink -> enqueue(tenant, weight, sink)),
+              slot -> flow,
+              slot -> Mono.fromRunnable(() -> release(slot)));
+        });
+  }
+
+  private void enqueue(TenantContext tenant, int weight, MonoSink<Slot> sink) {
+    Waiter waiter;
+    List<Waiter> granted;
+    synchronized (this) {
+      LaneQueue queue = lanes.get(tenant.lane());
+      // Finish tag: the tenant's previous flow or the lane's virtual time, plus 1 / weight
+      double start =
+          Math.max(queue.virtualTime, queue.lastFinish.getOrDefault(tenant.tenantId(), 0.0));
+      double finish = start + 1.0 / weight;
+      queue.lastFinish.put(tenant.tenantId(), finish);
+      waiter = new Waiter(tenant, sink, start, finish, sequence++);
+      queue.waiters.add(waiter);
+      granted = dispatch();
+    }
+    sink.onCancel(() -> cancel(waiter));
+    grant(granted);
+  }
+
+  private void cancel(Waiter waiter) {
+    List<Waiter> granted;
+    synchronized (this) {
+      if (waiter.slot == null) {
+        lanes.get(waiter.tenant.lane()).waiters.remove(waiter);
+        return;
+      }
+      granted = List.of();
+    }
+    // Granted while being cancelled: the flow will never run
+    release(waiter.slot);
+    grant(granted);
+  }
+
+  private void release(Slot slot) {
+    if (!slot.released.compareAndSet(false, true)) {
+      return;
+    }
+    List<Waiter> granted;
+    synchronized (this) {
+      running--;
+      if (slot.lane == Lane.BATCH) {
+        runningBatch--;
+      }
+      granted = dispatch();
+    }
+    grant(granted);
+  }
+
+  /** Hands out the free slots, interactive lane first; called with the lock held */
+  private List<Waiter> dispatch() {
+    List<Waiter> granted = new ArrayList<>();
+    while (running < maxConcurrentFlows) {
+      Waiter next = lanes.get(Lane.INTERACTIVE).poll();
+      if (next == null && runningBatch < maxBatchFlows) {
+        next = lanes.get(Lane.BATCH).poll();
+      }
+      if (next == null) {
+        break;
+      }
+      running++;
+      if (next.tenant.lane() == Lane.BATCH) {
+        runningBatch++;
+      }
+      next.slot = new Slot(next.tenant.lane());
+      granted.add(next);
+    }
+    return granted;
+  }
+
+  /** Completes the granted waiters, outside the lock since their flows start right away */
+  private static void grant(List<Waiter> granted) {
+    for (Waiter waiter : granted) {
+      logger.debug(
+          "Yousign flow of tenant '{}' ({}) got a slot",
+          waiter.tenant.tenantId(),
+          waiter.tenant.lane());
+      waiter.sink.success(waiter.slot);
+    }
+  }
+
+  public synchronized int getRunning() {
+    return running;
+  }
+
+  public synchronized int waiting(Lane lane) {
+    return lanes.get(lane).waiters.size();
+  }
+
+  /** Waiting flows of a lane, by finish tag, and the lane's virtual time */
+  private static class LaneQueue {
+
+    private final PriorityQueue<Waiter> waiters =
+        new PriorityQueue<>(
+            Comparator.comparingDouble((Waiter w) -> w.finish).thenComparingLong(w -> w.sequence));
+    private final Map<String, Double> lastFinish = new HashMap<>();
+    private double virtualTime;
+
+    Waiter poll() {
+      Waiter waiter = waiters.poll();
+      if (waiter != null) {
+        virtualTime = waiter.start;
+      }
+      if (waiters.isEmpty()) {
+        // Idle lane: forget the tags so a tenant's past usage does not count against it
+        lastFinish.clear();
+        virtualTime = 0;
+      }
+      return waiter;
+    }
+  }
+
+  private static class Waiter {
+
+    private final TenantContext tenant;
+    private final MonoSink<Slot> sink;
+    private final double start;
+    private final double finish;
+    private final long sequence;
+    private Slot slot;
+
+    Waiter(TenantContext tenant, MonoSink<Slot> sink, double start, double finish, long sequence) {
+      this.tenant = tenant;
+      this.sink = sink;
+      this.start = start;
+      this.finish = finish;
+      this.sequence = sequence;
+    }
+  }
+
+  private static class Slot {
+
+    private final Lane lane;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    Slot(Lane lane) {
+      this.lane = lane;
+    }
+  }
+}
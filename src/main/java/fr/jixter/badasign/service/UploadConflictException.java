@@ -0,0 +1,12 @@
+package fr.jixter.badasign.service;
+
+/**
+ * Thrown when a resumable upload cannot take the request in its current state: a chunk at the wrong
+ * offset, a chunk while another one is being written, or finishing an incomplete upload
+ */
+public class UploadConflictException extends RuntimeException {
+
+  public UploadConflictException(String message) {
+    super(message);
+  }
+}
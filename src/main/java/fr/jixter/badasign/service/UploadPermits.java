@@ -0,0 +1,119 @@
+package fr.jixter.badasign.service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+/**
+ * Bounds the document uploads in flight across the node, whatever their tenant: each tenant's
+ * upload pool only bounds that tenant's uploads. Uploads wait for a permit in arrival order,
+ * without holding a thread, and fail with an {@link IOException} after {@code acquireTimeout}, like
+ * an upload waiting too long for a pooled connection.
+ */
+class UploadPermits {
+
+  private final int maxPermits;
+  private final Duration acquireTimeout;
+
+  private final Queue<Waiter> waiters = new ArrayDeque<>();
+  private int inFlight;
+
+  UploadPermits(int maxPermits, Duration acquireTimeout) {
+    this.maxPermits = maxPermits;
+    this.acquireTimeout = acquireTimeout;
+  }
+
+  /**
+   * Runs an upload once it gets a permit. Cancelling while waiting gives up the place in the queue;
+   * the permit is released when the upload terminates.
+   */
+  <T> Mono<T> withPermit(Mono<T> upload) {
+    return Mono.usingWhen(
+        Mono.<Permit>create(this::acquire)
+            .timeout(
+                acquireTimeout,
+                Mono.error(
+                    () ->
+                        new IOException(
+                            "Upload not started: all "
+                                + maxPermits
+                                + " upload permits still in use after "
+                                + acquireTimeout))),
+        permit -> upload,
+        permit -> Mono.fromRunnable(() -> release(permit)));
+  }
+
+  synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  synchronized int waiting() {
+    return waiters.size();
+  }
+
+  private void acquire(MonoSink<Permit> sink) {
+    Waiter waiter = new Waiter(sink);
+    Permit granted = null;
+    synchronized (this) {
+      if (inFlight >= maxPermits) {
+        waiters.add(waiter);
+      } else {
+        inFlight++;
+        granted = new Permit();
+        waiter.permit = granted;
+      }
+    }
+    sink.onCancel(() -> cancel(waiter));
+    if (granted != null) {
+      sink.success(granted);
+    }
+  }
+
+  private void cancel(Waiter waiter) {
+    synchronized (this) {
+      if (waiter.permit == null) {
+        waiters.remove(waiter);
+        return;
+      }
+    }
+    // Granted while being cancelled: the upload will never run
+    release(waiter.permit);
+  }
+
+  private void release(Permit permit) {
+    if (!permit.released.compareAndSet(false, true)) {
+      return;
+    }
+    Waiter next;
+    synchronized (this) {
+      next = waiters.poll();
+      if (next == null) {
+        inFlight--;
+        return;
+      }
+      next.permit = new Permit();
+    }
+    // The permit passes straight to the next upload, outside the lock since it starts right away
+    next.sink.success(next.permit);
+  }
+
+  private static class Waiter {
+
+    private final MonoSink<Permit> sink;
+    // Set once granted, with the lock held
+    private Permit permit;
+
+    Waiter(MonoSink<Permit> sink) {
+      this.sink = sink;
+    }
+  }
+
+  private static class Permit {
+
+    private final AtomicBoolean released = new AtomicBoolean();
+  }
+}
@@ -0,0 +1,699 @@
+package fr.jixter.badasign.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.jixter.badasign.config.YousignCheckpointConfig;
+import fr.jixter.badasign.config.YousignConfig;
+import fr.jixter.badasign.diagnostics.YousignCallEvent;
+import fr.jixter.badasign.service.DocumentUploadException.UploadFailure;
+import fr.jixter.badasign.service.SignatureCheckpointStore.SignatureCheckpoint;
+import fr.jixter.badasign.service.YousignTenants.YousignTenant;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.ratelimiter.RequestNotPermitted;
+import io.github.resilience4j.reactor.circuitbreaker.operator.CircuitBreakerOperator;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.MultipartBodyBuilder;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+/**
+ * Non-blocking Yousign v3 client on WebClient and Reactor Netty. Each call only holds an event-loop
+ * thread while bytes move, so many signature requests can be in flight at once. Calls go through a
+ * Yousign circuit breaker and are recorded as {@link YousignCallEvent}s, like the blocking {@link
+ * YousignServiceV3} facade built on top of it.
+ *
+ * <p>Each call is made for the tenant of the subscriber's {@link TenantContext}, with that tenant's
+ * credentials, connection pools, rate limit and circuit breaker.
+ */
+@Service
+public class YousignReactiveClient {
+
+  private static final Logger logger = LoggerFactory.getLogger(YousignReactiveClient.class);
+  private static final String SIGNATURE_REQUESTS = "/signature_requests/";
+  private static final int UPLOAD_CHUNK_SIZE = 64 * 1024;
+
+  private final YousignConfig yousignConfig;
+  private final YousignTenants tenants;
+  private final YousignCheckpointConfig checkpointConfig;
+  private final SignatureCheckpointStore checkpointStore;
+  private final UploadPermits uploadPermits;
+  // One run per flow id at a time, shared by the callers of a flow that is still running
+  private final Map<String, Mono<String>> runningFlows = new ConcurrentHashMap<>();
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  public YousignReactiveClient(
+      YousignConfig yousignConfig,
+      YousignTenants tenants,
+      YousignCheckpointConfig checkpointConfig,
+      SignatureCheckpointStore checkpointStore) {
+    this.yousignConfig = yousignConfig;
+    this.tenants = tenants;
+    this.checkpointConfig = checkpointConfig;
+    this.checkpointStore = checkpointStore;
+    this.uploadPermits =
+        new UploadPermits(
+            yousignConfig.getUploadMaxConcurrency(),
+            yousignConfig.getUploadPendingAcquireTimeout());
+  }
+
+  /** 1) Initiate an empty Signature Request */
+  public Mono<String> initiateSignatureRequest(String requestName) {
+    Map<String, Object> body = Map.of("name", requestName, "delivery_mode", "email");
+    return call(
+            "initiate",
+            0,
+            tenant ->
+                tenant
+                    .client()
+                    .post()
+                    .uri("/signature_requests")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(body))
+        .map(this::readId);
+  }
+
+  /**
+   * 1b) Initiate a Signature Request from a Yousign template. The signer fills the template's
+   * signer placeholder and each field value fills the read-only text field of the same label, so no
+   * document is uploaded.
+   */
+  public Mono<String> initiateSignatureRequestFromTemplate(
+      String requestName,
+      String remoteTemplateId,
+      String signerLabel,
+      Map<String, String> data,
+      String signerEmail,
+      String signerName) {
+    Map<String, Object> body =
+        templateRequestBody(
+            requestName, remoteTemplateId, signerLabel, data, signerEmail, signerName);
+    return call(
+            "initiateFromTemplate",
+            0,
+            tenant ->
+                tenant
+                    .client()
+                    .post()
+                    .uri("/signature_requests")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(body))
+        .map(this::readId);
+  }
+
+  /**
+   * Fetches a template of the current tenant's Yousign account, to check that it exists
+   *
+   * @return the template id
+   */
+  public Mono<String> getTemplate(String remoteTemplateId) {
+    return call(
+            "getTemplate", 0, tenant -> tenant.client().get().uri("/templates/" + remoteTemplateId))
+        .map(this::readId);
+  }
+
+  /**
+   * 2) Upload the PDF *into* that Signature Request, streamed from disk in chunks, once one of the
+   * node's {@code yousign.upload.max-concurrency} upload permits is free
+   */
+  public Mono<String> uploadDocumentToRequest(
+      String signatureRequestId, Path pdfPath, String fileName) {
+    return Mono.fromCallable(() -> Files.size(pdfPath))
+        .flatMap(
+            size ->
+                uploadPermits.withPermit(
+                    call(
+                        "upload",
+                        size,
+                        tenant ->
+                            tenant
+                                .uploadClient()
+                                .post()
+                                .uri(SIGNATURE_REQUESTS + signatureRequestId + "/documents")
+                                .contentType(MediaType.MULTIPART_FORM_DATA)
+                                .body(
+                                    BodyInserters.fromMultipartData(
+                                        uploadBody(pdfPath, fileName))))))
+        .map(this::readId);
+  }
+
+  /**
+   * 2b) Upload several PDFs into the same Signature Request, at most {@code
+   * yousign.upload.max-concurrency-per-request} at a time. Waits for every upload and reports all
+   * failures together.
+   *
+   * @return the Yousign document ids, in the order of the given documents
+   */
+  public Mono<List<String>> uploadDocumentsToRequest(
+      String signatureRequestId, List<SignatureDocument> documents) {
+    return uploadDocuments(
+        signatureRequestId,
+        documents,
+        Collections.nCopies(documents.size(), null),
+        (index, documentId) -> Mono.empty());
+  }
+
+  /**
+   * Uploads the documents that have no id yet, calling {@code onUploaded} with each new document id
+   * before the upload counts as done
+   */
+  private Mono<List<String>> uploadDocuments(
+      String signatureRequestId,
+      List<SignatureDocument> documents,
+      List<String> uploadedIds,
+      BiFunction<Integer, String, Mono<?>> onUploaded) {
+    return Flux.range(0, documents.size())
+        .flatMapSequential(
+            index -> {
+              SignatureDocument document = documents.get(index);
+              if (uploadedIds.get(index) != null) {
+                return Mono.just(new UploadResult(document, uploadedIds.get(index), null));
+              }
+              return uploadDocumentToRequest(
+                      signatureRequestId, document.pdfPath(), document.fileName())
+                  .flatMap(
+                      documentId ->
+                          onUploaded
+                              .apply(index, documentId)
+                              .thenReturn(new UploadResult(document, documentId, null)))
+                  .onErrorResume(e -> Mono.just(new UploadResult(document, null, e)));
+            },
+            yousignConfig.getUploadMaxConcurrencyPerRequest())
+        .collectList()
+        .flatMap(results -> collectDocumentIds(signatureRequestId, results));
+  }
+
+  private Mono<List<String>> collectDocumentIds(
+      String signatureRequestId, List<UploadResult> results) {
+    List<String> documentIds = new ArrayList<>(results.size());
+    List<UploadFailure> failures = new ArrayList<>();
+    // Results come in the order of the documents
+    for (int index = 0; index < results.size(); index++) {
+      UploadResult result = results.get(index);
+      if (result.error() != null) {
+        failures.add(new UploadFailure(index, result.document().fileName(), result.error()));
+      } else {
+        documentIds.add(result.documentId());
+      }
+    }
+
+    if (failures.isEmpty()) {
+      return Mono.just(documentIds);
+    }
+    if (failures.stream()
+        .allMatch(failure -> failure.error() instanceof YousignUnavailableException)) {
+      // The circuit opened under us: surface it as such so callers can fail fast or defer
+      return Mono.error(failures.get(0).error());
+    }
+    logger.warn(
+        "{}/{} uploads failed for signature request {}",
+        failures.size(),
+        results.size(),
+        signatureRequestId);
+    return Mono.error(new DocumentUploadException(signatureRequestId, failures));
+  }
+
+  /**
+   * 3) Add your signer with a signature field on each of the given documents
+   *
+   * @return the Yousign signer id
+   */
+  public Mono<String> addSigner(
+      String signatureRequestId, List<String> documentIds, String signerEmail, String signerName) {
+    Map<String, Object> body = signerBody(documentIds, signerEmail, signerName);
+    return call(
+            "addSigner",
+            0,
+            tenant ->
+                tenant
+                    .client()
+                    .post()
+                    .uri(SIGNATURE_REQUESTS + signatureRequestId + "/signers")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(body))
+        .map(this::readId);
+  }
+
+  /** 4) Activate */
+  public Mono<Void> activate(String signatureRequestId) {
+    return call(
+            "activate",
+            0,
+            tenant ->
+                tenant.client().post().uri(SIGNATURE_REQUESTS + signatureRequestId + "/activate"))
+        .then();
+  }
+
+  /** Deletes a signature request, e.g. a draft whose flow was abandoned */
+  public Mono<Void> deleteSignatureRequest(String signatureRequestId) {
+    return call(
+            "delete",
+            0,
+            tenant -> tenant.client().delete().uri(SIGNATURE_REQUESTS + signatureRequestId))
+        .then();
+  }
+
+  /** Complete flow for several documents, uploaded concurrently before the signer is added */
+  public Mono<String> processDocumentsForSignature(
+      List<SignatureDocument> documents, String signerEmail, String signerName) {
+    return processDocumentsForSignature(
+        UUID.randomUUID().toString(), documents, signerEmail, signerName);
+  }
+
+  /**
+   * Complete flow for several documents, checkpointed step by step under {@code flowId}. A failed
+   * step is retried up to {@code yousign.checkpoints.max-attempts} times, and running the flow
+   * again with the same id later (e.g. a deferred replay) also resumes it: completed steps are not
+   * repeated, so the signature request is created and each document uploaded only once. A completed
+   * flow run again returns its signature request id, and a flow run again while it is still running
+   * waits for that run instead of starting another.
+   *
+   * <p>Fails with {@link IdempotencyKeyConflictException} if {@code flowId} was used for another
+   * tenant's flow or for other documents.
+   */
+  public Mono<String> processDocumentsForSignature(
+      String flowId, List<SignatureDocument> documents, String signerEmail, String signerName) {
+    return Mono.deferContextual(
+            context ->
+                Mono.fromCallable(
+                        () ->
+                            checkpointStore.load(
+                                flowId, TenantContext.from(context).tenantId(), documents))
+                    .subscribeOn(Schedulers.boundedElastic()))
+        .flatMap(
+            checkpoint ->
+                shareFlow(flowId, () -> resumeFlow(flowId, documents, signerEmail, signerName)));
+  }
+
+  /**
+   * Complete flow from a Yousign template, checkpointed under {@code flowId} like {@link
+   * #processDocumentsForSignature(String, List, String, String)}: the signature request is created
+   * once, then activated, and running the flow again with the same id resumes or returns it. {@code
+   * remoteTemplateId} is only subscribed to while the request is still to be created, before the
+   * flow is checkpointed, so a template without a Yousign template leaves nothing behind.
+   *
+   * <p>Fails with {@link IdempotencyKeyConflictException} if {@code flowId} was used for another
+   * tenant's flow, for documents, or for another template or other field values.
+   */
+  public Mono<String> processTemplateForSignature(
+      String flowId,
+      String templateId,
+      Mono<String> remoteTemplateId,
+      String signerLabel,
+      Map<String, String> data,
+      String signerEmail,
+      String signerName) {
+    return Mono.deferContextual(
+        context -> {
+          String tenantId = TenantContext.from(context).tenantId();
+          // Once the request is created, resuming the flow no longer needs the template
+          boolean created =
+              checkpointStore.find(flowId).map(c -> c.requestId() != null).orElse(false);
+          Mono<Optional<String>> remoteId =
+              created ? Mono.just(Optional.empty()) : remoteTemplateId.map(Optional::of);
+          return remoteId.flatMap(
+              remote ->
+                  Mono.fromCallable(() -> checkpointStore.load(flowId, tenantId, templateId, data))
+                      .flatMap(
+                          checkpoint ->
+                              shareFlow(
+                                  flowId,
+                                  () ->
+                                      resumeTemplateFlow(
+                                          flowId,
+                                          remote.orElse(null),
+                                          signerLabel,
+                                          data,
+                                          signerEmail,
+                                          signerName))));
+        });
+  }
+
+  /** Runs a flow, or joins the run of the same flow id still in progress */
+  private Mono<String> shareFlow(String flowId, Supplier<Mono<String>> resume) {
+    return runningFlows.computeIfAbsent(
+        flowId, id -> runFlow(id, resume).doFinally(signal -> runningFlows.remove(id)).cache());
+  }
+
+  private Mono<String> runFlow(String flowId, Supplier<Mono<String>> resume) {
+    return Mono.defer(resume)
+        .retryWhen(
+            Retry.backoff(checkpointConfig.getMaxAttempts() - 1, checkpointConfig.getRetryBackoff())
+                .filter(YousignReactiveClient::isRetryable)
+                .doBeforeRetry(
+                    signal ->
+                        logger.info(
+                            "Resuming signature flow {} after: {}",
+                            flowId,
+                            signal.failure().getMessage()))
+                .onRetryExhaustedThrow((spec, signal) -> signal.failure()));
+  }
+
+  private Mono<String> resumeFlow(
+      String flowId, List<SignatureDocument> documents, String signerEmail, String signerName) {
+    return Mono.fromCallable(() -> current(flowId))
+        .flatMap(
+            checkpoint ->
+                checkpoint.requestId() != null
+                    ? Mono.just(checkpoint)
+                    : initiateSignatureRequest("Contract – " + signerName)
+                        .flatMap(requestId -> update(flowId, c -> c.withRequestId(requestId))))
+        .flatMap(
+            checkpoint ->
+                checkpoint.documentsUploaded()
+                    ? Mono.just(checkpoint)
+                    : uploadDocuments(
+                            checkpoint.requestId(),
+                            documents,
+                            checkpoint.documentIds(),
+                            (index, documentId) ->
+                                update(flowId, c -> c.withDocumentId(index, documentId)))
+                        .then(Mono.fromCallable(() -> current(flowId))))
+        .flatMap(
+            checkpoint ->
+                checkpoint.signerId() != null
+                    ? Mono.just(checkpoint)
+                    : addSigner(
+                            checkpoint.requestId(),
+                            checkpoint.documentIds(),
+                            signerEmail,
+                            signerName)
+                        .flatMap(signerId -> update(flowId, c -> c.withSignerId(signerId))))
+        .flatMap(
+            checkpoint ->
+                checkpoint.activated()
+                    ? Mono.just(checkpoint)
+                    : activate(checkpoint.requestId())
+                        .then(update(flowId, SignatureCheckpoint::withActivated)))
+        .map(SignatureCheckpoint::requestId);
+  }
+
+  private Mono<String> resumeTemplateFlow(
+      String flowId,
+      String remoteTemplateId,
+      String signerLabel,
+      Map<String, String> data,
+      String signerEmail,
+      String signerName) {
+    return Mono.fromCallable(() -> current(flowId))
+        .flatMap(
+            checkpoint ->
+                checkpoint.requestId() != null
+                    ? Mono.just(checkpoint)
+                    : initiateSignatureRequestFromTemplate(
+                            "Contract – " + signerName,
+                            remoteTemplateId,
+                            signerLabel,
+                            data,
+                            signerEmail,
+                            signerName)
+                        .flatMap(requestId -> update(flowId, c -> c.withRequestId(requestId))))
+        .flatMap(
+            checkpoint ->
+                checkpoint.activated()
+                    ? Mono.just(checkpoint)
+                    : activate(checkpoint.requestId())
+                        .then(update(flowId, SignatureCheckpoint::withActivated)))
+        .map(SignatureCheckpoint::requestId);
+  }
+
+  private SignatureCheckpoint current(String flowId) {
+    return checkpointStore
+        .find(flowId)
+        .orElseThrow(() -> new IllegalStateException("No checkpoint for signature flow " + flowId));
+  }
+
+  /** Persists a completed step off the event loop */
+  private Mono<SignatureCheckpoint> update(String flowId, UnaryOperator<SignatureCheckpoint> step) {
+    return Mono.fromCallable(() -> checkpointStore.update(flowId, step))
+        .subscribeOn(Schedulers.boundedElastic());
+  }
+
+  /**
+   * Whether resuming a failed flow may help: not when Yousign rejected the request, and not while
+   * the circuit is open, which callers handle by failing fast or deferring
+   */
+  private static boolean isRetryable(Throwable e) {
+    if (e instanceof YousignUnavailableException) {
+      return false;
+    }
+    if (e instanceof DocumentUploadException uploadException) {
+      return uploadException.getFailures().stream()
+          .anyMatch(failure -> isRetryable(failure.error()));
+    }
+    return e instanceof IOException && !(e.getCause() instanceof HttpClientErrorException);
+  }
+
+  /**
+   * Builds and serializes every Yousign request body without sending anything, so the JIT can
+   * compile the request-building code before real traffic arrives
+   */
+  public void dryRunRequestBuilding() throws IOException {
+    Map<String, Object> initiateBody =
+        Map.of("name", "Contract – Warm Up", "delivery_mode", "email");
+    objectMapper.writeValueAsBytes(initiateBody);
+
+    MultipartBodyBuilder uploadBody = new MultipartBodyBuilder();
+    uploadBody
+        .part("file", new byte[] {'%', 'P', 'D', 'F'}, MediaType.APPLICATION_PDF)
+        .filename("warmup.pdf");
+    uploadBody.part("nature", "signable_document");
+    uploadBody.build();
+
+    Map<String, Object> signerBody =
+        signerBody(List.of("document-1", "document-2"), "warmup@example.com", "Warm Up");
+    objectMapper.readTree(objectMapper.writeValueAsBytes(signerBody));
+
+    Map<String, Object> templateBody =
+        templateRequestBody(
+            "Contract – Warm Up",
+            "template-1",
+            "Signer",
+            Map.of("name", "Warm Up"),
+            "warmup@example.com",
+            "Warm Up");
+    objectMapper.writeValueAsBytes(templateBody);
+  }
+
+  /** Multipart body whose file part is read from disk chunk by chunk as it is written out */
+  private static MultiValueMap<String, HttpEntity<?>> uploadBody(Path pdfPath, String fileName) {
+    Flux<DataBuffer> content =
+        DataBufferUtils.read(pdfPath, DefaultDataBufferFactory.sharedInstance, UPLOAD_CHUNK_SIZE);
+    MultipartBodyBuilder builder = new MultipartBodyBuilder();
+    builder
+        .asyncPart("file", content, DataBuffer.class)
+        .filename(fileName)
+        .contentType(MediaType.APPLICATION_PDF);
+    builder.part("nature", "signable_document");
+    return builder.build();
+  }
+
+  private static Map<String, Object> templateRequestBody(
+      String requestName,
+      String remoteTemplateId,
+      String signerLabel,
+      Map<String, String> data,
+      String signerEmail,
+      String signerName) {
+    Map<String, Object> signer =
+        Map.of(
+            "label",
+            signerLabel,
+            "info",
+            signerInfo(signerEmail, signerName),
+            "signature_level",
+            "electronic_signature",
+            "signature_authentication_mode",
+            "no_otp");
+    List<Map<String, Object>> textFields =
+        data.entrySet().stream()
+            .map(entry -> Map.<String, Object>of("label", entry.getKey(), "text", entry.getValue()))
+            .toList();
+
+    return Map.of(
+        "name",
+        requestName,
+        "delivery_mode",
+        "email",
+        "template_id",
+        remoteTemplateId,
+        "template_placeholders",
+        Map.of("signers", List.of(signer), "read_only_text_fields", textFields));
+  }
+
+  private static Map<String, Object> signerInfo(String signerEmail, String signerName) {
+    String[] names = signerName.split(" ", 2);
+    return Map.of(
+        "first_name",
+        names[0],
+        "last_name",
+        names.length > 1 ? names[1] : "",
+        "email",
+        signerEmail,
+        "locale",
+        "fr");
+  }
+
+  private static Map<String, Object> signerBody(
+      List<String> documentIds, String signerEmail, String signerName) {
+    Map<String, Object> info = signerInfo(signerEmail, signerName);
+    List<Map<String, Object>> fields =
+        documentIds.stream()
+            .map(
+                documentId ->
+                    Map.<String, Object>of(
+                        "document_id", documentId,
+                        "type", "signature",
+                        "page", 1,
+                        "x", 100,
+                        "y", 100))
+            .toList();
+
+    return Map.of(
+        "info",
+        info,
+        "signature_level",
+        "electronic_signature",
+        "signature_authentication_mode",
+        "no_otp",
+        "fields",
+        fields);
+  }
+
+  private String readId(String responseBody) {
+    try {
+      return objectMapper.readTree(responseBody).get("id").asText();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Sends a Yousign request for the current tenant through its rate limiter and circuit breaker,
+   * and records it as a JFR event. Fails with {@link YousignUnavailableException} while the
+   * tenant's circuit is open, and with an {@link IOException} for any other failure.
+   */
+  private Mono<String> call(
+      String operation,
+      long requestBytes,
+      Function<YousignTenant, WebClient.RequestHeadersSpec<?>> request) {
+    return Mono.deferContextual(
+        context -> {
+          YousignTenant tenant = tenants.get(TenantContext.from(context).tenantId());
+          YousignCallEvent event = new YousignCallEvent();
+          event.begin();
+          event.operation = operation;
+          event.tenantId = tenant.id();
+          event.requestBytes = requestBytes;
+          return request
+              .apply(tenant)
+              .retrieve()
+              .toEntity(String.class)
+              .doOnNext(
+                  resp -> {
+                    event.httpStatus = resp.getStatusCode().value();
+                    event.responseBytes = responseBytes(resp);
+                  })
+              .map(resp -> resp.getBody() != null ? resp.getBody() : "")
+              .onErrorMap(WebClientResponseException.class, e -> recordResponseError(event, e))
+              .transformDeferred(CircuitBreakerOperator.of(tenant.circuitBreaker()))
+              // Outside the breaker: waiting for the rate limit is not a slow Yousign call
+              .transform(tenant::limit)
+              .onErrorMap(e -> toIOException(tenant, operation, e))
+              .doFinally(signal -> event.commit());
+        });
+  }
+
+  /** The response size as sent, like the bytes recorded for error responses */
+  private static long responseBytes(ResponseEntity<String> response) {
+    long contentLength = response.getHeaders().getContentLength();
+    if (contentLength >= 0) {
+      return contentLength;
+    }
+    return response.getBody() != null
+        ? response.getBody().getBytes(StandardCharsets.UTF_8).length
+        : 0;
+  }
+
+  /**
+   * Client errors are surfaced as {@link HttpClientErrorException}, which the circuit breaker
+   * ignores: a rejected request says nothing about Yousign's health
+   */
+  private static Throwable recordResponseError(
+      YousignCallEvent event, WebClientResponseException e) {
+    event.httpStatus = e.getStatusCode().value();
+    event.responseBytes = e.getResponseBodyAsByteArray().length;
+    if (e.getStatusCode().is4xxClientError()) {
+      return HttpClientErrorException.create(
+          e.getMessage(),
+          e.getStatusCode(),
+          e.getStatusText(),
+          e.getHeaders(),
+          e.getResponseBodyAsByteArray(),
+          null);
+    }
+    return e;
+  }
+
+  private static Throwable toIOException(YousignTenant tenant, String operation, Throwable e) {
+    if (e instanceof RequestNotPermitted) {
+      return new IOException(
+          "Yousign rate limit of tenant '"
+              + tenant.id()
+              + "' reached, "
+              + operation
+              + " not attempted",
+          e);
+    }
+    if (e instanceof CallNotPermittedException) {
+      return new YousignUnavailableException(
+          "Yousign is unavailable for tenant '"
+              + tenant.id()
+              + "' (circuit "
+              + tenant.circuitBreaker().getState()
+              + "), "
+              + operation
+              + " not attempted",
+          e);
+    }
+    if (e instanceof IOException) {
+      return e;
+    }
+    if (e instanceof UncheckedIOException unchecked) {
+      return unchecked.getCause();
+    }
+    return new IOException("Yousign " + operation + " failed: " + e.getMessage(), e);
+  }
+
+  private record UploadResult(SignatureDocument document, String documentId, Throwable error) {}
+}
@@ -1,173 +1,177 @@
 package fr.jixter.badasign.service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import fr.jixter.badasign.config.YousignConfig;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
-import lombok.RequiredArgsConstructor;
-import org.springframework.core.io.ByteArrayResource;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
-import org.springframework.util.LinkedMultiValueMap;
-import org.springframework.util.MultiValueMap;
-import org.springframework.web.client.RestTemplate;
-
+import reactor.core.Exceptions;
+import reactor.core.publisher.Mono;
+
+/**
+ * Blocking facade over {@link YousignReactiveClient}, for callers that run on their own thread
+ * (request threads, deferred drains). Each method waits for the matching non-blocking call, made
+ * for the calling thread's {@link TenantContext}. Complete flows also wait for a slot from the
+ * {@link TenantFairScheduler}.
+ */
 @Service
-@RequiredArgsConstructor
-public class YousignServiceV3 {
-
-  public static final String SIGNATURE_REQUESTS = "/signature_requests/";
-  private final YousignConfig yousignConfig;
-
-  private final ObjectMapper objectMapper = new ObjectMapper();
-  private final RestTemplate restTemplate = new RestTemplate();
+public class YousignServiceV3 implements SignatureService {
+
+  private final YousignReactiveClient reactiveClient;
+  private final YousignTemplateService templateService;
+  private final TenantFairScheduler scheduler;
+
+  public YousignServiceV3(
+      YousignReactiveClient reactiveClient,
+      YousignTemplateService templateService,
+      TenantFairScheduler scheduler) {
+    this.reactiveClient = reactiveClient;
+    this.templateService = templateService;
+    this.scheduler = scheduler;
+  }
 
   /** 1) Initiate an empty Signature Request */
   public String initiateSignatureRequest(String requestName) throws IOException {
-    Map<String, Object> body = Map.of("name", requestName, "delivery_mode", "email");
-    HttpHeaders headers = new HttpHeaders();
-    headers.setBearerAuth(yousignConfig.getApiKey());
-    HttpEntity<Map<String, Object>> req = new HttpEntity<>(body, headers);
-
-    String url = yousignConfig.getBaseUrl() + "/signature_requests";
-    ResponseEntity<String> resp = restTemplate.postForEntity(url, req, String.class);
-    if (!resp.getStatusCode().is2xxSuccessful()) {
-      throw new IOException("Failed to initiate signature request: " + resp.getStatusCode());
-    }
-    return objectMapper.readTree(resp.getBody()).get("id").asText();
+    return await(reactiveClient.initiateSignatureRequest(requestName));
   }
 
   /** 2) Upload the PDF *into* that Signature Request */
   public String uploadDocumentToRequest(String signatureRequestId, Path pdfPath, String fileName)
       throws IOException {
-
-    byte[] pdfBytes = Files.readAllBytes(pdfPath);
-    HttpEntity<MultiValueMap<String, Object>> req = getMultiValueMapHttpEntity(fileName, pdfBytes);
-
-    String url =
-        yousignConfig.getBaseUrl() + SIGNATURE_REQUESTS + signatureRequestId + "/documents";
-    ResponseEntity<String> resp = restTemplate.postForEntity(url, req, String.class);
-    if (!resp.getStatusCode().is2xxSuccessful()) {
-      throw new IOException("Failed to upload document: " + resp.getStatusCode());
-    }
-    return objectMapper.readTree(resp.getBody()).get("id").asText();
+    return await(reactiveClient.uploadDocumentToRequest(signatureRequestId, pdfPath, fileName));
   }
 
-  private HttpEntity<MultiValueMap<String, Object>> getMultiValueMapHttpEntity(
-      String fileName, byte[] pdfBytes) {
-
-    // 1a) wrap the PDF bytes in a Resource
-    ByteArrayResource fileAsResource =
-        new ByteArrayResource(pdfBytes) {
-          @Override
-          public String getFilename() {
-            return fileName;
-          }
-        };
-
-    // 1b) build the file–part headers
-    HttpHeaders filePartHeaders = new HttpHeaders();
-    filePartHeaders.setContentDispositionFormData("file", fileName);
-    filePartHeaders.setContentType(MediaType.APPLICATION_PDF);
-
-    // 1c) put the Resource + its headers into an HttpEntity
-    HttpEntity<ByteArrayResource> filePart = new HttpEntity<>(fileAsResource, filePartHeaders);
-
-    // 1d) likewise wrap your “nature” field (optional, but explicit)
-    HttpHeaders naturePartHeaders = new HttpHeaders();
-    naturePartHeaders.setContentDispositionFormData("nature", null);
-    HttpEntity<String> naturePart = new HttpEntity<>("signable_document", naturePartHeaders);
-
-    // 1e) assemble the multipart map
-    MultiValueMap<String, Object> form = new LinkedMultiValueMap<>();
-    form.add("file", filePart);
-    form.add("nature", naturePart);
-
-    // 1f) only set your auth header at the top level
-    HttpHeaders headers = new HttpHeaders();
-    headers.setBearerAuth(yousignConfig.getApiKey());
-
-    return new HttpEntity<>(form, headers);
+  /**
+   * 2b) Upload several PDFs into the same Signature Request concurrently, bounded per request and
+   * globally. Waits for every upload and reports all failures together.
+   *
+   * @return the Yousign document ids, in the order of the given documents
+   * @throws DocumentUploadException if one or more uploads failed
+   */
+  public List<String> uploadDocumentsToRequest(
+      String signatureRequestId, List<SignatureDocument> documents) throws IOException {
+    return await(reactiveClient.uploadDocumentsToRequest(signatureRequestId, documents));
   }
 
   /** 3) Add your signer and fields */
   public void addSigner(
       String signatureRequestId, String documentId, String signerEmail, String signerName)
       throws IOException {
-    Map<String, Object> body = getStringObjectMap(documentId, signerEmail, signerName);
-    HttpHeaders headers = new HttpHeaders();
-    headers.setContentType(MediaType.APPLICATION_JSON);
-    headers.setBearerAuth(yousignConfig.getApiKey());
-    HttpEntity<Map<String, Object>> req = new HttpEntity<>(body, headers);
-
-    String url = yousignConfig.getBaseUrl() + SIGNATURE_REQUESTS + signatureRequestId + "/signers";
-    ResponseEntity<String> resp = restTemplate.postForEntity(url, req, String.class);
-    if (!resp.getStatusCode().is2xxSuccessful()) {
-      throw new IOException("Failed to add signer: " + resp.getStatusCode());
-    }
-    objectMapper.readTree(resp.getBody()).get("id").asText();
-  }
-
-  private static Map<String, Object> getStringObjectMap(
-      String documentId, String signerEmail, String signerName) {
-    String[] names = signerName.split(" ", 2);
-    Map<String, Object> info =
-        Map.of(
-            "first_name",
-            names[0],
-            "last_name",
-            names.length > 1 ? names[1] : "",
-            "email",
-            signerEmail,
-            "locale",
-            "fr");
-    Map<String, Object> field =
-        Map.of(
-            "document_id", documentId,
-            "type", "signature",
-            "page", 1,
-            "x", 100,
-            "y", 100);
-
-    return Map.of(
-        "info",
-        info,
-        "signature_level",
-        "electronic_signature",
-        "signature_authentication_mode",
-        "no_otp",
-        "fields",
-        List.of(field));
+    addSigner(signatureRequestId, List.of(documentId), signerEmail, signerName);
+  }
+
+  /** 3b) Add your signer with a signature field on each of the given documents */
+  public void addSigner(
+      String signatureRequestId, List<String> documentIds, String signerEmail, String signerName)
+      throws IOException {
+    await(reactiveClient.addSigner(signatureRequestId, documentIds, signerEmail, signerName));
   }
 
   /** 4) Activate */
   public void activate(String signatureRequestId) throws IOException {
-    String url = yousignConfig.getBaseUrl() + SIGNATURE_REQUESTS + signatureRequestId + "/activate";
-    HttpHeaders headers = new HttpHeaders();
-    headers.setBearerAuth(yousignConfig.getApiKey());
-    HttpEntity<Void> req = new HttpEntity<>(headers);
-
-    ResponseEntity<String> resp = restTemplate.exchange(url, HttpMethod.POST, req, String.class);
-    if (!resp.getStatusCode().is2xxSuccessful()) {
-      throw new IOException("Failed to activate: " + resp.getStatusCode());
-    }
+    await(reactiveClient.activate(signatureRequestId));
+  }
+
+  /** Deletes a signature request, e.g. a draft whose flow was abandoned */
+  public void deleteSignatureRequest(String signatureRequestId) throws IOException {
+    await(reactiveClient.deleteSignatureRequest(signatureRequestId));
+  }
+
+  /**
+   * Builds and serializes every Yousign request body without sending anything, so the JIT can
+   * compile the request-building code before real traffic arrives
+   */
+  public void dryRunRequestBuilding() throws IOException {
+    reactiveClient.dryRunRequestBuilding();
   }
 
   /** Complete flow */
+  @Override
   public String processDocumentForSignature(
       Path pdfPath, String fileName, String signerEmail, String signerName) throws IOException {
+    return awaitFlow(
+        reactiveClient.processDocumentsForSignature(
+            List.of(new SignatureDocument(pdfPath, fileName)), signerEmail, signerName));
+  }
+
+  /**
+   * Complete flow for several documents, uploaded concurrently before the signer is added
+   *
+   * @return the id of the one signature request holding every document
+   */
+  @Override
+  public List<String> processDocumentsForSignature(
+      List<SignatureDocument> documents, String signerEmail, String signerName) throws IOException {
+    return List.of(
+        awaitFlow(reactiveClient.processDocumentsForSignature(documents, signerEmail, signerName)));
+  }
+
+  /**
+   * Complete flow for several documents, resumable: running it again with the same {@code flowId}
+   * continues from the last step that completed
+   */
+  @Override
+  public List<String> processDocumentsForSignature(
+      String flowId, List<SignatureDocument> documents, String signerEmail, String signerName)
+      throws IOException {
+    return List.of(
+        awaitFlow(
+            reactiveClient.processDocumentsForSignature(
+                flowId, documents, signerEmail, signerName)));
+  }
+
+  /**
+   * Complete flow from a Yousign server-side template, sending only the field values and signer
+   * data. Requires {@code yousign.templates.enabled}.
+   *
+   * @throws IllegalArgumentException if the template does not exist
+   */
+  @Override
+  public String processTemplateForSignature(
+      String templateId, Map<String, String> data, String signerEmail, String signerName)
+      throws IOException {
+    return awaitFlow(
+        templateService.processTemplateForSignature(templateId, data, signerEmail, signerName));
+  }
+
+  /**
+   * Complete flow from a Yousign server-side template, resumable: running it again with the same
+   * {@code flowId} returns the signature request the first run created
+   */
+  @Override
+  public String processTemplateForSignature(
+      String flowId,
+      String templateId,
+      Map<String, String> data,
+      String signerEmail,
+      String signerName)
+      throws IOException {
+    return awaitFlow(
+        templateService.processTemplateForSignature(
+            flowId, templateId, data, signerEmail, signerName));
+  }
 
-    String requestId = initiateSignatureRequest("Contract – " + signerName);
-    String documentId = uploadDocumentToRequest(requestId, pdfPath, fileName);
-    addSigner(requestId, documentId, signerEmail, signerName);
-    activate(requestId);
-    return requestId;
+  /** Waits for a complete flow once the scheduler lets it run */
+  private <T> T awaitFlow(Mono<T> flow) throws IOException {
+    return await(scheduler.schedule(flow));
+  }
+
+  /**
+   * Waits for a Yousign call made for the current tenant, rethrowing its {@link IOException} as is
+   */
+  private static <T> T await(Mono<T> call) throws IOException {
+    try {
+      return call.contextWrite(TenantContext.current().toReactorContext()).block();
+    } catch (RuntimeException e) {
+      Throwable cause = Exceptions.unwrap(e);
+      if (cause instanceof IOException ioException) {
+        throw ioException;
+      }
+      if (cause instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for Yousign", cause);
+      }
+      throw e;
+    }
   }
 }
@@ -0,0 +1,78 @@
+package fr.jixter.badasign.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Yousign templates provisioned for our PDF templates, read from a JSON file. Yousign templates
+ * are created in the Yousign app, with the signer placeholder and the read-only text fields the
+ * requests fill, so each entry names the version of our template it was built from: a changed
+ * template has no Yousign template until one is provisioned and mapped to its new version. The file
+ * is read again whenever it changes, so new mappings apply without a restart.
+ */
+public class YousignTemplateMappings {
+
+  private static final Logger logger = LoggerFactory.getLogger(YousignTemplateMappings.class);
+
+  private final Path file;
+  private volatile Map<String, RemoteTemplate> entries = Map.of();
+  // Modification time of the file the entries were read from, null while it does not exist
+  private FileTime loadedModified;
+
+  /** The Yousign template provisioned for a given version of one of our templates */
+  public record RemoteTemplate(String version, String remoteId) {}
+
+  public YousignTemplateMappings(Path file) {
+    this.file = file;
+    reloadIfChanged();
+  }
+
+  /**
+   * Returns the Yousign template mapped to a template, whatever its version
+   *
+   * @param key the template id, prefixed with {@code <tenant>/} for tenants other than the default
+   */
+  public Optional<RemoteTemplate> find(String key) {
+    reloadIfChanged();
+    return Optional.ofNullable(entries.get(key));
+  }
+
+  private synchronized void reloadIfChanged() {
+    FileTime modified = modifiedTime();
+    if (Objects.equals(modified, loadedModified)) {
+      return;
+    }
+    loadedModified = modified;
+    if (modified == null) {
+      logger.info("No Yousign template mappings at {}", file);
+      entries = Map.of();
+      return;
+    }
+    try {
+      Map<String, RemoteTemplate> loaded =
+          new ObjectMapper().readValue(file.toFile(), new TypeReference<>() {});
+      entries = Map.copyOf(loaded);
+      logger.info("Loaded {} Yousign template mappings from {}", loaded.size(), file);
+    } catch (IOException e) {
+      // Keep the previous mappings until the file is fixed
+      logger.warn("Ignoring unreadable Yousign template mappings {}: {}", file, e.getMessage());
+    }
+  }
+
+  private FileTime modifiedTime() {
+    try {
+      return Files.getLastModifiedTime(file);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,180 @@
+package fr.jixter.badasign.service;
+
+import fr.jixter.badasign.config.YousignTemplateConfig;
+import fr.jixter.badasign.service.PdfTemplateRegistry.PdfTemplate;
+import fr.jixter.badasign.service.YousignTemplateMappings.RemoteTemplate;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpClientErrorException;
+import reactor.core.publisher.Mono;
+
+/**
+ * Creates signature requests from Yousign server-side templates instead of uploading a filled PDF
+ * each time; only field values and signer data are sent per request. The Yousign templates are
+ * provisioned in the Yousign app and mapped to the version of our template they were built from in
+ * {@code yousign.templates.mapping-file}, separately for each tenant, as each tenant has its own
+ * Yousign account. Yousign is asked once whether a mapped template exists before it is first used.
+ * Templates without a usable Yousign template fail with {@link TemplateNotProvisionedException}, so
+ * that callers can fill and upload them instead.
+ */
+@Service
+public class YousignTemplateService {
+
+  private static final Logger logger = LoggerFactory.getLogger(YousignTemplateService.class);
+
+  private final YousignReactiveClient reactiveClient;
+  private final PdfTemplateRegistry templateRegistry;
+  private final YousignTemplateConfig templateConfig;
+  private final YousignTemplateMappings mappings;
+  // Yousign templates found in their tenant's account, and the checks in flight, shared by
+  // concurrent requests
+  private final Set<String> verified = ConcurrentHashMap.newKeySet();
+  private final Map<String, Mono<String>> verifications = new ConcurrentHashMap<>();
+
+  public YousignTemplateService(
+      YousignReactiveClient reactiveClient,
+      PdfTemplateRegistry templateRegistry,
+      YousignTemplateConfig templateConfig) {
+    this.reactiveClient = reactiveClient;
+    this.templateRegistry = templateRegistry;
+    this.templateConfig = templateConfig;
+    this.mappings = new YousignTemplateMappings(templateConfig.getMappingFile());
+  }
+
+  public boolean isEnabled() {
+    return templateConfig.isEnabled();
+  }
+
+  /**
+   * Complete flow from a template: creates the signature request from the Yousign template with the
+   * given field values, then activates it
+   *
+   * @return the signature request id
+   */
+  public Mono<String> processTemplateForSignature(
+      String templateId, Map<String, String> data, String signerEmail, String signerName) {
+    return processTemplateForSignature(
+        UUID.randomUUID().toString(), templateId, data, signerEmail, signerName);
+  }
+
+  /**
+   * Complete flow from a template, checkpointed under {@code flowId}: running it again with the
+   * same id, e.g. a client retry, resumes it or returns its signature request instead of creating
+   * another one, and an abandoned draft is swept like the drafts of uploaded documents
+   *
+   * @return the signature request id
+   */
+  public Mono<String> processTemplateForSignature(
+      String flowId,
+      String templateId,
+      Map<String, String> data,
+      String signerEmail,
+      String signerName) {
+    return reactiveClient.processTemplateForSignature(
+        flowId,
+        templateId,
+        remoteTemplateId(templateId),
+        templateConfig.getSignerLabel(),
+        data,
+        signerEmail,
+        signerName);
+  }
+
+  /**
+   * Returns the current tenant's Yousign template id for the current version of a template. Fails
+   * with a {@link TemplateNotProvisionedException} if that version has no Yousign template mapped,
+   * or if the mapped one does not exist in the tenant's account.
+   */
+  public Mono<String> remoteTemplateId(String templateId) {
+    return Mono.deferContextual(
+        context -> {
+          String tenantId = TenantContext.from(context).tenantId();
+          return Mono.fromCallable(() -> mappedTemplateId(tenantId, findTemplate(templateId)))
+              .flatMap(remoteId -> verify(tenantId, remoteId));
+        });
+  }
+
+  /** Default tenant entries use the plain template id */
+  private static String mappingKey(String tenantId, String templateId) {
+    return TenantContext.DEFAULT_TENANT.equals(tenantId) ? templateId : tenantId + "/" + templateId;
+  }
+
+  private String mappedTemplateId(String tenantId, PdfTemplate template) throws IOException {
+    String key = mappingKey(tenantId, template.id());
+    RemoteTemplate mapped =
+        mappings
+            .find(key)
+            .orElseThrow(
+                () ->
+                    new TemplateNotProvisionedException(
+                        "No Yousign template mapped to '"
+                            + key
+                            + "' in "
+                            + templateConfig.getMappingFile()
+                            + ": provision one for version "
+                            + template.version()
+                            + " in the Yousign app and map it"));
+    if (!mapped.version().equals(template.version())) {
+      throw new TemplateNotProvisionedException(
+          "Yousign template "
+              + mapped.remoteId()
+              + " is mapped to version "
+              + mapped.version()
+              + " of '"
+              + key
+              + "', but the current version is "
+              + template.version()
+              + ": provision one for it in the Yousign app and update "
+              + templateConfig.getMappingFile());
+    }
+    return mapped.remoteId();
+  }
+
+  private Mono<String> verify(String tenantId, String remoteId) {
+    String key = tenantId + "/" + remoteId;
+    if (verified.contains(key)) {
+      return Mono.just(remoteId);
+    }
+    return verifications.computeIfAbsent(
+        key,
+        k ->
+            reactiveClient
+                .getTemplate(remoteId)
+                .onErrorMap(
+                    YousignTemplateService::isNotFound,
+                    e ->
+                        new TemplateNotProvisionedException(
+                            "Yousign template "
+                                + remoteId
+                                + " mapped in "
+                                + templateConfig.getMappingFile()
+                                + " does not exist for tenant '"
+                                + tenantId
+                                + "'",
+                            e))
+                .doOnNext(
+                    id -> {
+                      verified.add(k);
+                      logger.info("Yousign template {} found for tenant '{}'", remoteId, tenantId);
+                    })
+                .doFinally(signal -> verifications.remove(k))
+                .cache());
+  }
+
+  private static boolean isNotFound(Throwable e) {
+    return e.getCause() instanceof HttpClientErrorException rejection
+        && rejection.getStatusCode().value() == 404;
+  }
+
+  private PdfTemplate findTemplate(String templateId) throws IOException {
+    return templateRegistry
+        .find(templateId)
+        .orElseThrow(() -> new IllegalArgumentException("Unknown template id: " + templateId));
+  }
+}
@@ -0,0 +1,224 @@
+package fr.jixter.badasign.service;
+
+import fr.jixter.badasign.config.YousignConfig;
+import fr.jixter.badasign.config.YousignTenantConfig;
+import fr.jixter.badasign.config.YousignTenantConfig.TenantSettings;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.ratelimiter.RateLimiter;
+import io.github.resilience4j.ratelimiter.RateLimiterConfig;
+import io.github.resilience4j.ratelimiter.RateLimiterRegistry;
+import io.github.resilience4j.reactor.ratelimiter.operator.RateLimiterOperator;
+import io.netty.channel.ChannelOption;
+import jakarta.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+/**
+ * The Yousign accounts requests can be made for: the {@code default} tenant from {@code
+ * yousign.api}, plus each tenant under {@code yousign.tenants}. Every tenant has its own
+ * credentials, connection pools, rate limiter and circuit breaker, so one tenant exhausting its
+ * quota or connections, or its account failing, does not hold back the others.
+ */
+@Service
+public class YousignTenants {
+
+  private static final Logger logger = LoggerFactory.getLogger(YousignTenants.class);
+
+  private final Map<String, YousignTenant> tenants = new HashMap<>();
+  private final List<ConnectionProvider> connectionProviders = new ArrayList<>();
+
+  /**
+   * One tenant's clients: {@code client} for the small JSON calls, {@code uploadClient} for
+   * document uploads, whose connection pool bounds the tenant's uploads in flight
+   */
+  public record YousignTenant(
+      String id,
+      WebClient client,
+      WebClient uploadClient,
+      RateLimiter rateLimiter,
+      CircuitBreaker circuitBreaker,
+      int weight) {
+
+    /** Waits, without holding a thread, for the tenant's rate limit to allow the call */
+    public <T> Mono<T> limit(Mono<T> call) {
+      return rateLimiter != null
+          ? call.transformDeferred(RateLimiterOperator.of(rateLimiter))
+          : call;
+    }
+  }
+
+  public YousignTenants(
+      YousignConfig yousignConfig,
+      YousignTenantConfig tenantConfig,
+      WebClient.Builder builder,
+      RateLimiterRegistry rateLimiterRegistry,
+      CircuitBreakerRegistry circuitBreakerRegistry) {
+    // Configured under resilience4j.circuitbreaker.instances.yousign, and shared by every tenant
+    CircuitBreaker defaultCircuitBreaker =
+        circuitBreakerRegistry.circuitBreaker(YousignConfig.CIRCUIT_BREAKER_NAME);
+    TenantSettings defaults =
+        new TenantSettings(
+            yousignConfig.getBaseUrl(),
+            yousignConfig.getApiKey(),
+            yousignConfig.getUploadMaxConcurrency(),
+            tenantConfig.getDefaultRateLimit(),
+            1);
+    register(
+        TenantContext.DEFAULT_TENANT,
+        defaults,
+        yousignConfig,
+        tenantConfig,
+        builder,
+        rateLimiterRegistry,
+        defaultCircuitBreaker);
+
+    tenantConfig
+        .getTenants()
+        .forEach(
+            (id, settings) -> {
+              if (settings.apiKey() == null || settings.apiKey().isBlank()) {
+                throw new IllegalStateException("Yousign tenant '" + id + "' has no api-key");
+              }
+              TenantSettings merged =
+                  new TenantSettings(
+                      Objects.requireNonNullElse(settings.baseUrl(), defaults.baseUrl()),
+                      settings.apiKey(),
+                      Objects.requireNonNullElse(
+                          settings.maxConnections(), defaults.maxConnections()),
+                      Objects.requireNonNullElse(settings.rateLimit(), 0),
+                      Objects.requireNonNullElse(settings.weight(), 1));
+              register(
+                  id,
+                  merged,
+                  yousignConfig,
+                  tenantConfig,
+                  builder,
+                  rateLimiterRegistry,
+                  circuitBreakerRegistry.circuitBreaker(
+                      YousignConfig.CIRCUIT_BREAKER_NAME + "-" + id,
+                      defaultCircuitBreaker.getCircuitBreakerConfig()));
+            });
+  }
+
+  private void register(
+      String id,
+      TenantSettings settings,
+      YousignConfig yousignConfig,
+      YousignTenantConfig tenantConfig,
+      WebClient.Builder builder,
+      RateLimiterRegistry rateLimiterRegistry,
+      CircuitBreaker circuitBreaker) {
+    boolean isDefault = TenantContext.DEFAULT_TENANT.equals(id);
+    ConnectionProvider jsonConnections =
+        ConnectionProvider.create(isDefault ? "yousign" : "yousign-" + id);
+    // The fair scheduler bounds the flows in flight, and each flow its uploads: more uploads than
+    // that waiting for a connection means something bypassed the scheduler, so fail them fast
+    int maxPendingUploads =
+        Math.max(
+            tenantConfig.getMaxConcurrentFlows()
+                * yousignConfig.getUploadMaxConcurrencyPerRequest(),
+            settings.maxConnections());
+    ConnectionProvider uploadConnections =
+        ConnectionProvider.builder(isDefault ? "yousign-upload" : "yousign-upload-" + id)
+            .maxConnections(settings.maxConnections())
+            .pendingAcquireMaxCount(maxPendingUploads)
+            .pendingAcquireTimeout(yousignConfig.getUploadPendingAcquireTimeout())
+            .build();
+    connectionProviders.add(jsonConnections);
+    connectionProviders.add(uploadConnections);
+
+    RateLimiter rateLimiter = null;
+    if (settings.rateLimit() > 0) {
+      rateLimiter =
+          rateLimiterRegistry.rateLimiter(
+              "yousign-" + id,
+              RateLimiterConfig.custom()
+                  .limitForPeriod(settings.rateLimit())
+                  .limitRefreshPeriod(tenantConfig.getRateLimitPeriod())
+                  .timeoutDuration(yousignConfig.getReadTimeout())
+                  .build());
+    }
+
+    circuitBreaker
+        .getEventPublisher()
+        .onStateTransition(
+            event ->
+                logger.warn(
+                    "Yousign circuit breaker of tenant '{}' transition: {}",
+                    id,
+                    event.getStateTransition()));
+
+    tenants.put(
+        id,
+        new YousignTenant(
+            id,
+            webClient(builder, yousignConfig, settings, jsonConnections),
+            webClient(builder, yousignConfig, settings, uploadConnections),
+            rateLimiter,
+            circuitBreaker,
+            settings.weight()));
+    logger.info(
+        "Yousign tenant '{}': baseUrl={}, maxConnections={}, rateLimit={}, weight={}",
+        id,
+        settings.baseUrl(),
+        settings.maxConnections(),
+        settings.rateLimit(),
+        settings.weight());
+  }
+
+  private static WebClient webClient(
+      WebClient.Builder builder,
+      YousignConfig yousignConfig,
+      TenantSettings settings,
+      ConnectionProvider connectionProvider) {
+    HttpClient httpClient =
+        HttpClient.create(connectionProvider)
+            .option(
+                ChannelOption.CONNECT_TIMEOUT_MILLIS,
+                Math.toIntExact(yousignConfig.getConnectTimeout().toMillis()))
+            .responseTimeout(yousignConfig.getReadTimeout());
+    return builder
+        .clone()
+        .baseUrl(settings.baseUrl())
+        .defaultHeaders(headers -> headers.setBearerAuth(settings.apiKey()))
+        .clientConnector(new ReactorClientHttpConnector(httpClient))
+        .build();
+  }
+
+  public Collection<YousignTenant> getAll() {
+    return tenants.values();
+  }
+
+  public boolean exists(String tenantId) {
+    return tenants.containsKey(tenantId);
+  }
+
+  /**
+   * @throws IllegalArgumentException if no such tenant is configured
+   */
+  public YousignTenant get(String tenantId) {
+    YousignTenant tenant = tenants.get(tenantId);
+    if (tenant == null) {
+      throw new IllegalArgumentException("Unknown tenant: " + tenantId);
+    }
+    return tenant;
+  }
+
+  @PreDestroy
+  public void dispose() {
+    connectionProviders.forEach(ConnectionProvider::dispose);
+  }
+}
@@ -0,0 +1,11 @@
+package fr.jixter.badasign.service;
+
+import java.io.IOException;
+
+/** Thrown when a Yousign call is not attempted because the circuit breaker is open */
+public class YousignUnavailableException extends IOException {
+
+  public YousignUnavailableException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
@@ -0,0 +1,81 @@
+package fr.jixter.badasign.util;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.tsp.TSPAlgorithms;
+import org.bouncycastle.tsp.TSPException;
+import org.bouncycastle.tsp.TimeStampRequestGenerator;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.bouncycastle.tsp.TimeStampTokenGenerator;
+
+/**
+ * In-process RFC 3161 timestamp authority stub with a self-signed certificate. It lets local
+ * signatures carry a signature timestamp (PAdES B-T) without a network round trip; the timestamps
+ * are only as trustworthy as the node's clock.
+ */
+public class LocalTimestampAuthority {
+
+  private final TimeStampTokenGenerator generator;
+  private final X509Certificate certificate;
+  private final AtomicLong serialNumber = new AtomicLong(System.currentTimeMillis());
+
+  private LocalTimestampAuthority(TimeStampTokenGenerator generator, X509Certificate certificate) {
+    this.generator = generator;
+    this.certificate = certificate;
+  }
+
+  /**
+   * @param policyOid the TSA policy the timestamps are issued under, e.g. one registered under the
+   *     organization's arc
+   * @throws IllegalArgumentException if the policy is not a valid object identifier
+   */
+  public static LocalTimestampAuthority selfSigned(String policyOid) throws IOException {
+    ASN1ObjectIdentifier policy = new ASN1ObjectIdentifier(policyOid);
+    try {
+      KeyPair keyPair = PadesSigner.generateKeyPair();
+      X509Certificate certificate =
+          PadesSigner.selfSignedCertificate(
+              keyPair, "CN=Badasign Local TSA", KeyPurposeId.id_kp_timeStamping);
+      TimeStampTokenGenerator generator =
+          new TimeStampTokenGenerator(
+              new JcaSimpleSignerInfoGeneratorBuilder()
+                  .build("SHA256withRSA", keyPair.getPrivate(), certificate),
+              new JcaDigestCalculatorProviderBuilder()
+                  .build()
+                  .get(new AlgorithmIdentifier(NISTObjectIdentifiers.id_sha256)),
+              policy);
+      generator.addCertificates(new JcaCertStore(List.of(certificate)));
+      return new LocalTimestampAuthority(generator, certificate);
+    } catch (GeneralSecurityException | OperatorCreationException | TSPException e) {
+      throw new IOException("Cannot create the local timestamp authority: " + e.getMessage(), e);
+    }
+  }
+
+  public X509Certificate getCertificate() {
+    return certificate;
+  }
+
+  /** Timestamps a SHA-256 digest */
+  public synchronized TimeStampToken timestamp(byte[] sha256Digest) throws TSPException {
+    TimeStampRequestGenerator requestGenerator = new TimeStampRequestGenerator();
+    requestGenerator.setCertReq(true);
+    return generator.generate(
+        requestGenerator.generate(TSPAlgorithms.SHA256, sha256Digest),
+        BigInteger.valueOf(serialNumber.incrementAndGet()),
+        new Date());
+  }
+}
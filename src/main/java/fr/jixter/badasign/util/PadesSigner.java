@@ -0,0 +1,309 @@
+package fr.jixter.badasign.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.SignatureOptions;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.ess.ESSCertIDv2;
+import org.bouncycastle.asn1.ess.SigningCertificateV2;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x500.style.IETFUtils;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.CMSTypedData;
+import org.bouncycastle.cms.DefaultSignedAttributeTableGenerator;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.SignerInformationStore;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.tsp.TSPException;
+
+/**
+ * Applies PAdES baseline signatures (ETSI.CAdES.detached) with a local key, as an incremental
+ * update so the signed bytes of the original document are kept as is.
+ *
+ * <p>The key, certificate chain and signed attributes that do not depend on the document are
+ * prepared once; each signature only hashes the document and signs. Signing is thread safe, so
+ * documents can be signed in parallel with the same signer. With a timestamp authority the
+ * signatures are B-T, otherwise B-B.
+ */
+public class PadesSigner {
+
+  private static final int SIGNATURE_SIZE = 8 * 1024;
+  private static final int TIMESTAMPED_SIGNATURE_SIZE = 16 * 1024;
+
+  private final PrivateKey privateKey;
+  private final List<X509Certificate> chain;
+  private final String signatureAlgorithm;
+  private final String signerName;
+  private final JcaCertStore certificates;
+  private final AttributeTable signingCertificate;
+  private final DigestCalculatorProvider digestCalculatorProvider;
+  private final LocalTimestampAuthority timestampAuthority;
+
+  /**
+   * @param timestampAuthority authority timestamping each signature value (B-T), or null for B-B
+   */
+  public PadesSigner(
+      PrivateKey privateKey,
+      List<X509Certificate> chain,
+      LocalTimestampAuthority timestampAuthority)
+      throws IOException {
+    this.privateKey = privateKey;
+    this.chain = List.copyOf(chain);
+    this.signatureAlgorithm =
+        "EC".equals(privateKey.getAlgorithm()) ? "SHA256withECDSA" : "SHA256withRSA";
+    this.timestampAuthority = timestampAuthority;
+    X509Certificate certificate = chain.get(0);
+    this.signerName = commonName(certificate);
+    try {
+      this.certificates = new JcaCertStore(this.chain);
+      this.digestCalculatorProvider = new JcaDigestCalculatorProviderBuilder().build();
+      // ESS signing-certificate-v2, binding the signature to the signer's certificate
+      byte[] certificateHash = sha256(certificate.getEncoded());
+      this.signingCertificate =
+          new AttributeTable(
+              new Attribute(
+                  PKCSObjectIdentifiers.id_aa_signingCertificateV2,
+                  new DERSet(new SigningCertificateV2(new ESSCertIDv2(certificateHash)))));
+    } catch (GeneralSecurityException | OperatorCreationException e) {
+      throw new IOException("Cannot prepare the signing certificate: " + e.getMessage(), e);
+    }
+  }
+
+  /** Loads the signing key and its chain from a PKCS#12 keystore */
+  public static PadesSigner fromKeyStore(
+      Path keystore, char[] password, String keyAlias, LocalTimestampAuthority timestampAuthority)
+      throws IOException {
+    try (InputStream in = Files.newInputStream(keystore)) {
+      KeyStore keyStore = KeyStore.getInstance("PKCS12");
+      keyStore.load(in, password);
+      String alias = keyAlias.isEmpty() ? firstKeyAlias(keyStore) : keyAlias;
+      Certificate[] chain = alias != null ? keyStore.getCertificateChain(alias) : null;
+      if (chain == null || !(keyStore.getKey(alias, password) instanceof PrivateKey key)) {
+        throw new IOException("No private key entry '" + keyAlias + "' in " + keystore);
+      }
+      return new PadesSigner(
+          key, Arrays.stream(chain).map(X509Certificate.class::cast).toList(), timestampAuthority);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Cannot load the signing key from " + keystore, e);
+    }
+  }
+
+  /** Generates a throwaway RSA key and self-signed certificate, for tests and local setups */
+  public static PadesSigner selfSigned(String subject, LocalTimestampAuthority timestampAuthority)
+      throws IOException {
+    try {
+      KeyPair keyPair = generateKeyPair();
+      X509Certificate certificate = selfSignedCertificate(keyPair, subject, null);
+      return new PadesSigner(keyPair.getPrivate(), List.of(certificate), timestampAuthority);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Cannot generate a signing key", e);
+    }
+  }
+
+  public X509Certificate getCertificate() {
+    return chain.get(0);
+  }
+
+  public boolean isTimestamped() {
+    return timestampAuthority != null;
+  }
+
+  /** Signs a PDF, writing the signed document to {@code output} */
+  public void sign(Path input, Path output, String reason) throws IOException {
+    try (PDDocument document = PDDocument.load(input.toFile());
+        SignatureOptions options = new SignatureOptions();
+        OutputStream out = Files.newOutputStream(output)) {
+      PDSignature signature = new PDSignature();
+      signature.setFilter(PDSignature.FILTER_ADOBE_PPKLITE);
+      signature.setSubFilter(PDSignature.SUBFILTER_ETSI_CADES_DETACHED);
+      signature.setName(signerName);
+      signature.setReason(reason);
+      // PAdES takes the claimed signing time from /M, not from a CMS signing-time attribute
+      signature.setSignDate(Calendar.getInstance());
+
+      options.setPreferredSignatureSize(
+          isTimestamped() ? TIMESTAMPED_SIGNATURE_SIZE : SIGNATURE_SIZE);
+      document.addSignature(signature, this::signContent, options);
+      document.saveIncremental(out);
+    }
+  }
+
+  /** Builds the detached CMS signature over the signed byte ranges of the document */
+  private byte[] signContent(InputStream content) throws IOException {
+    try {
+      CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+      generator.addSignerInfoGenerator(
+          new JcaSignerInfoGeneratorBuilder(digestCalculatorProvider)
+              .setSignedAttributeGenerator(
+                  parameters ->
+                      new DefaultSignedAttributeTableGenerator(signingCertificate)
+                          .getAttributes(parameters)
+                          .remove(CMSAttributes.signingTime))
+              .build(
+                  new JcaContentSignerBuilder(signatureAlgorithm).build(privateKey), chain.get(0)));
+      generator.addCertificates(certificates);
+      CMSSignedData signedData = generator.generate(new ContentStream(content), false);
+      if (timestampAuthority != null) {
+        signedData = addSignatureTimestamp(signedData);
+      }
+      return signedData.getEncoded(ASN1Encoding.DER);
+    } catch (CMSException | OperatorCreationException | GeneralSecurityException e) {
+      throw new IOException("PAdES signature failed: " + e.getMessage(), e);
+    }
+  }
+
+  /** Adds a signature-time-stamp over the signature value, turning B-B into B-T */
+  private CMSSignedData addSignatureTimestamp(CMSSignedData signedData)
+      throws IOException, GeneralSecurityException {
+    SignerInformation signer = signedData.getSignerInfos().getSigners().iterator().next();
+    byte[] token;
+    try {
+      token = timestampAuthority.timestamp(sha256(signer.getSignature())).getEncoded();
+    } catch (TSPException e) {
+      throw new IOException("Signature timestamp failed: " + e.getMessage(), e);
+    }
+    AttributeTable unsignedAttributes =
+        new AttributeTable(
+            new Attribute(
+                PKCSObjectIdentifiers.id_aa_signatureTimeStampToken,
+                new DERSet(ASN1Primitive.fromByteArray(token))));
+    signer = SignerInformation.replaceUnsignedAttributes(signer, unsignedAttributes);
+    return CMSSignedData.replaceSigners(
+        signedData, new SignerInformationStore(Collections.singletonList(signer)));
+  }
+
+  static KeyPair generateKeyPair() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    return generator.generateKeyPair();
+  }
+
+  /**
+   * Self-signed certificate valid for ten years
+   *
+   * @param extendedKeyUsage critical extended key usage, or null for a signing certificate
+   */
+  static X509Certificate selfSignedCertificate(
+      KeyPair keyPair, String subject, KeyPurposeId extendedKeyUsage)
+      throws GeneralSecurityException {
+    X500Name name = new X500Name(subject);
+    Instant now = Instant.now();
+    try {
+      X509v3CertificateBuilder builder =
+          new JcaX509v3CertificateBuilder(
+              name,
+              BigInteger.valueOf(now.toEpochMilli()),
+              Date.from(now.minus(Duration.ofMinutes(5))),
+              Date.from(now.plus(Duration.ofDays(3650))),
+              name,
+              keyPair.getPublic());
+      builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(false));
+      if (extendedKeyUsage == null) {
+        builder.addExtension(
+            Extension.keyUsage,
+            true,
+            new KeyUsage(KeyUsage.digitalSignature | KeyUsage.nonRepudiation));
+      } else {
+        builder.addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.digitalSignature));
+        builder.addExtension(
+            Extension.extendedKeyUsage, true, new ExtendedKeyUsage(extendedKeyUsage));
+      }
+      return new JcaX509CertificateConverter()
+          .getCertificate(
+              builder.build(
+                  new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+    } catch (IOException | OperatorCreationException e) {
+      throw new GeneralSecurityException("Cannot build certificate for " + subject, e);
+    }
+  }
+
+  static byte[] sha256(byte[] content) throws GeneralSecurityException {
+    return MessageDigest.getInstance("SHA-256").digest(content);
+  }
+
+  private static String firstKeyAlias(KeyStore keyStore) throws GeneralSecurityException {
+    for (String alias : Collections.list(keyStore.aliases())) {
+      if (keyStore.isKeyEntry(alias)) {
+        return alias;
+      }
+    }
+    return null;
+  }
+
+  private static String commonName(X509Certificate certificate) throws IOException {
+    try {
+      X500Name subject = new JcaX509CertificateHolder(certificate).getSubject();
+      var commonNames = subject.getRDNs(BCStyle.CN);
+      return commonNames.length > 0
+          ? IETFUtils.valueToString(commonNames[0].getFirst().getValue())
+          : subject.toString();
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Unreadable signing certificate", e);
+    }
+  }
+
+  /** The signed byte ranges, streamed into the signature digest without being buffered */
+  private record ContentStream(InputStream content) implements CMSTypedData {
+
+    @Override
+    public ASN1ObjectIdentifier getContentType() {
+      return CMSObjectIdentifiers.data;
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException {
+      content.transferTo(out);
+    }
+
+    @Override
+    public Object getContent() {
+      return content;
+    }
+  }
+}
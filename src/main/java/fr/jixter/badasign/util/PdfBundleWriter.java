@@ -0,0 +1,273 @@
+package fr.jixter.badasign.util;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.multipdf.PDFCloneUtility;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends filled documents into a single bundle PDF.
+ *
+ * <p>Fonts and XObjects are deduplicated by content hash, so a font or logo shared by every
+ * contract is stored once in the bundle. Each source document is deep-copied into the bundle's own
+ * storage when appended and can be closed right away. Annotations are not carried over: bundles are
+ * built from flattened contracts for printing and archiving.
+ */
+public class PdfBundleWriter implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(PdfBundleWriter.class);
+  private static final Set<COSName> SHARED_CATEGORIES = Set.of(COSName.FONT, COSName.XOBJECT);
+
+  private final PDDocument bundle;
+  private final Map<String, COSBase> sharedResources = new HashMap<>();
+  private int sharedHits;
+
+  /**
+   * @param memoryUsageSetting storage used for the bundle content, typically backed by a temp file
+   *     so large bundles do not sit on the heap
+   */
+  public PdfBundleWriter(MemoryUsageSetting memoryUsageSetting) {
+    this.bundle = new PDDocument(memoryUsageSetting);
+  }
+
+  /** Appends every page of the source document to the bundle */
+  public void append(PDDocument source) throws IOException {
+    // A fresh cloner per source, so the bundle never keeps references to closed documents
+    PDFCloneUtility cloner = new PDFCloneUtility(bundle);
+    Map<COSBase, String> hashes = new IdentityHashMap<>();
+    for (PDPage page : source.getPages()) {
+      appendPage(page, cloner, hashes);
+    }
+  }
+
+  /** Saves the bundle to the given file */
+  public void save(Path outputPath) throws IOException {
+    save(outputPath, false);
+  }
+
+  /**
+   * Saves the bundle to the given file
+   *
+   * @param linearized whether to write a linearized PDF, see {@link PdfLinearizer}
+   */
+  public void save(Path outputPath, boolean linearized) throws IOException {
+    if (linearized) {
+      try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(outputPath))) {
+        new PdfLinearizer(bundle).save(out);
+      }
+    } else {
+      bundle.save(outputPath.toFile());
+    }
+    logger.debug(
+        "Bundle saved with {} pages, {} shared resources reused {} times",
+        bundle.getNumberOfPages(),
+        sharedResources.size(),
+        sharedHits);
+  }
+
+  public int getPageCount() {
+    return bundle.getNumberOfPages();
+  }
+
+  /** Number of resource references that were served from an already copied resource */
+  public int getSharedHits() {
+    return sharedHits;
+  }
+
+  @Override
+  public void close() throws IOException {
+    bundle.close();
+  }
+
+  private void appendPage(PDPage page, PDFCloneUtility cloner, Map<COSBase, String> hashes)
+      throws IOException {
+    COSDictionary source = page.getCOSObject();
+    COSDictionary target = new COSDictionary();
+    for (Map.Entry<COSName, COSBase> entry : source.entrySet()) {
+      COSName key = entry.getKey();
+      if (COSName.PARENT.equals(key)
+          || COSName.RESOURCES.equals(key)
+          || COSName.ANNOTS.equals(key)) {
+        continue;
+      }
+      target.setItem(key, cloner.cloneForNewDocument(entry.getValue()));
+    }
+
+    PDPage copy = new PDPage(target);
+    // Inheritable attributes may live on the source page tree, resolve them explicitly
+    copy.setMediaBox(page.getMediaBox());
+    copy.setCropBox(page.getCropBox());
+    copy.setRotation(page.getRotation());
+    // A page may have no resources at all, e.g. a blank separator page
+    PDResources resources = page.getResources();
+    copy.setResources(
+        new PDResources(
+            resources != null
+                ? copyResources(resources.getCOSObject(), cloner, hashes)
+                : new COSDictionary()));
+    bundle.addPage(copy);
+  }
+
+  /** Copies a resource dictionary, sharing fonts and XObjects with previously appended pages */
+  private COSDictionary copyResources(
+      COSDictionary resources, PDFCloneUtility cloner, Map<COSBase, String> hashes)
+      throws IOException {
+    COSDictionary copy = new COSDictionary();
+    for (Map.Entry<COSName, COSBase> category : resources.entrySet()) {
+      COSBase value = resolve(category.getValue());
+      if (SHARED_CATEGORIES.contains(category.getKey()) && value instanceof COSDictionary named) {
+        COSDictionary sharedNamed = new COSDictionary();
+        for (Map.Entry<COSName, COSBase> entry : named.entrySet()) {
+          sharedNamed.setItem(entry.getKey(), share(resolve(entry.getValue()), cloner, hashes));
+        }
+        copy.setItem(category.getKey(), sharedNamed);
+      } else {
+        copy.setItem(category.getKey(), cloner.cloneForNewDocument(value));
+      }
+    }
+    return copy;
+  }
+
+  /** Returns the bundle copy of a resource, reusing an identical one when already present */
+  private COSBase share(COSBase resource, PDFCloneUtility cloner, Map<COSBase, String> hashes)
+      throws IOException {
+    if (!(resource instanceof COSDictionary)) {
+      return cloner.cloneForNewDocument(resource);
+    }
+
+    String hash = hashes.get(resource);
+    if (hash == null) {
+      hash = contentHash(resource);
+      hashes.put(resource, hash);
+    }
+
+    COSBase shared = sharedResources.get(hash);
+    if (shared != null) {
+      sharedHits++;
+      return shared;
+    }
+
+    if (resource instanceof COSStream stream
+        && COSName.FORM.equals(stream.getCOSName(COSName.SUBTYPE))) {
+      shared = copyFormXObject(stream, cloner, hashes);
+    } else {
+      shared = cloner.cloneForNewDocument(resource);
+    }
+    sharedResources.put(hash, shared);
+    return shared;
+  }
+
+  /**
+   * Copies a form XObject by hand so that the fonts and images of its own resources are shared too.
+   * Flattened fields are form XObjects that differ per contract while their fonts do not.
+   */
+  private COSStream copyFormXObject(
+      COSStream source, PDFCloneUtility cloner, Map<COSBase, String> hashes) throws IOException {
+    COSStream copy = bundle.getDocument().createCOSStream();
+    for (Map.Entry<COSName, COSBase> entry : source.entrySet()) {
+      COSBase value = resolve(entry.getValue());
+      if (COSName.RESOURCES.equals(entry.getKey()) && value instanceof COSDictionary resources) {
+        copy.setItem(COSName.RESOURCES, copyResources(resources, cloner, hashes));
+      } else if (!COSName.LENGTH.equals(entry.getKey())) {
+        copy.setItem(entry.getKey(), cloner.cloneForNewDocument(value));
+      }
+    }
+    try (InputStream in = source.createRawInputStream();
+        OutputStream out = copy.createRawOutputStream()) {
+      in.transferTo(out);
+    }
+    return copy;
+  }
+
+  private static COSBase resolve(COSBase base) {
+    return base instanceof COSObject object ? object.getObject() : base;
+  }
+
+  /** Computes a SHA-256 over the canonical form of a COS object graph */
+  private static String contentHash(COSBase base) throws IOException {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest(base, digest, Collections.newSetFromMap(new IdentityHashMap<>()));
+      return HexFormat.of().formatHex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+
+  private static void digest(COSBase base, MessageDigest digest, Set<COSBase> path)
+      throws IOException {
+    COSBase object = resolve(base);
+    if (object == null) {
+      digest.update((byte) 'z');
+      return;
+    }
+    if (!path.add(object)) {
+      // Back-reference to an object already being hashed
+      digest.update((byte) 'r');
+      return;
+    }
+
+    if (object instanceof COSDictionary dictionary) {
+      digest.update((byte) (dictionary instanceof COSStream ? 's' : 'd'));
+      for (COSName key : dictionary.keySet().stream().sorted().toList()) {
+        if (COSName.PARENT.equals(key)) {
+          continue;
+        }
+        digest.update(key.getName().getBytes(StandardCharsets.UTF_8));
+        digest(dictionary.getItem(key), digest, path);
+      }
+      if (dictionary instanceof COSStream stream) {
+        try (InputStream in = stream.createRawInputStream()) {
+          byte[] buffer = new byte[8192];
+          int read;
+          while ((read = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+          }
+        }
+      }
+    } else if (object instanceof COSArray array) {
+      digest.update((byte) 'a');
+      for (int i = 0; i < array.size(); i++) {
+        digest(array.get(i), digest, path);
+      }
+    } else if (object instanceof COSString string) {
+      digest.update((byte) 't');
+      digest.update(string.getBytes());
+    } else if (object instanceof COSName name) {
+      digest.update((byte) 'n');
+      digest.update(name.getName().getBytes(StandardCharsets.UTF_8));
+    } else {
+      digest.update((byte) 'v');
+      digest.update(object.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    // Separator so that adjacent values cannot collide
+    digest.update((byte) ';');
+    path.remove(object);
+  }
+}
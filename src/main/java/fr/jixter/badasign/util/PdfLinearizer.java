@@ -0,0 +1,866 @@
+package fr.jixter.badasign.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdfwriter.COSWriter;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+/**
+ * Writes a document as a linearized PDF ("fast web view", ISO 32000-1 annex F). The objects needed
+ * to show the first page come right after the header, followed by a hint stream telling the viewer
+ * where every other page and shared object lives, so a viewer fetching the file by byte ranges can
+ * display page 1 once the first part has arrived.
+ *
+ * <p>Objects are classified and ordered the way qpdf does, and the hint tables follow annex F.4,
+ * with offsets given as if the hint stream were absent. The file is written without object streams
+ * or cross-reference streams, and inheritable page attributes are moved down to the pages, which
+ * modifies the document. Fonts loaded for subsetting are not subset: templates only use standard or
+ * fully embedded fonts.
+ */
+public class PdfLinearizer {
+
+  private static final Set<COSName> INHERITABLE =
+      Set.of(COSName.RESOURCES, COSName.MEDIA_BOX, COSName.CROP_BOX, COSName.ROTATE);
+  private static final Set<COSName> INDIRECT_ELEMENTS =
+      Set.of(COSName.KIDS, COSName.ANNOTS, COSName.FIELDS);
+  private static final Set<COSName> OPEN_DOCUMENT_KEYS =
+      Set.of(
+          COSName.VIEWER_PREFERENCES,
+          COSName.PAGE_MODE,
+          COSName.THREADS,
+          COSName.OPEN_ACTION,
+          COSName.ACRO_FORM);
+  private static final COSName THUMB = COSName.getPDFName("Thumb");
+  private static final COSName USE_OUTLINES = COSName.getPDFName("UseOutlines");
+  private static final byte[] HEADER_COMMENT = {
+    '%', (byte) 0xE2, (byte) 0xE3, (byte) 0xCF, (byte) 0xD3, '\n'
+  };
+
+  private final PDDocument document;
+  private final COSDictionary root;
+  private final COSBase info;
+  private final List<COSDictionary> pages = new ArrayList<>();
+
+  private final Map<COSBase, Integer> references = new IdentityHashMap<>();
+  private final Set<COSBase> indirect = newIdentitySet();
+  private final List<COSBase> indirectInOrder = new ArrayList<>();
+  private final Map<COSBase, Set<User>> users = new IdentityHashMap<>();
+  private final Map<User, List<COSBase>> objectsByUser = new LinkedHashMap<>();
+  private final Map<COSBase, Integer> numbers = new IdentityHashMap<>();
+  private final Map<COSBase, Long> lengths = new IdentityHashMap<>();
+  private final Map<COSStream, Long> streamLengths = new IdentityHashMap<>();
+
+  private enum UserType {
+    PAGE,
+    THUMB,
+    ROOT_KEY,
+    TRAILER_KEY,
+    ROOT
+  }
+
+  /** Something that needs an object: a page, a catalog or trailer entry, or the catalog itself */
+  private record User(UserType type, int page, COSName key) {}
+
+  public PdfLinearizer(PDDocument document) {
+    this.document = document;
+    this.root = document.getDocumentCatalog().getCOSObject();
+    this.info = resolve(document.getDocument().getTrailer().getItem(COSName.INFO));
+    for (PDPage page : document.getPages()) {
+      pages.add(page.getCOSObject());
+    }
+  }
+
+  /** Writes the linearized document, leaving the stream open */
+  public void save(OutputStream output) throws IOException {
+    if (document.isEncrypted()) {
+      throw new IOException("Encrypted documents cannot be linearized");
+    }
+    if (pages.isEmpty()) {
+      throw new IOException("Documents without pages cannot be linearized");
+    }
+
+    pushInheritableAttributes();
+    countReferences(root, true, false);
+    if (info instanceof COSDictionary) {
+      countReferences(info, true, false);
+    }
+    collectUsers();
+    new Layout().write(output);
+  }
+
+  /** Copies attributes inherited from the page tree onto each page, as annex F requires */
+  private void pushInheritableAttributes() {
+    Set<COSDictionary> nodes = newIdentitySet();
+    for (COSDictionary page : pages) {
+      for (COSDictionary node = parent(page); node != null; node = parent(node)) {
+        if (!nodes.add(node)) {
+          break;
+        }
+      }
+      for (COSName key : INHERITABLE) {
+        for (COSDictionary node = parent(page);
+            node != null && !page.containsKey(key);
+            node = parent(node)) {
+          if (node.containsKey(key)) {
+            page.setItem(key, node.getItem(key));
+          }
+        }
+      }
+    }
+    for (COSDictionary node : nodes) {
+      for (COSName key : INHERITABLE) {
+        node.removeItem(key);
+      }
+    }
+  }
+
+  private static COSDictionary parent(COSDictionary node) {
+    return resolve(node.getItem(COSName.PARENT)) instanceof COSDictionary parent ? parent : null;
+  }
+
+  /**
+   * Walks the object graph to decide which objects get an object number: streams, objects that were
+   * indirect in the source, objects referenced from several places, and the objects the
+   * specification requires to be indirect. Everything else is written inline.
+   */
+  private void countReferences(COSBase base, boolean forceIndirect, boolean indirectElements) {
+    COSBase value = resolve(base);
+    if (!(value instanceof COSDictionary) && !(value instanceof COSArray)) {
+      return;
+    }
+    if (forceIndirect || base instanceof COSObject || value instanceof COSStream) {
+      markIndirect(value);
+    }
+    if (references.merge(value, 1, Integer::sum) > 1) {
+      markIndirect(value);
+      return;
+    }
+
+    if (value instanceof COSDictionary dictionary) {
+      COSName type = dictionary.getCOSName(COSName.TYPE);
+      if (COSName.PAGE.equals(type) || COSName.PAGES.equals(type)) {
+        markIndirect(dictionary);
+      }
+      for (Map.Entry<COSName, COSBase> entry : dictionary.entrySet()) {
+        if (!(dictionary instanceof COSStream && COSName.LENGTH.equals(entry.getKey()))) {
+          countReferences(entry.getValue(), false, INDIRECT_ELEMENTS.contains(entry.getKey()));
+        }
+      }
+    } else {
+      for (COSBase element : (COSArray) value) {
+        countReferences(element, indirectElements, false);
+      }
+    }
+  }
+
+  private void markIndirect(COSBase object) {
+    if (indirect.add(object)) {
+      indirectInOrder.add(object);
+    }
+  }
+
+  /** Records which pages and document-level entries use each indirect object */
+  private void collectUsers() {
+    for (int i = 0; i < pages.size(); i++) {
+      markUsers(new User(UserType.PAGE, i, null), pages.get(i), true, newIdentitySet());
+    }
+    if (info instanceof COSDictionary) {
+      markUsers(new User(UserType.TRAILER_KEY, 0, COSName.INFO), info, false, newIdentitySet());
+    }
+    for (Map.Entry<COSName, COSBase> entry : root.entrySet()) {
+      User user = new User(UserType.ROOT_KEY, 0, entry.getKey());
+      markUsers(user, entry.getValue(), false, newIdentitySet());
+    }
+    addUser(new User(UserType.ROOT, 0, null), root);
+  }
+
+  private void markUsers(User user, COSBase base, boolean top, Set<COSBase> visited) {
+    COSBase value = resolve(base);
+    if (!(value instanceof COSDictionary) && !(value instanceof COSArray)) {
+      return;
+    }
+    boolean pageNode = false;
+    if (value instanceof COSDictionary dictionary
+        && COSName.PAGE.equals(dictionary.getCOSName(COSName.TYPE))) {
+      // Other pages are users of their own, never part of this one
+      if (!top) {
+        return;
+      }
+      pageNode = true;
+    }
+    if (indirect.contains(value)) {
+      if (!visited.add(value)) {
+        return;
+      }
+      addUser(user, value);
+    }
+
+    if (value instanceof COSDictionary dictionary) {
+      for (Map.Entry<COSName, COSBase> entry : dictionary.entrySet()) {
+        COSName key = entry.getKey();
+        if (pageNode && COSName.PARENT.equals(key)) {
+          continue;
+        }
+        User valueUser =
+            pageNode && THUMB.equals(key) ? new User(UserType.THUMB, user.page(), null) : user;
+        markUsers(valueUser, entry.getValue(), false, visited);
+      }
+    } else {
+      for (COSBase element : (COSArray) value) {
+        markUsers(user, element, false, visited);
+      }
+    }
+  }
+
+  private void addUser(User user, COSBase object) {
+    users.computeIfAbsent(object, o -> new LinkedHashSet<>()).add(user);
+    objectsByUser.computeIfAbsent(user, u -> new ArrayList<>()).add(object);
+  }
+
+  private static <T> Set<T> newIdentitySet() {
+    return Collections.newSetFromMap(new IdentityHashMap<>());
+  }
+
+  private static COSBase resolve(COSBase base) {
+    return base instanceof COSObject object ? object.getObject() : base;
+  }
+
+  /** Object order, numbering and offsets of the linearized file */
+  private class Layout {
+
+    /** Catalog and document-level objects needed to open the file */
+    private final List<COSBase> part4 = new ArrayList<>();
+
+    /** First page object, followed by the objects used by the first page */
+    private final List<COSBase> part6 = new ArrayList<>();
+
+    /** Every other page object, each followed by the objects only that page uses */
+    private final List<COSBase> part7 = new ArrayList<>();
+
+    /** Objects shared by several pages after the first */
+    private final List<COSBase> part8 = new ArrayList<>();
+
+    /** Everything else, starting with the page tree */
+    private final List<COSBase> part9 = new ArrayList<>();
+
+    private final int[] privateObjects = new int[pages.size()];
+    private final Map<COSBase, Integer> sharedIndex = new IdentityHashMap<>();
+    private final Map<COSBase, Long> offsets = new IdentityHashMap<>();
+
+    private int firstPageSectionStart;
+    private int size;
+    private byte[] header;
+    private COSBase fileId;
+
+    Layout() {
+      classify();
+      number();
+    }
+
+    private void classify() {
+      List<COSBase> firstPagePrivate = new ArrayList<>();
+      List<COSBase> firstPageShared = new ArrayList<>();
+      Set<COSBase> otherPagePrivate = newIdentitySet();
+      List<COSBase> openDocument = new ArrayList<>();
+      List<COSBase> outlines = new ArrayList<>();
+      List<COSBase> other = new ArrayList<>();
+
+      for (COSBase object : indirectInOrder) {
+        boolean isRoot = false;
+        boolean inOpenDocument = false;
+        boolean inOutlines = false;
+        boolean inFirstPage = false;
+        int otherPages = 0;
+        int thumbs = 0;
+        int others = 0;
+        for (User user : users.getOrDefault(object, Set.of())) {
+          switch (user.type()) {
+            case ROOT -> isRoot = true;
+            case PAGE -> {
+              if (user.page() == 0) {
+                inFirstPage = true;
+              } else {
+                otherPages++;
+              }
+            }
+            case THUMB -> thumbs++;
+            case ROOT_KEY -> {
+              if (OPEN_DOCUMENT_KEYS.contains(user.key())) {
+                inOpenDocument = true;
+              } else if (COSName.OUTLINES.equals(user.key())) {
+                inOutlines = true;
+              } else {
+                others++;
+              }
+            }
+            case TRAILER_KEY -> others++;
+          }
+        }
+
+        if (isRoot) {
+          continue;
+        } else if (inOutlines) {
+          outlines.add(object);
+        } else if (inOpenDocument) {
+          openDocument.add(object);
+        } else if (inFirstPage && others == 0 && otherPages == 0 && thumbs == 0) {
+          firstPagePrivate.add(object);
+        } else if (inFirstPage) {
+          firstPageShared.add(object);
+        } else if (otherPages == 1 && others == 0 && thumbs == 0) {
+          otherPagePrivate.add(object);
+        } else if (otherPages > 1) {
+          part8.add(object);
+        } else {
+          other.add(object);
+        }
+      }
+
+      part4.add(root);
+      part4.addAll(openDocument);
+
+      part6.add(pages.get(0));
+      firstPagePrivate.remove(pages.get(0));
+      part6.addAll(firstPagePrivate);
+      part6.addAll(firstPageShared);
+      boolean outlinesFirst = USE_OUTLINES.equals(root.getCOSName(COSName.PAGE_MODE));
+      if (outlinesFirst) {
+        part6.addAll(outlines);
+      }
+
+      for (int i = 1; i < pages.size(); i++) {
+        COSDictionary page = pages.get(i);
+        part7.add(page);
+        otherPagePrivate.remove(page);
+        for (COSBase object : objectsByUser.get(new User(UserType.PAGE, i, null))) {
+          if (otherPagePrivate.remove(object)) {
+            part7.add(object);
+            privateObjects[i]++;
+          }
+        }
+      }
+
+      // The page tree goes first in part 9
+      Set<COSBase> pageTree = newIdentitySet();
+      pageTree.addAll(
+          objectsByUser.getOrDefault(new User(UserType.ROOT_KEY, 0, COSName.PAGES), List.of()));
+      for (COSBase object : other) {
+        if (pageTree.contains(object)) {
+          part9.add(object);
+        }
+      }
+      if (!outlinesFirst) {
+        part9.addAll(outlines);
+      }
+      for (COSBase object : other) {
+        if (!pageTree.contains(object)) {
+          part9.add(object);
+        }
+      }
+
+      for (COSBase object : part6) {
+        sharedIndex.put(object, sharedIndex.size());
+      }
+      for (COSBase object : part8) {
+        sharedIndex.put(object, sharedIndex.size());
+      }
+    }
+
+    /** Numbers the main section first (parts 7 to 9), then the first page section */
+    private void number() {
+      int next = 1;
+      for (List<COSBase> part : List.of(part7, part8, part9)) {
+        for (COSBase object : part) {
+          numbers.put(object, next++);
+        }
+      }
+      firstPageSectionStart = next++; // linearization dictionary
+      for (COSBase object : part4) {
+        numbers.put(object, next++);
+      }
+      next++; // hint stream
+      for (COSBase object : part6) {
+        numbers.put(object, next++);
+      }
+      size = next;
+    }
+
+    private int hintStreamNumber() {
+      return firstPageSectionStart + part4.size() + 1;
+    }
+
+    void write(OutputStream output) throws IOException {
+      header = header();
+      fileId = fileId();
+
+      // Measure every object once; hint offsets are computed as if the hint stream were absent
+      long firstXrefOffset = header.length + linearizationDictionary(0, 0, 0, 0, 0).length;
+      long cursor = firstXrefOffset + firstPageXref(new long[0], 0).length;
+      for (COSBase object : part4) {
+        cursor = place(object, cursor);
+      }
+      long hintOffset = cursor;
+      for (List<COSBase> part : List.of(part6, part7, part8, part9)) {
+        for (COSBase object : part) {
+          cursor = place(object, cursor);
+        }
+      }
+
+      byte[] hintStream = hintStream();
+      long hintLength = hintStream.length;
+      long mainXrefOffset = cursor + hintLength;
+      byte[] mainXref = mainXref(hintLength, firstXrefOffset);
+      long fileLength = mainXrefOffset + mainXref.length;
+      COSBase lastOfFirstPage = part6.get(part6.size() - 1);
+      long firstPageEnd = offsets.get(lastOfFirstPage) + lengths.get(lastOfFirstPage) + hintLength;
+      long firstEntryOffset = mainXrefOffset + ("xref\n0 " + firstPageSectionStart).length();
+
+      long[] firstPageOffsets = new long[size - firstPageSectionStart];
+      firstPageOffsets[0] = header.length;
+      int index = 1;
+      for (COSBase object : part4) {
+        firstPageOffsets[index++] = offsets.get(object);
+      }
+      firstPageOffsets[index++] = hintOffset;
+      for (COSBase object : part6) {
+        firstPageOffsets[index++] = offsets.get(object) + hintLength;
+      }
+
+      CountingOutputStream out = new CountingOutputStream(output);
+      out.write(header);
+      out.write(
+          linearizationDictionary(
+              fileLength, hintOffset, hintLength, firstPageEnd, firstEntryOffset));
+      out.write(firstPageXref(firstPageOffsets, mainXrefOffset));
+      for (COSBase object : part4) {
+        writeObject(object, out);
+      }
+      out.write(hintStream);
+      for (List<COSBase> part : List.of(part6, part7, part8, part9)) {
+        for (COSBase object : part) {
+          writeObject(object, out);
+        }
+      }
+      out.write(mainXref);
+      if (out.count != fileLength) {
+        throw new IllegalStateException(
+            "Linearized output is " + out.count + " bytes, expected " + fileLength);
+      }
+    }
+
+    private long place(COSBase object, long offset) throws IOException {
+      CountingOutputStream counter = new CountingOutputStream(OutputStream.nullOutputStream());
+      writeObject(object, counter);
+      offsets.put(object, offset);
+      lengths.put(object, counter.count);
+      return offset + counter.count;
+    }
+
+    /** Actual offset of an object of the main section, which comes after the hint stream */
+    private long offset(COSBase object, long hintLength) {
+      return offsets.get(object) + hintLength;
+    }
+
+    private byte[] header() {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      out.writeBytes(
+          ascii(String.format(Locale.ROOT, "%%PDF-%.1f\n", Math.max(document.getVersion(), 1.4f))));
+      out.writeBytes(HEADER_COMMENT);
+      return out.toByteArray();
+    }
+
+    private COSBase fileId() {
+      COSBase id = resolve(document.getDocument().getTrailer().getItem(COSName.ID));
+      if (id instanceof COSArray array && array.size() == 2) {
+        return array;
+      }
+      byte[] bytes = new byte[16];
+      new SecureRandom().nextBytes(bytes);
+      COSString part = new COSString(bytes);
+      part.setForceHexForm(true);
+      COSArray generated = new COSArray();
+      generated.add(part);
+      generated.add(part);
+      return generated;
+    }
+
+    /** Linearization parameters, written with fixed-width numbers so its length never changes */
+    private byte[] linearizationDictionary(
+        long fileLength, long hintOffset, long hintLength, long firstPageEnd, long firstEntry) {
+      return ascii(
+          String.format(
+              Locale.ROOT,
+              "%d 0 obj\n<< /Linearized 1 /L %-10d /H [ %-10d %-10d ] /O %-10d /E %-10d /N %-10d"
+                  + " /T %-10d >>\nendobj\n",
+              firstPageSectionStart,
+              fileLength,
+              hintOffset,
+              hintLength,
+              numbers.get(part6.get(0)),
+              firstPageEnd,
+              pages.size(),
+              firstEntry));
+    }
+
+    /**
+     * Cross-reference section of the first page objects, with the trailer pointing to the main one
+     */
+    private byte[] firstPageXref(long[] entryOffsets, long mainXrefOffset) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      int count = size - firstPageSectionStart;
+      out.writeBytes(ascii("xref\n" + firstPageSectionStart + " " + count + "\n"));
+      for (int i = 0; i < count; i++) {
+        out.writeBytes(xrefEntry(i < entryOffsets.length ? entryOffsets[i] : 0));
+      }
+      out.writeBytes(ascii("trailer\n<< /Size " + size + " /Root " + numbers.get(root) + " 0 R"));
+      if (info instanceof COSDictionary) {
+        out.writeBytes(ascii(" /Info "));
+        writeValue(info, out);
+      }
+      out.writeBytes(ascii(" /ID "));
+      writeDirect(fileId, out, false);
+      out.writeBytes(
+          ascii(
+              String.format(
+                  Locale.ROOT, " /Prev %-10d >>\nstartxref\n0\n%%%%EOF\n", mainXrefOffset)));
+      return out.toByteArray();
+    }
+
+    private byte[] mainXref(long hintLength, long firstXrefOffset) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      out.writeBytes(ascii("xref\n0 " + firstPageSectionStart + "\n"));
+      out.writeBytes(ascii("0000000000 65535 f\r\n"));
+      for (List<COSBase> part : List.of(part7, part8, part9)) {
+        for (COSBase object : part) {
+          out.writeBytes(xrefEntry(offset(object, hintLength)));
+        }
+      }
+      out.writeBytes(
+          ascii(
+              "trailer\n<< /Size "
+                  + firstPageSectionStart
+                  + " >>\nstartxref\n"
+                  + firstXrefOffset
+                  + "\n%%EOF\n"));
+      return out.toByteArray();
+    }
+
+    private static byte[] xrefEntry(long offset) {
+      return ascii(String.format(Locale.ROOT, "%010d 00000 n\r\n", offset));
+    }
+
+    /** Page offset and shared object hint tables, annex F.4 */
+    private byte[] hintStream() {
+      BitWriter bits = new BitWriter();
+
+      int pageCount = pages.size();
+      long[] objectCounts = new long[pageCount];
+      long[] pageLengths = new long[pageCount];
+      List<List<Integer>> sharedIds = new ArrayList<>();
+      objectCounts[0] = part6.size();
+      pageLengths[0] = totalLength(part6);
+      sharedIds.add(List.of());
+      int partIndex = 0;
+      for (int i = 1; i < pageCount; i++) {
+        int objects = 1 + privateObjects[i];
+        objectCounts[i] = objects;
+        pageLengths[i] = totalLength(part7.subList(partIndex, partIndex + objects));
+        partIndex += objects;
+
+        List<Integer> ids = new ArrayList<>();
+        for (COSBase object : objectsByUser.get(new User(UserType.PAGE, i, null))) {
+          Integer id = sharedIndex.get(object);
+          if (id != null && users.get(object).size() > 1) {
+            ids.add(id);
+          }
+        }
+        sharedIds.add(ids);
+      }
+
+      long minObjects = min(objectCounts);
+      long minLength = min(pageLengths);
+      int objectBits = nbits(max(objectCounts) - minObjects);
+      int lengthBits = nbits(max(pageLengths) - minLength);
+      int sharedCountBits = nbits(sharedIds.stream().mapToInt(List::size).max().orElse(0));
+      int sharedIdBits = nbits(sharedIndex.size());
+
+      bits.write(minObjects, 32);
+      bits.write(offsets.get(part6.get(0)), 32);
+      bits.write(objectBits, 16);
+      bits.write(minLength, 32);
+      bits.write(lengthBits, 16);
+      bits.write(0, 32); // content streams are not located separately
+      bits.write(0, 16);
+      bits.write(minLength, 32);
+      bits.write(lengthBits, 16);
+      bits.write(sharedCountBits, 16);
+      bits.write(sharedIdBits, 16);
+      bits.write(0, 16); // shared objects are always needed in full
+      bits.write(4, 16);
+
+      for (long objects : objectCounts) {
+        bits.write(objects - minObjects, objectBits);
+      }
+      bits.align();
+      for (long length : pageLengths) {
+        bits.write(length - minLength, lengthBits);
+      }
+      bits.align();
+      for (List<Integer> ids : sharedIds) {
+        bits.write(ids.size(), sharedCountBits);
+      }
+      bits.align();
+      for (List<Integer> ids : sharedIds) {
+        for (int id : ids) {
+          bits.write(id, sharedIdBits);
+        }
+      }
+      bits.align();
+      for (long length : pageLengths) {
+        bits.write(length - minLength, lengthBits);
+      }
+      bits.align();
+
+      int sharedTableOffset = bits.size();
+      List<COSBase> shared = new ArrayList<>(part6);
+      shared.addAll(part8);
+      long[] groupLengths = shared.stream().mapToLong(lengths::get).toArray();
+      long minGroupLength = min(groupLengths);
+      int groupLengthBits = nbits(max(groupLengths) - minGroupLength);
+
+      bits.write(part8.isEmpty() ? 0 : numbers.get(part8.get(0)), 32);
+      bits.write(part8.isEmpty() ? 0 : offsets.get(part8.get(0)), 32);
+      bits.write(part6.size(), 32);
+      bits.write(shared.size(), 32);
+      bits.write(0, 16); // one object per group
+      bits.write(minGroupLength, 32);
+      bits.write(groupLengthBits, 16);
+      for (long length : groupLengths) {
+        bits.write(length - minGroupLength, groupLengthBits);
+      }
+      bits.align();
+      for (int i = 0; i < groupLengths.length; i++) {
+        bits.write(0, 1); // no MD5 signatures
+      }
+      bits.align();
+
+      byte[] data = bits.toByteArray();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      out.writeBytes(
+          ascii(
+              hintStreamNumber()
+                  + " 0 obj\n<< /Length "
+                  + data.length
+                  + " /S "
+                  + sharedTableOffset
+                  + " >>\nstream\n"));
+      out.writeBytes(data);
+      out.writeBytes(ascii("\nendstream\nendobj\n"));
+      return out.toByteArray();
+    }
+
+    private long totalLength(List<COSBase> objects) {
+      long total = 0;
+      for (COSBase object : objects) {
+        total += lengths.get(object);
+      }
+      return total;
+    }
+  }
+
+  private void writeObject(COSBase object, OutputStream out) throws IOException {
+    out.write(ascii(numbers.get(object) + " 0 obj\n"));
+    if (object instanceof COSStream stream) {
+      writeDirect(stream, out, true);
+      out.write(ascii("\nstream\n"));
+      long length;
+      try (InputStream data = stream.createRawInputStream()) {
+        length = data.transferTo(out);
+      }
+      Long expected = streamLengths.putIfAbsent(stream, length);
+      if (expected != null && expected != length) {
+        throw new IllegalStateException("Stream content changed while linearizing");
+      }
+      out.write(ascii("\nendstream"));
+    } else {
+      writeDirect(object, out, false);
+    }
+    out.write(ascii("\nendobj\n"));
+  }
+
+  private void writeValue(COSBase base, OutputStream out) throws IOException {
+    COSBase value = resolve(base);
+    Integer number = value == null ? null : numbers.get(value);
+    if (number != null) {
+      out.write(ascii(number + " 0 R"));
+    } else {
+      writeDirect(value, out, false);
+    }
+  }
+
+  private void writeDirect(COSBase value, OutputStream out, boolean streamDictionary)
+      throws IOException {
+    if (value instanceof COSDictionary dictionary) {
+      out.write(ascii("<<"));
+      for (Map.Entry<COSName, COSBase> entry : dictionary.entrySet()) {
+        COSBase item = resolve(entry.getValue());
+        if (item == null || item instanceof COSNull) {
+          continue;
+        }
+        if (streamDictionary && COSName.LENGTH.equals(entry.getKey())) {
+          continue;
+        }
+        out.write(' ');
+        entry.getKey().writePDF(out);
+        out.write(' ');
+        writeValue(item, out);
+      }
+      if (streamDictionary) {
+        out.write(ascii(" /Length " + streamLength((COSStream) dictionary)));
+      }
+      out.write(ascii(" >>"));
+    } else if (value instanceof COSArray array) {
+      out.write('[');
+      for (int i = 0; i < array.size(); i++) {
+        if (i > 0) {
+          out.write(' ');
+        }
+        writeValue(array.get(i), out);
+      }
+      out.write(']');
+    } else if (value instanceof COSString string) {
+      COSWriter.writeString(string, out);
+    } else if (value instanceof COSName name) {
+      name.writePDF(out);
+    } else if (value instanceof COSInteger integer) {
+      integer.writePDF(out);
+    } else if (value instanceof COSFloat number) {
+      number.writePDF(out);
+    } else if (value instanceof COSBoolean bool) {
+      bool.writePDF(out);
+    } else if (value == null || value instanceof COSNull) {
+      out.write(ascii("null"));
+    } else {
+      throw new IOException("Cannot write " + value.getClass().getSimpleName() + " object");
+    }
+  }
+
+  /** Raw length of a stream, read from the data itself rather than trusting its /Length */
+  private long streamLength(COSStream stream) throws IOException {
+    Long length = streamLengths.get(stream);
+    if (length == null) {
+      try (InputStream data = stream.createRawInputStream()) {
+        length = data.transferTo(OutputStream.nullOutputStream());
+      }
+      streamLengths.put(stream, length);
+    }
+    return length;
+  }
+
+  private static byte[] ascii(String text) {
+    return text.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  private static int nbits(long value) {
+    return 64 - Long.numberOfLeadingZeros(value);
+  }
+
+  private static long min(long[] values) {
+    long min = Long.MAX_VALUE;
+    for (long value : values) {
+      min = Math.min(min, value);
+    }
+    return min;
+  }
+
+  private static long max(long[] values) {
+    long max = 0;
+    for (long value : values) {
+      max = Math.max(max, value);
+    }
+    return max;
+  }
+
+  /** Writes values most significant bit first, as hint tables are bit-packed */
+  private static final class BitWriter {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private int current;
+    private int used;
+
+    void write(long value, int bitCount) {
+      for (int i = bitCount - 1; i >= 0; i--) {
+        current = (current << 1) | (int) ((value >>> i) & 1);
+        if (++used == 8) {
+          out.write(current);
+          current = 0;
+          used = 0;
+        }
+      }
+    }
+
+    /** Pads with zero bits up to the next byte boundary */
+    void align() {
+      if (used > 0) {
+        write(0, 8 - used);
+      }
+    }
+
+    int size() {
+      align();
+      return out.size();
+    }
+
+    byte[] toByteArray() {
+      align();
+      return out.toByteArray();
+    }
+  }
+
+  private static final class CountingOutputStream extends FilterOutputStream {
+
+    private long count;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+}
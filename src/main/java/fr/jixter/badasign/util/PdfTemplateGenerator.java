@@ -241,6 +241,9 @@ public class PdfTemplateGenerator {
           acroForm, page, "date", rightColumn + 130, pageHeight - 645, 120, fieldHeight);
       createStyledTextField(acroForm, page, "signature", rightColumn, pageHeight - 735, 150, 40);
 
+      // Image field for the company logo, in the header band left of the title
+      createStyledTextField(acroForm, page, "companyLogo", 30, pageHeight - 105, 90, 90);
+
       // Save the document
       document.save(outputPath.toFile());
       logger.info("Enhanced French contract template PDF created successfully at: {}", outputPath);
@@ -0,0 +1,108 @@
+package fr.jixter.badasign.buffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class BufferPoolTests {
+
+  @Test
+  void releasedSegmentsAreReused() {
+    BufferPool pool = new BufferPool(new int[] {1024, 4096}, 64 * 1024, false, false);
+
+    ByteBuffer first = pool.acquire(100);
+    assertEquals(1024, first.capacity());
+    pool.release(first);
+    ByteBuffer second = pool.acquire(1000);
+
+    assertSame(first, second);
+    assertEquals(2, pool.getRequests());
+    assertEquals(1, pool.getHits());
+    assertEquals(1024, pool.getBytesSaved());
+    assertEquals(1, pool.getOutstanding());
+  }
+
+  @Test
+  void streamSpansSegmentsAndReleasesThem() throws IOException {
+    BufferPool pool = new BufferPool(new int[] {1024, 4096}, 64 * 1024, false, true);
+    byte[] content = new byte[20_000];
+    new Random(42).nextBytes(content);
+
+    ByteArrayOutputStream copy = new ByteArrayOutputStream();
+    byte[] reread;
+    PooledOutputStream stream = new PooledOutputStream(pool);
+    try {
+      stream.write(content);
+      stream.close();
+      assertEquals(content.length, stream.size());
+      stream.writeTo(copy);
+      reread = stream.newInputStream().readAllBytes();
+    } finally {
+      stream.release();
+    }
+
+    assertArrayEquals(content, copy.toByteArray());
+    assertArrayEquals(content, reread);
+    assertEquals(0, pool.getOutstanding());
+    assertEquals(0, pool.getLeaks().size());
+  }
+
+  @Test
+  void leakDetectionReportsUnreleasedSegments() {
+    BufferPool pool = new BufferPool(new int[] {1024}, 64 * 1024, false, true);
+
+    ByteBuffer released = pool.acquire(10);
+    pool.acquire(10);
+    pool.release(released);
+
+    assertEquals(1, pool.getLeaks().size());
+  }
+
+  @Test
+  void doubleAndForeignReleasesAreIgnored() {
+    BufferPool pool = new BufferPool(new int[] {1024}, 64 * 1024, false, false);
+
+    ByteBuffer segment = pool.acquire(10);
+    pool.release(segment);
+    pool.release(segment);
+    pool.release(ByteBuffer.allocate(1024));
+
+    assertEquals(0, pool.getOutstanding());
+    // Pooled once: two acquisitions never share the segment
+    ByteBuffer first = pool.acquire(10);
+    ByteBuffer second = pool.acquire(10);
+    assertSame(segment, first);
+    assertNotSame(first, second);
+  }
+
+  @Test
+  void channelStreamWritesThroughOneSegment() throws IOException {
+    BufferPool pool = new BufferPool(new int[] {1024, 4096}, 64 * 1024, false, true);
+    byte[] content = new byte[20_000];
+    new Random(42).nextBytes(content);
+
+    ByteArrayOutputStream copy = new ByteArrayOutputStream();
+    WritableByteChannel channel = Channels.newChannel(copy);
+    PooledChannelOutputStream stream = new PooledChannelOutputStream(pool, channel);
+    stream.write(content, 0, 10_000);
+    stream.write(content[10_000]);
+    stream.write(content, 10_001, content.length - 10_001);
+    assertEquals(1, pool.getOutstanding());
+    stream.close();
+    stream.close();
+
+    assertArrayEquals(content, copy.toByteArray());
+    assertEquals(content.length, stream.size());
+    assertEquals(0, pool.getOutstanding());
+    assertEquals(0, pool.getLeaks().size());
+  }
+}
@@ -0,0 +1,69 @@
+package fr.jixter.badasign.config;
+
+import static org.hamcrest.Matchers.is;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+import fr.jixter.badasign.service.YousignServiceV3;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.test.web.servlet.MockMvc;
+
+// A single one-fill round, held on its Yousign dry run until the test lets it finish
+@SpringBootTest(properties = {"warmup.round-size=1", "warmup.max-rounds=1"})
+@AutoConfigureMockMvc
+class WarmupReadinessIT {
+
+  private static final CountDownLatch release = new CountDownLatch(1);
+
+  @Autowired private MockMvc mockMvc;
+  @Autowired private JitWarmup warmup;
+
+  @TestConfiguration
+  static class HeldWarmup {
+
+    // Stubbed before the context starts, as warm-up begins as soon as the application is ready
+    @Bean
+    @Primary
+    YousignServiceV3 heldYousignService() throws Exception {
+      YousignServiceV3 yousignService = Mockito.mock(YousignServiceV3.class);
+      Mockito.doAnswer(
+              invocation -> {
+                release.await();
+                return null;
+              })
+          .when(yousignService)
+          .dryRunRequestBuilding();
+      return yousignService;
+    }
+  }
+
+  @Test
+  @DisplayName("Readiness is OUT_OF_SERVICE while warming up, then UP")
+  void readiness_followsWarmup() throws Exception {
+    try {
+      mockMvc
+          .perform(get("/actuator/health/readiness"))
+          .andExpect(status().isServiceUnavailable())
+          .andExpect(jsonPath("$.status", is("OUT_OF_SERVICE")));
+    } finally {
+      release.countDown();
+    }
+
+    while (!"UP".equals(warmup.health().getStatus().getCode())) {
+      Thread.sleep(10);
+    }
+    mockMvc
+        .perform(get("/actuator/health/readiness"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.status", is("UP")));
+  }
+}
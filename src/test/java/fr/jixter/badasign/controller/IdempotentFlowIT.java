@@ -0,0 +1,116 @@
+package fr.jixter.badasign.controller;
+
+import static fr.jixter.badasign.support.TestSupport.await;
+import static fr.jixter.badasign.support.TestSupport.baseUrl;
+import static fr.jixter.badasign.support.TestSupport.respond;
+import static fr.jixter.badasign.support.TestSupport.tempDirectory;
+import static fr.jixter.badasign.support.TestSupport.yousignStub;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import fr.jixter.badasign.service.TenantFairScheduler;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+
+@SpringBootTest(properties = "warmup.enabled=false")
+@AutoConfigureMockMvc
+class IdempotentFlowIT {
+
+  private static final CountDownLatch firstArrived = new CountDownLatch(1);
+  private static final CountDownLatch release = new CountDownLatch(1);
+  private static final AtomicInteger initiated = new AtomicInteger();
+  private static final HttpServer yousign =
+      yousignStub(
+          exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            if (exchange.getRequestURI().getPath().equals("/signature_requests")
+                && initiated.incrementAndGet() == 1) {
+              // Hold the first flow at its first step
+              firstArrived.countDown();
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            }
+            respond(exchange, 201, "{\"id\":\"req-1\"}");
+          });
+
+  @Autowired private MockMvc mockMvc;
+  @Autowired private TenantFairScheduler scheduler;
+
+  @DynamicPropertySource
+  static void yousignProperties(DynamicPropertyRegistry registry) {
+    registry.add("yousign.api.base-url", () -> baseUrl(yousign));
+    registry.add(
+        "yousign.checkpoints.directory", () -> tempDirectory("idempotent-flow-checkpoints"));
+  }
+
+  @AfterAll
+  static void stopYousign() {
+    yousign.stop(0);
+  }
+
+  @Test
+  @DisplayName("Two concurrent requests with the same Idempotency-Key create one signature request")
+  void concurrentRetries_shareOneFlow() throws Exception {
+    ExecutorService clients = Executors.newFixedThreadPool(2);
+    try {
+      Future<String> first = clients.submit(() -> upload("concurrent-key"));
+      firstArrived.await();
+
+      // The retry gets a flow slot while the first request is held at Yousign
+      Future<String> retry = clients.submit(() -> upload("concurrent-key"));
+      await(() -> scheduler.getRunning() == 2);
+      Thread.sleep(200);
+
+      release.countDown();
+      assertEquals("req-1", first.get());
+      assertEquals("req-1", retry.get());
+    } finally {
+      release.countDown();
+      clients.shutdown();
+    }
+
+    assertEquals(1, initiated.get());
+  }
+
+  private String upload(String idempotencyKey) throws Exception {
+    byte[] response =
+        mockMvc
+            .perform(
+                multipart("/api/signature/upload")
+                    .file(
+                        new MockMultipartFile(
+                            "file",
+                            "contract.pdf",
+                            MediaType.APPLICATION_PDF_VALUE,
+                            new byte[] {1}))
+                    .header(SignatureController.IDEMPOTENCY_KEY, idempotencyKey)
+                    .param("fileName", "contract.pdf")
+                    .param("email", "john@example.com")
+                    .param("name", "John Doe"))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse()
+            .getContentAsByteArray();
+    return new ObjectMapper().readTree(response).get(SignatureController.DOCUMENT_ID).asText();
+  }
+}
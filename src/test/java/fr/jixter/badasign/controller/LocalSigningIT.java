@@ -0,0 +1,125 @@
+package fr.jixter.badasign.controller;
+
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.jixter.badasign.config.LocalSigningConfig;
+import fr.jixter.badasign.service.PdfDocumentStore;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.web.servlet.MockMvc;
+
+@SpringBootTest(
+    properties = {
+      "warmup.enabled=false",
+      "signature.backend=local",
+      "signature.local.allow-self-signed=true",
+      "signature.local.timestamp=true",
+      "signature.local.timestamp-policy=1.3.6.1.4.1.99999.1.1"
+    })
+@AutoConfigureMockMvc
+class LocalSigningIT {
+
+  @Autowired private MockMvc mockMvc;
+
+  @SpyBean private PdfDocumentStore documentStore;
+
+  @Test
+  @DisplayName("POST /api/signature/upload-multiple signs each document and lists their ids")
+  void uploadMultiple_returnsOneSignedDocumentPerFile() throws Exception {
+    byte[] response =
+        mockMvc
+            .perform(
+                multipart("/api/signature/upload-multiple")
+                    .file(file("contract.pdf", pdf()))
+                    .file(file("annex.pdf", pdf()))
+                    .param("email", "jane@example.com")
+                    .param("name", "Jane Doe"))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.documentIds", hasSize(2)))
+            .andExpect(jsonPath("$.documentId").doesNotExist())
+            .andReturn()
+            .getResponse()
+            .getContentAsByteArray();
+
+    JsonNode documentIds =
+        new ObjectMapper().readTree(response).get(SignatureController.DOCUMENT_IDS);
+    for (JsonNode documentId : documentIds) {
+      byte[] signed =
+          mockMvc
+              .perform(get("/api/pdf/documents/" + documentId.asText()))
+              .andExpect(status().isOk())
+              .andReturn()
+              .getResponse()
+              .getContentAsByteArray();
+      try (PDDocument document = PDDocument.load(signed)) {
+        PDSignature signature = document.getLastSignatureDictionary();
+        assertNotNull(signature);
+        assertEquals(PDSignature.SUBFILTER_ETSI_CADES_DETACHED.getName(), signature.getSubFilter());
+      }
+    }
+  }
+
+  @Test
+  @DisplayName("POST /api/signature/upload-multiple keeps none of the documents when one fails")
+  void uploadMultiple_oneInvalidDocument_keepsNone() throws Exception {
+    mockMvc
+        .perform(
+            multipart("/api/signature/upload-multiple")
+                .file(file("contract.pdf", pdf()))
+                .file(file("broken.pdf", new byte[] {1, 2, 3}))
+                .param("email", "jane@example.com")
+                .param("name", "Jane Doe"))
+        .andExpect(status().isInternalServerError())
+        .andExpect(jsonPath("$.error").exists());
+
+    Mockito.verify(documentStore, Mockito.never()).register(Mockito.any());
+  }
+
+  @Test
+  @DisplayName("The local backend needs a keystore unless self-signed keys are allowed")
+  void padesSigner_withoutKeystore_failsUnlessSelfSignedAllowed() throws IOException {
+    LocalSigningConfig strict =
+        new LocalSigningConfig(
+            "local", "", "", "", false, false, "1.3.6.1.4.1.0.1", "Countersignature", 1);
+    assertThrows(IllegalStateException.class, strict::padesSigner);
+
+    LocalSigningConfig selfSigned =
+        new LocalSigningConfig(
+            "local", "", "", "", true, false, "1.3.6.1.4.1.0.1", "Countersignature", 1);
+    assertNotNull(selfSigned.padesSigner().getCertificate());
+  }
+
+  private static MockMultipartFile file(String fileName, byte[] content) {
+    return new MockMultipartFile("files", fileName, MediaType.APPLICATION_PDF_VALUE, content);
+  }
+
+  private static byte[] pdf() throws IOException {
+    try (PDDocument document = new PDDocument()) {
+      document.addPage(new PDPage());
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      document.save(out);
+      return out.toByteArray();
+    }
+  }
+}
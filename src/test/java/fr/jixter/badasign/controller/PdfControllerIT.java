@@ -1,29 +1,55 @@
 package fr.jixter.badasign.controller;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import fr.jixter.badasign.buffer.BufferPool;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import javax.imageio.ImageIO;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 
-@SpringBootTest
+// Warm-up fills would hold segments while the tests check that none are left outstanding
+@SpringBootTest(properties = {"buffer.pool.leak-detection=true", "warmup.enabled=false"})
 @AutoConfigureMockMvc
 class PdfControllerIT {
 
   @Autowired private MockMvc mockMvc;
+  @Autowired private MeterRegistry meterRegistry;
+  @Autowired private BufferPool bufferPool;
 
   private final ObjectMapper objectMapper = new ObjectMapper();
 
+  @AfterEach
+  void allSegmentsReleased() {
+    assertThat(bufferPool.getLeaks()).isEmpty();
+    assertThat(bufferPool.getOutstanding()).isZero();
+  }
+
   @Test
   @DisplayName("GET /api/pdf/sample-data returns a sample map")
   void sampleData_returnsMap() throws Exception {
@@ -54,10 +80,245 @@ class PdfControllerIT {
                     .content(objectMapper.writeValueAsString(payload)))
             .andExpect(status().isOk())
             .andExpect(header().string("Content-Type", MediaType.APPLICATION_PDF_VALUE))
-            .andExpect(header().string("Content-Disposition", org.hamcrest.Matchers.containsString("attachment")))
+            .andExpect(
+                header()
+                    .string(
+                        "Content-Disposition", org.hamcrest.Matchers.containsString("attachment")))
             .andReturn();
 
     byte[] bytes = result.getResponse().getContentAsByteArray();
     assertThat(bytes.length).isGreaterThan(0);
   }
+
+  @Test
+  @DisplayName("POST /api/pdf/merge returns one PDF with the pages of every filled record")
+  void merge_returnsSinglePdf() throws Exception {
+    List<Map<String, String>> payload =
+        List.of(
+            Map.of("firstName", "Jane", "lastName", "Doe", "contractNumber", "CTR-1"),
+            Map.of("firstName", "John", "lastName", "Smith", "contractNumber", "CTR-2"));
+
+    MvcResult result =
+        mockMvc
+            .perform(
+                post("/api/pdf/merge")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content(objectMapper.writeValueAsString(payload)))
+            .andExpect(status().isOk())
+            .andExpect(header().string("Content-Type", MediaType.APPLICATION_PDF_VALUE))
+            .andReturn();
+
+    try (PDDocument merged = PDDocument.load(result.getResponse().getContentAsByteArray())) {
+      assertThat(merged.getNumberOfPages()).isEqualTo(2);
+    }
+  }
+
+  @Test
+  @DisplayName("POST /api/pdf/merge returns 400 when no record is given")
+  void merge_emptyList_returnsBadRequest() throws Exception {
+    mockMvc
+        .perform(post("/api/pdf/merge").contentType(MediaType.APPLICATION_JSON).content("[]"))
+        .andExpect(status().isBadRequest());
+  }
+
+  @Test
+  @DisplayName("POST /api/pdf/fill draws image values and embeds each image once")
+  void fill_withImages_embedsSharedXObject() throws Exception {
+    BufferedImage logo = new BufferedImage(40, 20, BufferedImage.TYPE_INT_RGB);
+    ByteArrayOutputStream png = new ByteArrayOutputStream();
+    ImageIO.write(logo, "png", png);
+    String dataUrl =
+        "data:image/png;base64," + Base64.getEncoder().encodeToString(png.toByteArray());
+
+    MvcResult result =
+        mockMvc
+            .perform(
+                post("/api/pdf/fill")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content(
+                        objectMapper.writeValueAsString(
+                            Map.of("companyLogo", dataUrl, "company", dataUrl))))
+            .andExpect(status().isOk())
+            .andReturn();
+
+    try (PDDocument document = PDDocument.load(result.getResponse().getContentAsByteArray())) {
+      long images =
+          document.getDocument().getObjectsByType(COSName.XOBJECT).stream()
+              .map(object -> (COSDictionary) object.getObject())
+              .filter(xObject -> COSName.IMAGE.equals(xObject.getCOSName(COSName.SUBTYPE)))
+              .count();
+      assertThat(images).isEqualTo(1);
+    }
+  }
+
+  @Test
+  @DisplayName("POST /api/pdf/merge?linearized=true returns a linearized PDF served by ranges")
+  void merge_linearized_servesByteRanges() throws Exception {
+    List<Map<String, String>> payload =
+        List.of(
+            Map.of("firstName", "Jane", "contractNumber", "CTR-1"),
+            Map.of("firstName", "John", "contractNumber", "CTR-2"),
+            Map.of("firstName", "Jack", "contractNumber", "CTR-3"));
+
+    MvcResult result =
+        mockMvc
+            .perform(
+                post("/api/pdf/merge")
+                    .param("linearized", "true")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content(objectMapper.writeValueAsString(payload)))
+            .andExpect(status().isOk())
+            .andExpect(header().exists("Content-Location"))
+            .andReturn();
+
+    byte[] bytes = result.getResponse().getContentAsByteArray();
+    String head = new String(bytes, 0, 1024, StandardCharsets.ISO_8859_1);
+    assertThat(head).contains("/Linearized 1").contains("/L " + bytes.length + " ");
+    try (PDDocument merged = PDDocument.load(bytes)) {
+      assertThat(merged.getNumberOfPages()).isEqualTo(3);
+    }
+
+    mockMvc
+        .perform(
+            get(result.getResponse().getHeader("Content-Location"))
+                .header(HttpHeaders.RANGE, "bytes=0-1023"))
+        .andExpect(status().isPartialContent())
+        .andExpect(header().string(HttpHeaders.ACCEPT_RANGES, "bytes"))
+        .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 0-1023/" + bytes.length))
+        .andExpect(content().bytes(Arrays.copyOf(bytes, 1024)));
+  }
+
+  @Test
+  @DisplayName("POST /api/pdf/documents/{id}/amend appends the change to the original bytes")
+  void amend_appendsIncrementalUpdate() throws Exception {
+    MvcResult filled =
+        mockMvc
+            .perform(
+                post("/api/pdf/fill")
+                    .param("flatten", "false")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content(
+                        objectMapper.writeValueAsString(
+                            Map.of("firstName", "Jane", "contractNumber", "CTR-1"))))
+            .andExpect(status().isOk())
+            .andReturn();
+    byte[] original = filled.getResponse().getContentAsByteArray();
+
+    MvcResult amended =
+        mockMvc
+            .perform(
+                post(filled.getResponse().getHeader("Content-Location") + "/amend")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content(objectMapper.writeValueAsString(Map.of("firstName", "Janet"))))
+            .andExpect(status().isCreated())
+            .andExpect(header().exists(HttpHeaders.LOCATION))
+            .andReturn();
+
+    byte[] bytes =
+        mockMvc
+            .perform(get(amended.getResponse().getHeader(HttpHeaders.LOCATION)))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse()
+            .getContentAsByteArray();
+    assertThat(Arrays.copyOf(bytes, original.length)).isEqualTo(original);
+    assertThat(bytes.length - original.length).isLessThan(original.length / 2);
+    try (PDDocument document = PDDocument.load(bytes)) {
+      var acroForm = document.getDocumentCatalog().getAcroForm();
+      assertThat(acroForm.getField("firstName").getValueAsString()).isEqualTo("Janet");
+      assertThat(acroForm.getField("contractNumber").getValueAsString()).isEqualTo("CTR-1");
+    }
+
+    mockMvc
+        .perform(
+            post(filled.getResponse().getHeader("Content-Location") + "/amend")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(Map.of("noSuchField", "x"))))
+        .andExpect(status().isBadRequest());
+  }
+
+  @Test
+  @DisplayName("GET /api/pdf/documents/{id} returns 404 for an unknown document")
+  void getDocument_unknown_returnsNotFound() throws Exception {
+    mockMvc.perform(get("/api/pdf/documents/unknown")).andExpect(status().isNotFound());
+  }
+
+  @Test
+  @DisplayName("POST /api/pdf/preview streams PNG pages and serves repeats from the cache")
+  void preview_streamsPagesFromCache() throws Exception {
+    String payload =
+        objectMapper.writeValueAsString(Map.of("firstName", "Preview-" + UUID.randomUUID()));
+    double hits = meterRegistry.get("badasign.pdf.preview.cache.hits").functionCounter().count();
+
+    for (int i = 0; i < 2; i++) {
+      MvcResult result =
+          mockMvc
+              .perform(
+                  post("/api/pdf/preview")
+                      .param("dpi", "36")
+                      .contentType(MediaType.APPLICATION_JSON)
+                      .content(payload))
+              .andExpect(request().asyncStarted())
+              .andReturn();
+
+      mockMvc
+          .perform(asyncDispatch(result))
+          .andExpect(status().isOk())
+          .andExpect(content().string(containsString("event:page")))
+          .andExpect(content().string(containsString("data:image/png;base64,")));
+    }
+
+    assertThat(meterRegistry.get("badasign.pdf.preview.cache.hits").functionCounter().count())
+        .isEqualTo(hits + 1);
+  }
+
+  @Test
+  @DisplayName("POST /api/pdf/preview keys null and \"null\" apart and renders each page once")
+  void preview_nullValuesAndRepeatedPages() throws Exception {
+    String firstName = "Preview-" + UUID.randomUUID();
+    String withNull = "{\"firstName\":\"" + firstName + "\",\"nickname\":null}";
+    String withNullString = "{\"firstName\":\"" + firstName + "\",\"nickname\":\"null\"}";
+    double hits = meterRegistry.get("badasign.pdf.preview.cache.hits").functionCounter().count();
+
+    // Repeated and missing pages are skipped: one event for page 1
+    assertThat(preview(withNull, "1,1,1,99,0")).containsOnlyOnce("event:page");
+    preview(withNullString, "1");
+    assertThat(meterRegistry.get("badasign.pdf.preview.cache.hits").functionCounter().count())
+        .isEqualTo(hits);
+
+    preview(withNullString, "1");
+    assertThat(meterRegistry.get("badasign.pdf.preview.cache.hits").functionCounter().count())
+        .isEqualTo(hits + 1);
+  }
+
+  private String preview(String payload, String pages) throws Exception {
+    MvcResult result =
+        mockMvc
+            .perform(
+                post("/api/pdf/preview")
+                    .param("dpi", "36")
+                    .param("pages", pages)
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content(payload))
+            .andExpect(request().asyncStarted())
+            .andReturn();
+    return mockMvc
+        .perform(asyncDispatch(result))
+        .andExpect(status().isOk())
+        .andReturn()
+        .getResponse()
+        .getContentAsString();
+  }
+
+  @Test
+  @DisplayName("POST /api/pdf/preview returns 400 for a DPI above the limit")
+  void preview_dpiTooHigh_returnsBadRequest() throws Exception {
+    mockMvc
+        .perform(
+            post("/api/pdf/preview")
+                .param("dpi", "10000")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{}"))
+        .andExpect(status().isBadRequest());
+  }
 }
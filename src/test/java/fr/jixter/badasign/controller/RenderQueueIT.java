@@ -0,0 +1,66 @@
+package fr.jixter.badasign.controller;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+
+// One render thread and one queue slot, so two blocked tasks saturate the pool
+@SpringBootTest(
+    properties = {
+      "pdf.render.pool-size=1",
+      "pdf.render.queue-capacity=1",
+      "pdf.render.retry-after-seconds=7",
+      "warmup.enabled=false"
+    })
+@AutoConfigureMockMvc
+class RenderQueueIT {
+
+  @Autowired private MockMvc mockMvc;
+  @Autowired private ThreadPoolExecutor renderExecutor;
+
+  @Test
+  @DisplayName("POST /api/pdf/fill returns 503 with Retry-After when the render queue is full")
+  void fill_queueFull_returnsServiceUnavailable() throws Exception {
+    CountDownLatch running = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    renderExecutor.submit(
+        () -> {
+          running.countDown();
+          release.await();
+          return null;
+        });
+    try {
+      running.await();
+      renderExecutor.submit(
+          () -> {
+            release.await();
+            return null;
+          });
+
+      mockMvc
+          .perform(post("/api/pdf/fill").contentType(MediaType.APPLICATION_JSON).content("{}"))
+          .andExpect(status().isServiceUnavailable())
+          .andExpect(header().string(HttpHeaders.RETRY_AFTER, "7"));
+    } finally {
+      release.countDown();
+    }
+
+    // Once the pool drains, requests are served again
+    while (renderExecutor.getActiveCount() > 0 || !renderExecutor.getQueue().isEmpty()) {
+      Thread.sleep(10);
+    }
+    mockMvc
+        .perform(post("/api/pdf/fill").contentType(MediaType.APPLICATION_JSON).content("{}"))
+        .andExpect(status().isOk());
+  }
+}
@@ -1,13 +1,34 @@
 package fr.jixter.badasign.controller;
 
 import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.head;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.patch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
+import fr.jixter.badasign.buffer.BufferPool;
+import fr.jixter.badasign.service.DocumentUploadException;
+import fr.jixter.badasign.service.DocumentUploadException.UploadFailure;
+import fr.jixter.badasign.service.IdempotencyKeyConflictException;
+import fr.jixter.badasign.service.SignatureDocument;
 import fr.jixter.badasign.service.YousignServiceV3;
+import fr.jixter.badasign.service.YousignUnavailableException;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -15,31 +36,44 @@ import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.web.servlet.MockMvc;
-import org.mockito.Mockito;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 
-@SpringBootTest
+// Warm-up would call the mocked service while tests stub it
+@SpringBootTest(properties = {"warmup.enabled=false", "buffer.pool.leak-detection=true"})
 @AutoConfigureMockMvc
 class SignatureControllerIT {
 
   @Autowired private MockMvc mockMvc;
+  @Autowired private BufferPool bufferPool;
 
   @MockBean private YousignServiceV3 yousignService;
 
+  @AfterEach
+  void allSegmentsReleased() {
+    assertEquals(List.of(), bufferPool.getLeaks());
+    assertEquals(0, bufferPool.getOutstanding());
+  }
+
   @Test
   @DisplayName("POST /api/signature/upload returns 200 with documentId on success")
   void upload_success() throws Exception {
     Mockito.when(
-            yousignService.processDocumentForSignature(
-                Mockito.any(), Mockito.eq("contract.pdf"), Mockito.eq("john@example.com"), Mockito.eq("John Doe")))
-        .thenReturn("req-123");
+            yousignService.processDocumentsForSignature(
+                Mockito.eq("retry-key-1"),
+                Mockito.argThat(documents -> fileNames(documents).equals(List.of("contract.pdf"))),
+                Mockito.eq("john@example.com"),
+                Mockito.eq("John Doe")))
+        .thenReturn(List.of("req-123"));
 
     MockMultipartFile file =
-        new MockMultipartFile("file", "contract.pdf", MediaType.APPLICATION_PDF_VALUE, new byte[] {1, 2, 3});
+        new MockMultipartFile(
+            "file", "contract.pdf", MediaType.APPLICATION_PDF_VALUE, new byte[] {1, 2, 3});
 
     mockMvc
         .perform(
             multipart("/api/signature/upload")
                 .file(file)
+                .header("Idempotency-Key", "retry-key-1")
                 .param("fileName", "contract.pdf")
                 .param("email", "john@example.com")
                 .param("name", "John Doe"))
@@ -50,6 +84,306 @@ class SignatureControllerIT {
         .andExpect(jsonPath("$.fileName", is("contract.pdf")));
   }
 
+  @Test
+  @DisplayName("POST /api/signature/upload returns 400 for an unknown tenant")
+  void upload_unknownTenant_returnsBadRequest() throws Exception {
+    MockMultipartFile file =
+        new MockMultipartFile(
+            "file", "contract.pdf", MediaType.APPLICATION_PDF_VALUE, new byte[] {1, 2, 3});
+
+    mockMvc
+        .perform(
+            multipart("/api/signature/upload")
+                .file(file)
+                .header("X-Tenant-Id", "unknown")
+                .param("fileName", "contract.pdf")
+                .param("email", "john@example.com")
+                .param("name", "John Doe"))
+        .andExpect(status().isBadRequest())
+        .andExpect(jsonPath("$.error", is("Unknown tenant: unknown")));
+
+    Mockito.verifyNoInteractions(yousignService);
+  }
+
+  @Test
+  @DisplayName("POST /api/signature/upload returns 400 for a malformed Idempotency-Key")
+  void upload_invalidIdempotencyKey_returnsBadRequest() throws Exception {
+    MockMultipartFile file =
+        new MockMultipartFile(
+            "file", "contract.pdf", MediaType.APPLICATION_PDF_VALUE, new byte[] {1, 2, 3});
+
+    mockMvc
+        .perform(
+            multipart("/api/signature/upload")
+                .file(file)
+                .header("Idempotency-Key", "../etc/passwd")
+                .param("fileName", "contract.pdf")
+                .param("email", "john@example.com")
+                .param("name", "John Doe"))
+        .andExpect(status().isBadRequest())
+        .andExpect(jsonPath("$.error", containsString("Idempotency-Key")));
+
+    Mockito.verifyNoInteractions(yousignService);
+  }
+
+  @Test
+  @DisplayName("POST /api/signature/upload returns 422 when the Idempotency-Key names another flow")
+  void upload_reusedIdempotencyKey_returnsUnprocessableEntity() throws Exception {
+    Mockito.when(
+            yousignService.processDocumentsForSignature(
+                Mockito.eq("retry-key-2"),
+                Mockito.anyList(),
+                Mockito.anyString(),
+                Mockito.anyString()))
+        .thenThrow(
+            new IdempotencyKeyConflictException(
+                "Flow retry-key-2 was started with 2 document(s), not 1"));
+
+    MockMultipartFile file =
+        new MockMultipartFile(
+            "file", "contract.pdf", MediaType.APPLICATION_PDF_VALUE, new byte[] {1, 2, 3});
+
+    mockMvc
+        .perform(
+            multipart("/api/signature/upload")
+                .file(file)
+                .header("Idempotency-Key", "retry-key-2")
+                .param("fileName", "contract.pdf")
+                .param("email", "john@example.com")
+                .param("name", "John Doe"))
+        .andExpect(status().isUnprocessableEntity())
+        .andExpect(jsonPath("$.error", containsString("already used")));
+  }
+
+  @Test
+  @DisplayName("POST /api/signature/upload returns 400, not 422, for other invalid arguments")
+  void upload_invalidArgument_returnsBadRequest() throws Exception {
+    Mockito.when(
+            yousignService.processDocumentsForSignature(
+                Mockito.eq("retry-key-3"),
+                Mockito.anyList(),
+                Mockito.anyString(),
+                Mockito.anyString()))
+        .thenThrow(new IllegalArgumentException("Invalid signer email"));
+
+    MockMultipartFile file =
+        new MockMultipartFile(
+            "file", "contract.pdf", MediaType.APPLICATION_PDF_VALUE, new byte[] {1, 2, 3});
+
+    mockMvc
+        .perform(
+            multipart("/api/signature/upload")
+                .file(file)
+                .header("Idempotency-Key", "retry-key-3")
+                .param("fileName", "contract.pdf")
+                .param("email", "john@example.com")
+                .param("name", "John Doe"))
+        .andExpect(status().isBadRequest())
+        .andExpect(jsonPath("$.error", is("Invalid signer email")));
+  }
+
+  @Test
+  @DisplayName("Resumable upload: chunks resume at the current offset, then sign the spool file")
+  void resumableUpload_chunksThenSign() throws Exception {
+    byte[] content = {'%', 'P', 'D', 'F', '-', '1'};
+    List<byte[]> signed = new ArrayList<>();
+    Mockito.when(
+            yousignService.processDocumentsForSignature(
+                Mockito.anyString(),
+                Mockito.argThat(documents -> fileNames(documents).equals(List.of("annex.pdf"))),
+                Mockito.eq("john@example.com"),
+                Mockito.eq("John Doe")))
+        .thenAnswer(
+            invocation -> {
+              List<SignatureDocument> documents = invocation.getArgument(1);
+              Path spooled = documents.get(0).pdfPath();
+              assertTrue(spooled.toString().endsWith(".part"));
+              signed.add(Files.readAllBytes(spooled));
+              return List.of("req-456");
+            });
+
+    String location =
+        mockMvc
+            .perform(
+                post("/api/signature/uploads")
+                    .header("Upload-Length", content.length)
+                    .param("fileName", "annex.pdf"))
+            .andExpect(status().isCreated())
+            .andReturn()
+            .getResponse()
+            .getHeader("Location");
+
+    mockMvc
+        .perform(chunk(location, 0, Arrays.copyOfRange(content, 0, 3)))
+        .andExpect(status().isNoContent())
+        .andExpect(header().string("Upload-Offset", "3"));
+    // A retried chunk that already arrived, then a corrupted one
+    mockMvc
+        .perform(chunk(location, 0, Arrays.copyOfRange(content, 0, 3)))
+        .andExpect(status().isConflict());
+    mockMvc
+        .perform(
+            patch(location)
+                .contentType("application/offset+octet-stream")
+                .header("Upload-Offset", 3)
+                .header("Upload-Checksum", checksum(new byte[] {0}))
+                .content(Arrays.copyOfRange(content, 3, 6)))
+        .andExpect(status().is(460));
+    mockMvc.perform(head(location)).andExpect(header().string("Upload-Offset", "3"));
+
+    mockMvc
+        .perform(post(location + "/sign").param("email", "john@example.com").param("name", "x"))
+        .andExpect(status().isConflict());
+    mockMvc
+        .perform(chunk(location, 3, Arrays.copyOfRange(content, 3, 6)))
+        .andExpect(status().isNoContent())
+        .andExpect(header().string("Upload-Offset", "6"));
+    mockMvc
+        .perform(
+            post(location + "/sign").param("email", "john@example.com").param("name", "John Doe"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.documentId", is("req-456")));
+
+    assertArrayEquals(content, signed.get(0));
+    mockMvc.perform(head(location)).andExpect(status().isNotFound());
+  }
+
+  @Test
+  @DisplayName("Resumable upload: a failed signature is retried on the same upload")
+  void resumableUpload_signFailsOnce_retrySucceeds() throws Exception {
+    byte[] content = {'%', 'P', 'D', 'F', '-', '2'};
+    List<byte[]> signed = new ArrayList<>();
+    Mockito.when(
+            yousignService.processDocumentsForSignature(
+                Mockito.anyString(),
+                Mockito.argThat(documents -> fileNames(documents).equals(List.of("retried.pdf"))),
+                Mockito.eq("john@example.com"),
+                Mockito.eq("John Doe")))
+        .thenThrow(new IOException("Yousign answered 500"))
+        .thenAnswer(
+            invocation -> {
+              List<SignatureDocument> documents = invocation.getArgument(1);
+              signed.add(Files.readAllBytes(documents.get(0).pdfPath()));
+              return List.of("req-321");
+            });
+
+    String location =
+        mockMvc
+            .perform(
+                post("/api/signature/uploads")
+                    .header("Upload-Length", content.length)
+                    .param("fileName", "retried.pdf"))
+            .andExpect(status().isCreated())
+            .andReturn()
+            .getResponse()
+            .getHeader("Location");
+    mockMvc.perform(chunk(location, 0, content)).andExpect(status().isNoContent());
+
+    mockMvc
+        .perform(
+            post(location + "/sign").param("email", "john@example.com").param("name", "John Doe"))
+        .andExpect(status().isInternalServerError());
+    // Still there and complete, its spool file kept for the retry
+    mockMvc
+        .perform(head(location))
+        .andExpect(status().isOk())
+        .andExpect(header().string("Upload-Offset", "6"));
+
+    mockMvc
+        .perform(
+            post(location + "/sign").param("email", "john@example.com").param("name", "John Doe"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.documentId", is("req-321")));
+
+    assertArrayEquals(content, signed.get(0));
+    mockMvc.perform(head(location)).andExpect(status().isNotFound());
+  }
+
+  private static List<String> fileNames(List<SignatureDocument> documents) {
+    return documents.stream().map(SignatureDocument::fileName).toList();
+  }
+
+  private static MockHttpServletRequestBuilder chunk(String location, long offset, byte[] bytes)
+      throws Exception {
+    return patch(location)
+        .contentType("application/offset+octet-stream")
+        .header("Upload-Offset", offset)
+        .header("Upload-Checksum", checksum(bytes))
+        .content(bytes);
+  }
+
+  private static String checksum(byte[] bytes) throws Exception {
+    return "sha256 "
+        + Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(bytes));
+  }
+
+  @Test
+  @DisplayName("POST /api/signature/upload-multiple names nameless parts after their position")
+  void uploadMultiple_success() throws Exception {
+    List<String> fileNames = new ArrayList<>();
+    Mockito.when(
+            yousignService.processDocumentsForSignature(
+                Mockito.anyString(),
+                Mockito.anyList(),
+                Mockito.eq("john@example.com"),
+                Mockito.eq("John Doe")))
+        .thenAnswer(
+            invocation -> {
+              List<SignatureDocument> documents = invocation.getArgument(1);
+              documents.forEach(document -> fileNames.add(document.fileName()));
+              return List.of("req-789");
+            });
+
+    mockMvc
+        .perform(
+            multipart("/api/signature/upload-multiple")
+                .file(
+                    new MockMultipartFile(
+                        "files", "contract.pdf", MediaType.APPLICATION_PDF_VALUE, new byte[] {1}))
+                .file(
+                    new MockMultipartFile(
+                        "files", null, MediaType.APPLICATION_PDF_VALUE, new byte[] {2}))
+                .param("email", "john@example.com")
+                .param("name", "John Doe"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.documentId", is("req-789")))
+        .andExpect(jsonPath("$.documentIds", contains("req-789")))
+        .andExpect(jsonPath("$.fileName", is("contract.pdf, document-2.pdf")));
+
+    assertEquals(List.of("contract.pdf", "document-2.pdf"), fileNames);
+  }
+
+  @Test
+  @DisplayName("POST /api/signature/upload-multiple returns 500 listing each failed document")
+  void uploadMultiple_partialFailure_returnsInternalServerError() throws Exception {
+    Mockito.when(
+            yousignService.processDocumentsForSignature(
+                Mockito.anyString(), Mockito.anyList(), Mockito.anyString(), Mockito.anyString()))
+        .thenThrow(
+            new DocumentUploadException(
+                "req-789",
+                List.of(
+                    new UploadFailure(0, "contract.pdf", new IOException("rejected")),
+                    new UploadFailure(1, "contract.pdf", new IOException("timed out")))));
+
+    MockMultipartFile file =
+        new MockMultipartFile(
+            "files", "contract.pdf", MediaType.APPLICATION_PDF_VALUE, new byte[] {1});
+
+    mockMvc
+        .perform(
+            multipart("/api/signature/upload-multiple")
+                .file(file)
+                .file(file)
+                .param("email", "john@example.com")
+                .param("name", "John Doe"))
+        .andExpect(status().isInternalServerError())
+        .andExpect(
+            jsonPath(
+                "$.error",
+                containsString("#1 contract.pdf (rejected), #2 contract.pdf (timed out)")));
+  }
+
   @Test
   @DisplayName("POST /api/signature/upload returns 400 when file is empty")
   void upload_emptyFile_returnsBadRequest() throws Exception {
@@ -71,12 +405,13 @@ class SignatureControllerIT {
   @DisplayName("POST /api/signature/upload returns 500 when service throws IOException")
   void upload_serviceError_returnsInternalServerError() throws Exception {
     Mockito.when(
-            yousignService.processDocumentForSignature(
-                Mockito.any(), Mockito.anyString(), Mockito.anyString(), Mockito.anyString()))
+            yousignService.processDocumentsForSignature(
+                Mockito.anyString(), Mockito.anyList(), Mockito.anyString(), Mockito.anyString()))
         .thenThrow(new IOException("boom"));
 
     MockMultipartFile file =
-        new MockMultipartFile("file", "contract.pdf", MediaType.APPLICATION_PDF_VALUE, new byte[] {1});
+        new MockMultipartFile(
+            "file", "contract.pdf", MediaType.APPLICATION_PDF_VALUE, new byte[] {1});
 
     mockMvc
         .perform(
@@ -88,4 +423,56 @@ class SignatureControllerIT {
         .andExpect(status().isInternalServerError())
         .andExpect(jsonPath("$.error", containsString("Failed to upload document")));
   }
+
+  @Test
+  @DisplayName("POST /api/signature/upload returns 503 when the Yousign circuit is open")
+  void upload_circuitOpen_returnsServiceUnavailable() throws Exception {
+    Mockito.when(
+            yousignService.processDocumentsForSignature(
+                Mockito.anyString(), Mockito.anyList(), Mockito.anyString(), Mockito.anyString()))
+        .thenThrow(new YousignUnavailableException("circuit open", null));
+
+    MockMultipartFile file =
+        new MockMultipartFile(
+            "file", "contract.pdf", MediaType.APPLICATION_PDF_VALUE, new byte[] {1});
+
+    mockMvc
+        .perform(
+            multipart("/api/signature/upload")
+                .file(file)
+                .param("fileName", "contract.pdf")
+                .param("email", "john@example.com")
+                .param("name", "John Doe"))
+        .andExpect(status().isServiceUnavailable())
+        .andExpect(jsonPath("$.error", containsString("temporarily unavailable")));
+  }
+
+  @Test
+  @DisplayName("POST /api/signature/template fills and uploads the template by default")
+  void signFromTemplate_uploadsFilledPdf() throws Exception {
+    Mockito.when(
+            yousignService.processDocumentsForSignature(
+                Mockito.anyString(),
+                Mockito.anyList(),
+                Mockito.eq("john@example.com"),
+                Mockito.eq("John Doe")))
+        .thenReturn(List.of("req-456"));
+
+    mockMvc
+        .perform(
+            post("/api/signature/template")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"fullName\":\"John Doe\"}")
+                .param("email", "john@example.com")
+                .param("name", "John Doe"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.documentId", is("req-456")))
+        .andExpect(jsonPath("$.templateId", is("contract-template")));
+
+    Mockito.verify(yousignService, Mockito.never())
+        .processTemplateForSignature(Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+    Mockito.verify(yousignService, Mockito.never())
+        .processTemplateForSignature(
+            Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.any());
+  }
 }
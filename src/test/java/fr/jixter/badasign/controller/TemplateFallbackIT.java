@@ -0,0 +1,59 @@
+package fr.jixter.badasign.controller;
+
+import static org.hamcrest.Matchers.is;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import fr.jixter.badasign.service.TemplateNotProvisionedException;
+import fr.jixter.badasign.service.YousignServiceV3;
+import java.util.List;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+
+@SpringBootTest(properties = {"warmup.enabled=false", "yousign.templates.enabled=true"})
+@AutoConfigureMockMvc
+class TemplateFallbackIT {
+
+  @Autowired private MockMvc mockMvc;
+
+  @MockBean private YousignServiceV3 yousignService;
+
+  @Test
+  @DisplayName("POST /api/signature/template fills and uploads templates with no Yousign template")
+  void signFromTemplate_withoutProvisionedTemplate_uploadsFilledPdf() throws Exception {
+    Mockito.when(
+            yousignService.processTemplateForSignature(
+                Mockito.anyString(),
+                Mockito.eq("contract-template"),
+                Mockito.anyMap(),
+                Mockito.anyString(),
+                Mockito.anyString()))
+        .thenThrow(new TemplateNotProvisionedException("No Yousign template mapped"));
+    Mockito.when(
+            yousignService.processDocumentsForSignature(
+                Mockito.anyString(),
+                Mockito.anyList(),
+                Mockito.eq("john@example.com"),
+                Mockito.eq("John Doe")))
+        .thenReturn(List.of("req-789"));
+
+    mockMvc
+        .perform(
+            post("/api/signature/template")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"fullName\":\"John Doe\"}")
+                .param("email", "john@example.com")
+                .param("name", "John Doe"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.documentId", is("req-789")))
+        .andExpect(jsonPath("$.templateId", is("contract-template")));
+  }
+}
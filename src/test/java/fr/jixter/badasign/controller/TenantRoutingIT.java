@@ -0,0 +1,143 @@
+package fr.jixter.badasign.controller;
+
+import static fr.jixter.badasign.support.TestSupport.await;
+import static fr.jixter.badasign.support.TestSupport.baseUrl;
+import static fr.jixter.badasign.support.TestSupport.respond;
+import static fr.jixter.badasign.support.TestSupport.tempDirectory;
+import static fr.jixter.badasign.support.TestSupport.yousignStub;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import com.sun.net.httpserver.HttpServer;
+import fr.jixter.badasign.config.YousignConfig;
+import fr.jixter.badasign.service.TenantContext.Lane;
+import fr.jixter.badasign.service.TenantFairScheduler;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+
+// A single flow slot, so the flows sent while the first one is held show which lane they wait in
+@SpringBootTest(
+    properties = {
+      "warmup.enabled=false",
+      "yousign.scheduler.max-concurrent-flows=1",
+      "yousign.tenants.acme.api-key=acme-key"
+    })
+@AutoConfigureMockMvc
+class TenantRoutingIT {
+
+  private static final Pattern REQUEST_NAME = Pattern.compile("Contract – (\\w+)");
+  private static final CountDownLatch firstArrived = new CountDownLatch(1);
+  private static final CountDownLatch release = new CountDownLatch(1);
+  // Signer name of each signature request created, in order, and the credentials it came with
+  private static final List<String> initiated = new CopyOnWriteArrayList<>();
+  private static final Map<String, String> authorizations = new ConcurrentHashMap<>();
+  private static final HttpServer yousign =
+      yousignStub(
+          exchange -> {
+            String body =
+                new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            if (exchange.getRequestURI().getPath().equals("/signature_requests")) {
+              Matcher name = REQUEST_NAME.matcher(body);
+              name.find();
+              initiated.add(name.group(1));
+              authorizations.put(
+                  name.group(1), exchange.getRequestHeaders().getFirst("Authorization"));
+              if (initiated.size() == 1) {
+                // Hold the first flow, and with it the only slot
+                firstArrived.countDown();
+                try {
+                  release.await();
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+              }
+            }
+            respond(exchange, 201, "{\"id\":\"req-1\"}");
+          });
+
+  @Autowired private MockMvc mockMvc;
+  @Autowired private TenantFairScheduler scheduler;
+  @Autowired private YousignConfig yousignConfig;
+
+  @DynamicPropertySource
+  static void yousignProperties(DynamicPropertyRegistry registry) {
+    registry.add("yousign.api.base-url", () -> baseUrl(yousign));
+    registry.add(
+        "yousign.checkpoints.directory", () -> tempDirectory("tenant-routing-checkpoints"));
+  }
+
+  @AfterAll
+  static void stopYousign() {
+    yousign.stop(0);
+  }
+
+  @Test
+  @DisplayName("X-Tenant-Id picks the tenant's Yousign account and X-Priority the scheduler lane")
+  void headers_routeToTenantClientAndLane() throws Exception {
+    ExecutorService clients = Executors.newFixedThreadPool(3);
+    try {
+      Future<?> alice = clients.submit(() -> upload("Alice", "acme", "batch"));
+      firstArrived.await();
+
+      Future<?> bob = clients.submit(() -> upload("Bob", null, null));
+      await(() -> scheduler.waiting(Lane.INTERACTIVE) == 1);
+      Future<?> carol = clients.submit(() -> upload("Carol", "acme", "batch"));
+      await(() -> scheduler.waiting(Lane.BATCH) == 1);
+      assertEquals(1, scheduler.waiting(Lane.INTERACTIVE));
+
+      release.countDown();
+      alice.get();
+      bob.get();
+      carol.get();
+    } finally {
+      release.countDown();
+      clients.shutdown();
+    }
+
+    // The interactive flow went before the batch one queued after it
+    assertEquals(List.of("Alice", "Bob", "Carol"), initiated);
+    assertEquals("Bearer acme-key", authorizations.get("Alice"));
+    assertEquals("Bearer " + yousignConfig.getApiKey(), authorizations.get("Bob"));
+    assertEquals("Bearer acme-key", authorizations.get("Carol"));
+  }
+
+  private Void upload(String signerName, String tenantId, String priority) throws Exception {
+    var request =
+        multipart("/api/signature/upload")
+            .file(
+                new MockMultipartFile(
+                    "file", "contract.pdf", MediaType.APPLICATION_PDF_VALUE, new byte[] {1}))
+            .param("fileName", "contract.pdf")
+            .param("email", signerName.toLowerCase() + "@example.com")
+            .param("name", signerName);
+    if (tenantId != null) {
+      request.header(TenantHeaderFilter.TENANT_HEADER, tenantId);
+    }
+    if (priority != null) {
+      request.header(TenantHeaderFilter.PRIORITY_HEADER, priority);
+    }
+    mockMvc.perform(request).andExpect(status().isOk());
+    return null;
+  }
+}
@@ -0,0 +1,111 @@
+package fr.jixter.badasign.diagnostics;
+
+import static fr.jixter.badasign.support.TestSupport.baseUrl;
+import static fr.jixter.badasign.support.TestSupport.respond;
+import static fr.jixter.badasign.support.TestSupport.yousignStub;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import com.sun.net.httpserver.HttpServer;
+import fr.jixter.badasign.service.PdfTemplateRegistry;
+import fr.jixter.badasign.service.YousignServiceV3;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.Resource;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+
+@SpringBootTest(properties = "warmup.enabled=false")
+@AutoConfigureMockMvc
+class JfrRecordingIT {
+
+  private static final String YOUSIGN_RESPONSE =
+      "{\"id\":\"req-1\",\"name\":\"Contract – Jane Doe\"}";
+  private static final HttpServer yousign =
+      yousignStub(
+          exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            respond(exchange, 201, YOUSIGN_RESPONSE);
+          });
+
+  @Autowired private MockMvc mockMvc;
+  @Autowired private YousignServiceV3 yousignService;
+  @Autowired private JfrEndpoint jfrEndpoint;
+
+  @TempDir Path tempDir;
+
+  @DynamicPropertySource
+  static void yousignProperties(DynamicPropertyRegistry registry) {
+    registry.add("yousign.api.base-url", () -> baseUrl(yousign));
+  }
+
+  @AfterAll
+  static void stopYousign() {
+    yousign.stop(0);
+  }
+
+  @Test
+  @DisplayName("The JFR dump holds the PDF stage and Yousign call events, but not the environment")
+  void dump_containsBadasignEventsWithoutEnvironment() throws Exception {
+    mockMvc
+        .perform(
+            post("/api/pdf/fill")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"firstName\": \"Jane\", \"lastName\": \"Doe\"}"))
+        .andExpect(status().isOk());
+    assertEquals("req-1", yousignService.initiateSignatureRequest("Contract – Jane Doe"));
+
+    WebEndpointResponse<Resource> response = jfrEndpoint.dump();
+    assertEquals(WebEndpointResponse.STATUS_OK, response.getStatus());
+    Path file = tempDir.resolve("dump.jfr");
+    try (InputStream in = response.getBody().getInputStream()) {
+      Files.copy(in, file);
+    }
+    List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+
+    RecordedEvent fill = last(events, "fr.jixter.badasign.FieldFill");
+    assertEquals(PdfTemplateRegistry.DEFAULT_TEMPLATE_ID, fill.getString("templateId"));
+    assertEquals(2, fill.getInt("fieldCount"));
+    assertTrue(last(events, "fr.jixter.badasign.Save").getLong("bytes") > 0);
+
+    RecordedEvent call = last(events, "fr.jixter.badasign.YousignCall");
+    assertEquals("initiate", call.getString("operation"));
+    assertEquals(201, call.getInt("httpStatus"));
+    // Bytes, not chars: the name holds a multi-byte dash
+    assertEquals(
+        YOUSIGN_RESPONSE.getBytes(StandardCharsets.UTF_8).length, call.getLong("responseBytes"));
+
+    assertTrue(
+        events.stream()
+            .map(event -> event.getEventType().getName())
+            .noneMatch(
+                name ->
+                    name.equals("jdk.InitialEnvironmentVariable")
+                        || name.equals("jdk.InitialSystemProperty")
+                        || name.equals("jdk.JVMInformation")));
+  }
+
+  private static RecordedEvent last(List<RecordedEvent> events, String name) {
+    return events.stream()
+        .filter(event -> event.getEventType().getName().equals(name))
+        .reduce((first, second) -> second)
+        .orElseThrow(() -> new AssertionError("No " + name + " event recorded"));
+  }
+}
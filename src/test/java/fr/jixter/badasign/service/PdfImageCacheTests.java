@@ -0,0 +1,135 @@
+package fr.jixter.badasign.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fr.jixter.badasign.service.PdfImageCache.EncodedImage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import javax.imageio.ImageIO;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+class PdfImageCacheTests {
+
+  private static final long MAX_PIXELS = 64 * 64;
+
+  @Test
+  void imagesAreEncodedOnceAndEvictedLeastRecentlyUsedFirst() throws IOException {
+    byte[] first = png(0xFF0000);
+    byte[] second = png(0x00FF00);
+    byte[] third = png(0x0000FF);
+    PdfImageCache probe =
+        new PdfImageCache(DataSize.ofMegabytes(1), MAX_PIXELS, new SimpleMeterRegistry());
+    long imageSize = Math.max(probe.get(first).data().length, probe.get(third).data().length);
+
+    // Room for two images only
+    PdfImageCache cache =
+        new PdfImageCache(
+            DataSize.ofBytes(imageSize * 5 / 2), MAX_PIXELS, new SimpleMeterRegistry());
+    EncodedImage encodedFirst = cache.get(first);
+    EncodedImage encodedSecond = cache.get(second);
+    assertSame(encodedFirst, cache.get(first));
+
+    // Second is now the least recently used one
+    EncodedImage encodedThird = cache.get(third);
+    assertSame(encodedFirst, cache.get(first));
+    assertSame(encodedThird, cache.get(third));
+    assertNotSame(encodedSecond, cache.get(second));
+  }
+
+  @Test
+  void oversizedImagesAreRejectedBeforeDecoding() throws IOException {
+    PdfImageCache cache =
+        new PdfImageCache(DataSize.ofMegabytes(1), MAX_PIXELS, new SimpleMeterRegistry());
+
+    IllegalArgumentException e =
+        assertThrows(IllegalArgumentException.class, () -> cache.get(pngHeader(30000, 30000)));
+    assertTrue(e.getMessage().contains("30000x30000"));
+    assertThrows(IllegalArgumentException.class, () -> cache.get(new byte[] {1, 2, 3}));
+    assertEquals(0, cache.getCachedBytes());
+  }
+
+  @Test
+  void imagesWithAnEmbeddedIccProfileGetTheirOwnCopyOfIt() throws IOException {
+    // The JDK PNG reader converts to sRGB whatever the iCCP chunk, other ImageIO readers keep it
+    ICC_ColorSpace linearRgb = (ICC_ColorSpace) ColorSpace.getInstance(ColorSpace.CS_LINEAR_RGB);
+    ComponentColorModel colorModel =
+        new ComponentColorModel(linearRgb, false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+    BufferedImage decoded =
+        new BufferedImage(
+            colorModel, colorModel.createCompatibleWritableRaster(32, 32), false, null);
+    EncodedImage encoded = PdfImageCache.encode("linear-rgb", decoded);
+    assertTrue(encoded.size() > encoded.data().length);
+
+    for (int i = 0; i < 2; i++) {
+      try (PDDocument document = new PDDocument()) {
+        PDImageXObject image = encoded.toXObject(document);
+        COSArray colorSpace =
+            (COSArray) image.getCOSObject().getDictionaryObject(COSName.COLORSPACE);
+        assertEquals(COSName.ICCBASED, colorSpace.getObject(0));
+        try (InputStream in = ((COSStream) colorSpace.getObject(1)).createInputStream()) {
+          assertArrayEquals(linearRgb.getProfile().getData(), in.readAllBytes());
+        }
+        assertEquals(32, image.getImage().getWidth());
+      }
+    }
+  }
+
+  /** A PNG that only declares its dimensions: signature, IHDR and IEND, no pixel data */
+  private static byte[] pngHeader(int width, int height) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(out);
+    data.write(new byte[] {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+    ByteBuffer header = ByteBuffer.allocate(13).putInt(width).putInt(height);
+    // 8-bit RGB, deflate, adaptive filtering, no interlace
+    header.put((byte) 8).put((byte) 2).put((byte) 0).put((byte) 0).put((byte) 0);
+    chunk(data, "IHDR", header.array());
+    chunk(data, "IEND", new byte[0]);
+    return out.toByteArray();
+  }
+
+  private static void chunk(DataOutputStream out, String type, byte[] content) throws IOException {
+    byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+    CRC32 crc = new CRC32();
+    crc.update(typeBytes);
+    crc.update(content);
+    out.writeInt(content.length);
+    out.write(typeBytes);
+    out.write(content);
+    out.writeInt((int) crc.getValue());
+  }
+
+  private static byte[] png(int rgb) throws IOException {
+    BufferedImage image = new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB);
+    for (int x = 0; x < 32; x++) {
+      for (int y = 0; y < 32; y++) {
+        image.setRGB(x, y, rgb ^ (x * y));
+      }
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", out);
+    return out.toByteArray();
+  }
+}
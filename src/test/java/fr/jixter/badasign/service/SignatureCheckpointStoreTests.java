@@ -0,0 +1,114 @@
+package fr.jixter.badasign.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fr.jixter.badasign.service.SignatureCheckpointStore.SignatureCheckpoint;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SignatureCheckpointStoreTests {
+
+  @TempDir Path tempDir;
+
+  @Test
+  void completedStepsSurviveRestart() throws IOException {
+    List<SignatureDocument> documents = documents(2);
+    SignatureCheckpointStore store = new SignatureCheckpointStore(tempDir);
+    store.load("flow-1", "acme", documents);
+    store.update("flow-1", c -> c.withRequestId("req-1"));
+    store.update("flow-1", c -> c.withDocumentId(1, "doc-2"));
+
+    SignatureCheckpoint resumed =
+        new SignatureCheckpointStore(tempDir).load("flow-1", "acme", documents);
+    assertEquals("req-1", resumed.requestId());
+    assertEquals(List.of("doc-2"), resumed.documentIds().subList(1, 2));
+    assertNull(resumed.documentIds().get(0));
+    assertFalse(resumed.documentsUploaded());
+    assertNull(resumed.signerId());
+  }
+
+  @Test
+  void flowIdReusedForAnotherFlowIsAConflict() throws IOException {
+    List<SignatureDocument> documents = documents(2);
+    SignatureCheckpointStore store = new SignatureCheckpointStore(tempDir);
+    store.load("flow-1", "acme", documents);
+
+    assertThrows(
+        IdempotencyKeyConflictException.class,
+        () -> store.load("flow-1", TenantContext.DEFAULT_TENANT, documents));
+    assertThrows(
+        IdempotencyKeyConflictException.class, () -> store.load("flow-1", "acme", documents(3)));
+
+    Files.writeString(documents.get(1).pdfPath(), "%PDF-other");
+    assertThrows(
+        IdempotencyKeyConflictException.class, () -> store.load("flow-1", "acme", documents));
+    List<SignatureDocument> renamed =
+        List.of(documents.get(0), new SignatureDocument(documents.get(1).pdfPath(), "other.pdf"));
+    assertThrows(
+        IdempotencyKeyConflictException.class, () -> store.load("flow-1", "acme", renamed));
+
+    assertThrows(IllegalArgumentException.class, () -> store.load("../flow-1", "acme", documents));
+  }
+
+  @Test
+  void concurrentStepsAreAllPersisted() throws Exception {
+    int documents = 8;
+    SignatureCheckpointStore store = new SignatureCheckpointStore(tempDir);
+    List<SignatureDocument> files = documents(documents);
+    store.load("flow-1", TenantContext.DEFAULT_TENANT, files);
+    store.update("flow-1", c -> c.withRequestId("req-1"));
+
+    try (ExecutorService executor = Executors.newFixedThreadPool(documents)) {
+      List<Future<SignatureCheckpoint>> uploads = new ArrayList<>();
+      for (int i = 0; i < documents; i++) {
+        int index = i;
+        uploads.add(
+            executor.submit(
+                () -> store.update("flow-1", c -> c.withDocumentId(index, "doc-" + index))));
+      }
+      for (Future<SignatureCheckpoint> upload : uploads) {
+        upload.get();
+      }
+    }
+
+    SignatureCheckpoint resumed =
+        new SignatureCheckpointStore(tempDir).load("flow-1", TenantContext.DEFAULT_TENANT, files);
+    assertTrue(resumed.documentsUploaded());
+    assertEquals("doc-7", resumed.documentIds().get(7));
+  }
+
+  @Test
+  void flowWithoutRemoteStateIsNotPersisted() throws IOException {
+    SignatureCheckpointStore store = new SignatureCheckpointStore(tempDir);
+    store.load("flow-1", TenantContext.DEFAULT_TENANT, documents(1));
+    assertTrue(new SignatureCheckpointStore(tempDir).find("flow-1").isEmpty());
+
+    store.update("flow-1", c -> c.withRequestId("req-1"));
+    store.remove("flow-1");
+    assertTrue(new SignatureCheckpointStore(tempDir).find("flow-1").isEmpty());
+    assertThrows(
+        IllegalStateException.class, () -> store.update("flow-1", c -> c.withSignerId("s")));
+  }
+
+  private List<SignatureDocument> documents(int count) throws IOException {
+    List<SignatureDocument> documents = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      String fileName = "document-" + i + ".pdf";
+      Path pdf = Files.writeString(tempDir.resolve("upload-" + i + ".pdf"), "%PDF-" + i);
+      documents.add(new SignatureDocument(pdf, fileName));
+    }
+    return documents;
+  }
+}
@@ -0,0 +1,93 @@
+package fr.jixter.badasign.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import fr.jixter.badasign.config.YousignTenantConfig;
+import fr.jixter.badasign.service.TenantContext.Lane;
+import fr.jixter.badasign.service.YousignTenants.YousignTenant;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.mock.env.MockEnvironment;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+class TenantFairSchedulerTests {
+
+  private final List<String> started = new CopyOnWriteArrayList<>();
+
+  @Test
+  void tenantsShareCapacityByWeight() {
+    TenantFairScheduler scheduler = scheduler(1, 1.0);
+    Sinks.Empty<Void> blocker = Sinks.empty();
+    run(scheduler, blocker.asMono(), "acme", Lane.INTERACTIVE);
+
+    for (int i = 1; i <= 3; i++) {
+      run(scheduler, flow("acme-" + i), "acme", Lane.INTERACTIVE);
+    }
+    run(scheduler, flow("globex-1"), "globex", Lane.INTERACTIVE);
+    assertEquals(4, scheduler.waiting(Lane.INTERACTIVE));
+
+    blocker.tryEmitEmpty();
+    assertEquals(List.of("acme-1", "globex-1", "acme-2", "acme-3"), started);
+    assertEquals(0, scheduler.getRunning());
+  }
+
+  @Test
+  void batchFlowsOnlyGetTheirShare() {
+    TenantFairScheduler scheduler = scheduler(2, 0.5);
+    Sinks.Empty<Void> batchBlocker = Sinks.empty();
+    run(scheduler, batchBlocker.asMono(), "acme", Lane.BATCH);
+    run(scheduler, flow("batch-2"), "acme", Lane.BATCH);
+    assertEquals(1, scheduler.waiting(Lane.BATCH));
+
+    // The free slot goes to interactive flows, never to a second batch flow
+    run(scheduler, flow("interactive"), "globex", Lane.INTERACTIVE);
+    assertEquals(List.of("interactive"), started);
+
+    batchBlocker.tryEmitEmpty();
+    assertEquals(List.of("interactive", "batch-2"), started);
+    assertEquals(0, scheduler.getRunning());
+  }
+
+  @Test
+  void cancelledFlowsGiveUpTheirPlace() {
+    TenantFairScheduler scheduler = scheduler(1, 1.0);
+    Disposable running = run(scheduler, Mono.never(), "acme", Lane.INTERACTIVE);
+    Disposable waiting = run(scheduler, flow("cancelled"), "acme", Lane.INTERACTIVE);
+    run(scheduler, flow("next"), "acme", Lane.INTERACTIVE);
+
+    waiting.dispose();
+    assertEquals(1, scheduler.waiting(Lane.INTERACTIVE));
+    running.dispose();
+    assertEquals(List.of("next"), started);
+    assertEquals(0, scheduler.getRunning());
+  }
+
+  private Mono<Void> flow(String name) {
+    return Mono.fromRunnable(() -> started.add(name));
+  }
+
+  private static Disposable run(
+      TenantFairScheduler scheduler, Mono<Void> flow, String tenantId, Lane lane) {
+    return scheduler
+        .schedule(flow)
+        .contextWrite(new TenantContext(tenantId, lane).toReactorContext())
+        .subscribe();
+  }
+
+  private static TenantFairScheduler scheduler(int maxConcurrentFlows, double batchMaxShare) {
+    YousignTenants tenants = Mockito.mock(YousignTenants.class);
+    Mockito.when(tenants.get(Mockito.anyString()))
+        .thenAnswer(
+            invocation -> new YousignTenant(invocation.getArgument(0), null, null, null, null, 1));
+    YousignTenantConfig config =
+        new YousignTenantConfig(
+            new MockEnvironment(), 0, Duration.ofSeconds(1), maxConcurrentFlows, batchMaxShare);
+    return new TenantFairScheduler(tenants, config, new SimpleMeterRegistry());
+  }
+}
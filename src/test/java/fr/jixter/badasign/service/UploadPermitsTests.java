@@ -0,0 +1,75 @@
+package fr.jixter.badasign.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+class UploadPermitsTests {
+
+  private final List<String> started = new CopyOnWriteArrayList<>();
+
+  @Test
+  void uploadsBeyondThePermitsWaitInArrivalOrder() {
+    UploadPermits permits = new UploadPermits(2, Duration.ofSeconds(10));
+    Sinks.Empty<Void> first = Sinks.empty();
+    Sinks.Empty<Void> second = Sinks.empty();
+    run(permits, "first", first.asMono());
+    run(permits, "second", second.asMono());
+    run(permits, "third", Mono.empty());
+    run(permits, "fourth", Mono.empty());
+    assertEquals(List.of("first", "second"), started);
+    assertEquals(2, permits.waiting());
+
+    first.tryEmitEmpty();
+    assertEquals(List.of("first", "second", "third", "fourth"), started);
+    assertEquals(1, permits.getInFlight());
+
+    second.tryEmitEmpty();
+    assertEquals(0, permits.getInFlight());
+  }
+
+  @Test
+  void cancelledUploadsGiveUpTheirPlace() {
+    UploadPermits permits = new UploadPermits(1, Duration.ofSeconds(10));
+    Disposable running = run(permits, "running", Mono.never());
+    Disposable waiting = run(permits, "waiting", Mono.empty());
+    assertEquals(1, permits.waiting());
+
+    waiting.dispose();
+    assertEquals(0, permits.waiting());
+    running.dispose();
+    assertEquals(0, permits.getInFlight());
+
+    run(permits, "next", Mono.empty());
+    assertEquals(List.of("running", "next"), started);
+  }
+
+  @Test
+  void uploadsWaitingTooLongFail() {
+    UploadPermits permits = new UploadPermits(1, Duration.ofMillis(50));
+    run(permits, "running", Mono.never());
+
+    AtomicReference<Throwable> error = new AtomicReference<>();
+    permits.withPermit(Mono.fromRunnable(() -> started.add("late"))).subscribe(null, error::set);
+
+    Mono.delay(Duration.ofMillis(500)).block();
+    assertInstanceOf(IOException.class, error.get());
+    assertEquals(List.of("running"), started);
+    assertEquals(0, permits.waiting());
+  }
+
+  private Disposable run(UploadPermits permits, String name, Mono<Void> upload) {
+    return permits
+        .withPermit(Mono.defer(() -> Mono.fromRunnable(() -> started.add(name)).then(upload)))
+        .subscribe();
+  }
+}
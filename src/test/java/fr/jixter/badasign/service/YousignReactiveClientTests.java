@@ -0,0 +1,476 @@
+package fr.jixter.badasign.service;
+
+import static fr.jixter.badasign.support.TestSupport.baseUrl;
+import static fr.jixter.badasign.support.TestSupport.respond;
+import static fr.jixter.badasign.support.TestSupport.yousignStub;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import fr.jixter.badasign.config.YousignCheckpointConfig;
+import fr.jixter.badasign.config.YousignConfig;
+import fr.jixter.badasign.config.YousignTemplateConfig;
+import fr.jixter.badasign.config.YousignTenantConfig;
+import fr.jixter.badasign.service.DocumentUploadException.UploadFailure;
+import fr.jixter.badasign.service.SignatureCheckpointStore.SignatureCheckpoint;
+import fr.jixter.badasign.service.TenantContext.Lane;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.ratelimiter.RateLimiterRegistry;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Mono;
+
+class YousignReactiveClientTests {
+
+  private static final int MAX_CONCURRENCY_PER_REQUEST = 2;
+
+  @TempDir Path tempDir;
+
+  private final List<String> requests = new CopyOnWriteArrayList<>();
+  private HttpServer yousign;
+  private YousignTenants tenants;
+  private CircuitBreaker circuitBreaker;
+  private SignatureCheckpointStore checkpointStore;
+  private YousignReactiveClient client;
+
+  /** What the stub answers: a status and a body, given the request's path and body */
+  @FunctionalInterface
+  private interface Responder {
+    Response respond(String path, String body) throws Exception;
+  }
+
+  private record Response(int status, String body) {}
+
+  private volatile Responder responder = (path, body) -> new Response(404, "{}");
+
+  @BeforeEach
+  void startYousign() {
+    yousign = yousignStub(this::handle);
+
+    YousignConfig yousignConfig =
+        new YousignConfig(
+            baseUrl(yousign),
+            "test-key",
+            Duration.ofSeconds(1),
+            Duration.ofMillis(500),
+            false,
+            10,
+            16,
+            MAX_CONCURRENCY_PER_REQUEST,
+            Duration.ofSeconds(1));
+    tenants =
+        new YousignTenants(
+            yousignConfig,
+            new YousignTenantConfig(
+                new MockEnvironment().withProperty("yousign.tenants.acme.api-key", "acme-key"),
+                0,
+                Duration.ofSeconds(1),
+                32,
+                0.5),
+            WebClient.builder(),
+            RateLimiterRegistry.ofDefaults(),
+            CircuitBreakerRegistry.of(
+                CircuitBreakerConfig.custom()
+                    .slidingWindowSize(4)
+                    .minimumNumberOfCalls(4)
+                    .ignoreExceptions(HttpClientErrorException.class)
+                    .build()));
+    circuitBreaker = tenants.get(TenantContext.DEFAULT_TENANT).circuitBreaker();
+    checkpointStore = new SignatureCheckpointStore(tempDir.resolve("checkpoints"));
+    client =
+        new YousignReactiveClient(
+            yousignConfig,
+            tenants,
+            new YousignCheckpointConfig(
+                tempDir.resolve("checkpoints"),
+                2,
+                Duration.ofMillis(10),
+                Duration.ofHours(1),
+                Duration.ofHours(24)),
+            checkpointStore);
+  }
+
+  @AfterEach
+  void stopYousign() {
+    tenants.dispose();
+    yousign.stop(0);
+  }
+
+  @Test
+  void documentsAreUploadedConcurrentlyUpToThePerRequestLimit() throws IOException {
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    responder =
+        (path, body) -> {
+          maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+          try {
+            Thread.sleep(100);
+            return new Response(201, "{\"id\":\"doc-" + documentNumber(body) + "\"}");
+          } finally {
+            inFlight.decrementAndGet();
+          }
+        };
+
+    List<String> ids =
+        client.uploadDocumentsToRequest("req-1", documents("contract.pdf", 5)).block();
+
+    assertEquals(List.of("doc-0", "doc-1", "doc-2", "doc-3", "doc-4"), ids);
+    assertEquals(MAX_CONCURRENCY_PER_REQUEST, maxInFlight.get());
+  }
+
+  @Test
+  void everyFailedUploadIsReportedByIndex() throws IOException {
+    // Documents 0 and 2 are rejected; all three share a file name
+    responder =
+        (path, body) ->
+            documentNumber(body) == 1
+                ? new Response(201, "{\"id\":\"doc-1\"}")
+                : new Response(400, "{\"detail\":\"invalid pdf\"}");
+
+    DocumentUploadException e =
+        assertInstanceOf(
+            DocumentUploadException.class,
+            failure(client.uploadDocumentsToRequest("req-1", documents("contract.pdf", 3))));
+
+    assertEquals("req-1", e.getSignatureRequestId());
+    assertEquals(List.of(0, 2), e.getFailures().stream().map(UploadFailure::index).toList());
+    assertEquals(
+        List.of("contract.pdf", "contract.pdf"),
+        e.getFailures().stream().map(UploadFailure::fileName).toList());
+    e.getFailures()
+        .forEach(
+            failure ->
+                assertInstanceOf(HttpClientErrorException.class, failure.error().getCause()));
+  }
+
+  @Test
+  void flowRunsTheFourStepsInOrder() throws IOException {
+    responder =
+        (path, body) ->
+            switch (path) {
+              case "/signature_requests" -> new Response(201, "{\"id\":\"req-1\"}");
+              case "/signature_requests/req-1/documents" ->
+                  new Response(201, "{\"id\":\"doc-" + documentNumber(body) + "\"}");
+              case "/signature_requests/req-1/signers" ->
+                  new Response(201, "{\"id\":\"signer-1\"}");
+              default -> new Response(201, "{}");
+            };
+
+    String requestId =
+        client
+            .processDocumentsForSignature(
+                "flow-1", documents("contract.pdf", 1), "john@example.com", "John Doe")
+            .block();
+
+    assertEquals("req-1", requestId);
+    assertEquals(
+        List.of(
+            "POST /signature_requests",
+            "POST /signature_requests/req-1/documents",
+            "POST /signature_requests/req-1/signers",
+            "POST /signature_requests/req-1/activate"),
+        requests);
+  }
+
+  @Test
+  void retriedFlowResumesAfterTheLastCompletedStep() throws IOException {
+    AtomicInteger signerCalls = new AtomicInteger();
+    responder =
+        (path, body) ->
+            switch (path) {
+              case "/signature_requests" -> new Response(201, "{\"id\":\"req-1\"}");
+              case "/signature_requests/req-1/documents" ->
+                  new Response(201, "{\"id\":\"doc-" + documentNumber(body) + "\"}");
+              case "/signature_requests/req-1/signers" ->
+                  signerCalls.incrementAndGet() == 1
+                      ? new Response(502, "{}")
+                      : new Response(201, "{\"id\":\"signer-1\"}");
+              default -> new Response(201, "{}");
+            };
+    List<SignatureDocument> documents = documents("contract.pdf", 2);
+
+    assertEquals(
+        "req-1",
+        client
+            .processDocumentsForSignature("flow-1", documents, "john@example.com", "John Doe")
+            .block());
+    // Running the flow again, like a client retry with the same idempotency key, sends nothing
+    assertEquals(
+        "req-1",
+        client
+            .processDocumentsForSignature("flow-1", documents, "john@example.com", "John Doe")
+            .block());
+
+    assertEquals(1, count("POST /signature_requests"));
+    assertEquals(2, count("POST /signature_requests/req-1/documents"));
+    assertEquals(2, count("POST /signature_requests/req-1/signers"));
+    assertEquals(1, count("POST /signature_requests/req-1/activate"));
+  }
+
+  @Test
+  void clientErrorsDoNotOpenTheCircuit() {
+    responder = (path, body) -> new Response(422, "{\"detail\":\"invalid\"}");
+
+    for (int i = 0; i < 6; i++) {
+      Throwable e = failure(client.initiateSignatureRequest("Contract"));
+      assertInstanceOf(IOException.class, e);
+      HttpClientErrorException rejection =
+          assertInstanceOf(HttpClientErrorException.class, e.getCause());
+      assertEquals(422, rejection.getStatusCode().value());
+    }
+
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    assertEquals(0, circuitBreaker.getMetrics().getNumberOfFailedCalls());
+    assertEquals(6, requests.size());
+  }
+
+  @Test
+  void serverErrorsAndTimeoutsOpenTheCircuit() {
+    AtomicInteger calls = new AtomicInteger();
+    responder =
+        (path, body) -> {
+          if (calls.incrementAndGet() % 2 == 0) {
+            Thread.sleep(1000);
+          }
+          return new Response(503, "{}");
+        };
+
+    for (int i = 0; i < 4; i++) {
+      Throwable e = failure(client.initiateSignatureRequest("Contract"));
+      assertInstanceOf(IOException.class, e);
+    }
+    assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+    assertInstanceOf(
+        YousignUnavailableException.class, failure(client.initiateSignatureRequest("Contract")));
+    assertEquals(4, requests.size());
+
+    // Another tenant's account is still called
+    CircuitBreaker acmeCircuitBreaker = tenants.get("acme").circuitBreaker();
+    responder = (path, body) -> new Response(201, "{\"id\":\"req-1\"}");
+    assertEquals(
+        "req-1",
+        client
+            .initiateSignatureRequest("Contract")
+            .contextWrite(new TenantContext("acme", Lane.INTERACTIVE).toReactorContext())
+            .block());
+    assertEquals(CircuitBreaker.State.CLOSED, acmeCircuitBreaker.getState());
+    assertEquals(5, requests.size());
+  }
+
+  @Test
+  void uploadStreamsTheFileContent() throws IOException {
+    // Several read chunks' worth of bytes that are not valid text
+    byte[] content = new byte[200 * 1024];
+    new Random(42).nextBytes(content);
+    Path pdf = Files.write(tempDir.resolve("large.pdf"), content);
+    List<String> bodies = new CopyOnWriteArrayList<>();
+    responder =
+        (path, body) -> {
+          bodies.add(body);
+          return new Response(201, "{\"id\":\"doc-1\"}");
+        };
+
+    assertEquals("doc-1", client.uploadDocumentToRequest("req-1", pdf, "large.pdf").block());
+
+    String body = bodies.get(0);
+    assertTrue(body.contains("filename=\"large.pdf\""));
+    assertTrue(body.contains("Content-Type: application/pdf"));
+    assertTrue(body.contains(new String(content, StandardCharsets.ISO_8859_1)));
+    assertTrue(body.contains("signable_document"));
+  }
+
+  @Test
+  void templateFlowChecksTheMappedTemplateOnce() throws IOException {
+    YousignTemplateService templates = templateService("remote-1");
+    responder =
+        (path, body) ->
+            switch (path) {
+              case "/templates/remote-1" -> new Response(200, "{\"id\":\"remote-1\"}");
+              case "/signature_requests" -> new Response(201, "{\"id\":\"req-1\"}");
+              default -> new Response(201, "{}");
+            };
+
+    for (int i = 0; i < 2; i++) {
+      assertEquals(
+          "req-1",
+          templates
+              .processTemplateForSignature(
+                  PdfTemplateRegistry.DEFAULT_TEMPLATE_ID,
+                  Map.of("firstName", "John"),
+                  "john@example.com",
+                  "John Doe")
+              .block());
+    }
+
+    assertEquals(
+        List.of(
+            "GET /templates/remote-1",
+            "POST /signature_requests",
+            "POST /signature_requests/req-1/activate",
+            "POST /signature_requests",
+            "POST /signature_requests/req-1/activate"),
+        requests);
+  }
+
+  @Test
+  void retriedTemplateFlowCreatesOneSignatureRequest() throws IOException {
+    YousignTemplateService templates = templateService("remote-1");
+    AtomicInteger activations = new AtomicInteger();
+    responder =
+        (path, body) ->
+            switch (path) {
+              case "/templates/remote-1" -> new Response(200, "{\"id\":\"remote-1\"}");
+              case "/signature_requests" -> new Response(201, "{\"id\":\"req-1\"}");
+              case "/signature_requests/req-1/activate" ->
+                  activations.incrementAndGet() == 1
+                      ? new Response(502, "{}")
+                      : new Response(201, "{}");
+              default -> new Response(404, "{}");
+            };
+    Map<String, String> data = Map.of("firstName", "John");
+
+    for (int i = 0; i < 2; i++) {
+      assertEquals(
+          "req-1",
+          templates
+              .processTemplateForSignature(
+                  "flow-1",
+                  PdfTemplateRegistry.DEFAULT_TEMPLATE_ID,
+                  data,
+                  "john@example.com",
+                  "John Doe")
+              .block());
+    }
+
+    // The failed activation resumed the flow, and running it again sent nothing
+    assertEquals(
+        List.of(
+            "GET /templates/remote-1",
+            "POST /signature_requests",
+            "POST /signature_requests/req-1/activate",
+            "POST /signature_requests/req-1/activate"),
+        requests);
+    // Checkpointed like document flows, so the draft of an abandoned flow is swept
+    SignatureCheckpoint checkpoint = checkpointStore.find("flow-1").orElseThrow();
+    assertEquals("req-1", checkpoint.requestId());
+    assertTrue(checkpoint.activated());
+
+    assertInstanceOf(
+        IdempotencyKeyConflictException.class,
+        failure(
+            templates.processTemplateForSignature(
+                "flow-1",
+                PdfTemplateRegistry.DEFAULT_TEMPLATE_ID,
+                Map.of("firstName", "Jane"),
+                "john@example.com",
+                "John Doe")));
+    assertInstanceOf(
+        IdempotencyKeyConflictException.class,
+        failure(
+            client.processDocumentsForSignature(
+                "flow-1", documents("contract.pdf", 1), "john@example.com", "John Doe")));
+  }
+
+  @Test
+  void templateWithoutProvisionedYousignTemplateFailsClearly() throws IOException {
+    Files.writeString(
+        tempDir.resolve("yousign-templates.json"),
+        "{\"contract-template\": {\"version\": \"old\", \"remoteId\": \"remote-1\"}}");
+    YousignTemplateService outdated =
+        new YousignTemplateService(
+            client,
+            new PdfTemplateRegistry(),
+            new YousignTemplateConfig(true, tempDir.resolve("yousign-templates.json"), "Signer"));
+
+    Throwable e = failure(outdated.remoteTemplateId(PdfTemplateRegistry.DEFAULT_TEMPLATE_ID));
+    assertInstanceOf(TemplateNotProvisionedException.class, e);
+    assertTrue(e.getMessage().contains("mapped to version old"));
+    assertTrue(requests.isEmpty());
+
+    responder = (path, body) -> new Response(404, "{\"detail\":\"not found\"}");
+    e =
+        failure(
+            templateService("deleted").remoteTemplateId(PdfTemplateRegistry.DEFAULT_TEMPLATE_ID));
+    assertInstanceOf(TemplateNotProvisionedException.class, e);
+    assertTrue(e.getMessage().contains("does not exist"));
+  }
+
+  /** A template service mapping the current version of the default template to {@code remoteId} */
+  private YousignTemplateService templateService(String remoteId) throws IOException {
+    String version =
+        new PdfTemplateRegistry()
+            .find(PdfTemplateRegistry.DEFAULT_TEMPLATE_ID)
+            .orElseThrow()
+            .version();
+    Path mappingFile =
+        Files.writeString(
+            tempDir.resolve("yousign-templates.json"),
+            "{\"contract-template\": {\"version\": \""
+                + version
+                + "\", \"remoteId\": \""
+                + remoteId
+                + "\"}}");
+    return new YousignTemplateService(
+        client, new PdfTemplateRegistry(), new YousignTemplateConfig(true, mappingFile, "Signer"));
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      String path = exchange.getRequestURI().getPath();
+      requests.add(exchange.getRequestMethod() + " " + path);
+      // One char per byte, so binary content can be compared as is
+      String body =
+          new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.ISO_8859_1);
+      Response response = responder.respond(path, body);
+      respond(exchange, response.status(), response.body());
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  private long count(String request) {
+    return requests.stream().filter(request::equals).count();
+  }
+
+  /** Documents named alike, each holding {@code pdf-<index>} so the stub can tell them apart */
+  private List<SignatureDocument> documents(String fileName, int count) throws IOException {
+    List<SignatureDocument> documents = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      Path file = Files.writeString(tempDir.resolve("document-" + i + ".pdf"), "pdf-" + i + ";");
+      documents.add(new SignatureDocument(file, fileName));
+    }
+    return documents;
+  }
+
+  private static int documentNumber(String multipartBody) {
+    int start = multipartBody.indexOf("pdf-") + "pdf-".length();
+    return Integer.parseInt(multipartBody.substring(start, multipartBody.indexOf(';', start)));
+  }
+
+  private static Throwable failure(Mono<?> mono) {
+    return Exceptions.unwrap(assertThrows(RuntimeException.class, mono::block));
+  }
+}
@@ -0,0 +1,66 @@
+package fr.jixter.badasign.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fr.jixter.badasign.service.YousignTemplateMappings.RemoteTemplate;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class YousignTemplateMappingsTests {
+
+  @TempDir Path tempDir;
+
+  @Test
+  void mappingsAreReadPerTenantWithTheirVersion() throws IOException {
+    Path file =
+        Files.writeString(
+            tempDir.resolve("yousign-templates.json"),
+            """
+            {
+              "contract-template": {"version": "v1", "remoteId": "remote-1"},
+              "acme/contract-template": {"version": "v2", "remoteId": "remote-2"}
+            }
+            """);
+
+    YousignTemplateMappings mappings = new YousignTemplateMappings(file);
+
+    assertEquals(
+        Optional.of(new RemoteTemplate("v1", "remote-1")), mappings.find("contract-template"));
+    assertEquals(
+        Optional.of(new RemoteTemplate("v2", "remote-2")), mappings.find("acme/contract-template"));
+    assertTrue(mappings.find("other-template").isEmpty());
+  }
+
+  @Test
+  void missingFileMapsNothing() {
+    assertTrue(
+        new YousignTemplateMappings(tempDir.resolve("missing.json"))
+            .find("contract-template")
+            .isEmpty());
+  }
+
+  @Test
+  void changedFileIsReadAgain() throws IOException {
+    Path file = tempDir.resolve("yousign-templates.json");
+    YousignTemplateMappings mappings = new YousignTemplateMappings(file);
+    assertTrue(mappings.find("contract-template").isEmpty());
+
+    Files.writeString(
+        file, "{\"contract-template\": {\"version\": \"v1\", \"remoteId\": \"remote-1\"}}");
+    assertEquals(
+        Optional.of(new RemoteTemplate("v1", "remote-1")), mappings.find("contract-template"));
+
+    Files.writeString(
+        file, "{\"contract-template\": {\"version\": \"v2\", \"remoteId\": \"remote-2\"}}");
+    Files.setLastModifiedTime(file, FileTime.from(Instant.now().plusSeconds(60)));
+    assertEquals(
+        Optional.of(new RemoteTemplate("v2", "remote-2")), mappings.find("contract-template"));
+  }
+}
@@ -0,0 +1,67 @@
+package fr.jixter.badasign.support;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+
+/** Helpers shared by the tests that talk to a stubbed Yousign API */
+public final class TestSupport {
+
+  private TestSupport() {}
+
+  /**
+   * Starts a stub Yousign API on a free local port, each request handled on its own thread so a
+   * handler can hold a request while others are served
+   */
+  public static HttpServer yousignStub(HttpHandler handler) {
+    try {
+      HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+      server.setExecutor(Executors.newCachedThreadPool());
+      server.createContext("/", handler);
+      server.start();
+      return server;
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** The base URL to configure as {@code yousign.api.base-url} */
+  public static String baseUrl(HttpServer server) {
+    return "http://localhost:" + server.getAddress().getPort();
+  }
+
+  /** Sends a JSON response and closes the exchange */
+  public static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    exchange.getResponseBody().write(bytes);
+    exchange.close();
+  }
+
+  /** Waits up to 10 seconds for a condition, polling it */
+  public static void await(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + 10_000_000_000L;
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() > deadline) {
+        throw new AssertionError("Timed out waiting for the condition");
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  /** Creates a temporary directory, for properties set before the test instance exists */
+  public static String tempDirectory(String prefix) {
+    try {
+      return Files.createTempDirectory(prefix).toString();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
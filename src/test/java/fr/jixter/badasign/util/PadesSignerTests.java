@@ -0,0 +1,87 @@
+package fr.jixter.badasign.util;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PadesSignerTests {
+
+  @TempDir Path tempDir;
+
+  @Test
+  void timestampedSignatureVerifiesOverSignedRanges() throws Exception {
+    Path input = tempDir.resolve("input.pdf");
+    try (PDDocument document = new PDDocument()) {
+      document.addPage(new PDPage());
+      document.save(input.toFile());
+    }
+    LocalTimestampAuthority timestampAuthority =
+        LocalTimestampAuthority.selfSigned("1.3.6.1.4.1.99999.1.1");
+    PadesSigner signer = PadesSigner.selfSigned("CN=Test Signer", timestampAuthority);
+
+    Path output = tempDir.resolve("signed.pdf");
+    signer.sign(input, output, "Countersignature");
+
+    byte[] signedPdf = Files.readAllBytes(output);
+    byte[] original = Files.readAllBytes(input);
+    // Incremental update: the original bytes are kept as is
+    assertArrayEquals(original, Arrays.copyOf(signedPdf, original.length));
+
+    try (PDDocument signed = PDDocument.load(signedPdf)) {
+      PDSignature signature = signed.getLastSignatureDictionary();
+      assertEquals(PDSignature.SUBFILTER_ETSI_CADES_DETACHED.getName(), signature.getSubFilter());
+      assertEquals("Test Signer", signature.getName());
+
+      CMSSignedData cms =
+          new CMSSignedData(
+              new CMSProcessableByteArray(signature.getSignedContent(signedPdf)),
+              signature.getContents(signedPdf));
+      SignerInformation signerInfo = cms.getSignerInfos().getSigners().iterator().next();
+      assertTrue(
+          signerInfo.verify(
+              new JcaSimpleSignerInfoVerifierBuilder().build(signer.getCertificate())));
+      assertNull(signerInfo.getSignedAttributes().get(CMSAttributes.signingTime));
+      assertNotNull(
+          signerInfo.getSignedAttributes().get(PKCSObjectIdentifiers.id_aa_signingCertificateV2));
+
+      Attribute timestampAttribute =
+          signerInfo
+              .getUnsignedAttributes()
+              .get(PKCSObjectIdentifiers.id_aa_signatureTimeStampToken);
+      TimeStampToken token =
+          new TimeStampToken(
+              new CMSSignedData(
+                  timestampAttribute
+                      .getAttrValues()
+                      .getObjectAt(0)
+                      .toASN1Primitive()
+                      .getEncoded()));
+      token.validate(
+          new JcaSimpleSignerInfoVerifierBuilder().build(timestampAuthority.getCertificate()));
+      assertArrayEquals(
+          MessageDigest.getInstance("SHA-256").digest(signerInfo.getSignature()),
+          token.getTimeStampInfo().getMessageImprintDigest());
+      assertEquals("1.3.6.1.4.1.99999.1.1", token.getTimeStampInfo().getPolicy().getId());
+    }
+  }
+}
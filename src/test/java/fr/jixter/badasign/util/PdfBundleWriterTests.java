@@ -0,0 +1,95 @@
+package fr.jixter.badasign.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PdfBundleWriterTests {
+
+  private static final int RECORDS = 3;
+
+  @TempDir Path tempDir;
+
+  @Test
+  void sharedFontsAndImagesAreStoredOnce() throws IOException {
+    Path output = tempDir.resolve("bundle.pdf");
+    try (PdfBundleWriter writer = new PdfBundleWriter(MemoryUsageSetting.setupMainMemoryOnly())) {
+      for (int i = 0; i < RECORDS; i++) {
+        try (PDDocument record = record("Contract " + i)) {
+          writer.append(record);
+        }
+      }
+      // One font and one image per record, all but the first served from the bundle
+      assertEquals(2 * (RECORDS - 1), writer.getSharedHits());
+      writer.save(output);
+    }
+
+    try (PDDocument bundle = PDDocument.load(output.toFile())) {
+      assertEquals(RECORDS, bundle.getNumberOfPages());
+      assertEquals(1, distinctResources(bundle, COSName.FONT).size());
+      assertEquals(1, distinctResources(bundle, COSName.XOBJECT).size());
+    }
+  }
+
+  @Test
+  void pagesWithoutResourcesAreAppended() throws IOException {
+    try (PdfBundleWriter writer = new PdfBundleWriter(MemoryUsageSetting.setupMainMemoryOnly());
+        PDDocument blank = new PDDocument()) {
+      PDPage page = new PDPage();
+      page.getCOSObject().removeItem(COSName.RESOURCES);
+      blank.addPage(page);
+
+      writer.append(blank);
+      assertEquals(1, writer.getPageCount());
+    }
+  }
+
+  private static PDDocument record(String text) throws IOException {
+    PDDocument document = new PDDocument();
+    PDPage page = new PDPage();
+    document.addPage(page);
+    BufferedImage logo = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+    logo.setRGB(3, 3, 0xFF0000);
+    PDImageXObject image = LosslessFactory.createFromImage(document, logo);
+    try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+      content.drawImage(image, 50, 700);
+      content.beginText();
+      content.setFont(PDType1Font.HELVETICA, 12);
+      content.newLineAtOffset(50, 650);
+      content.showText(text);
+      content.endText();
+    }
+    return document;
+  }
+
+  /** The distinct objects behind a resource category across all pages */
+  private static Set<COSBase> distinctResources(PDDocument document, COSName category) {
+    Set<COSBase> objects = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (PDPage page : document.getPages()) {
+      COSDictionary named =
+          (COSDictionary) page.getResources().getCOSObject().getDictionaryObject(category);
+      for (COSBase value : named.getValues()) {
+        objects.add(value instanceof COSObject object ? object.getObject() : value);
+      }
+    }
+    return objects;
+  }
+}
@@ -0,0 +1,265 @@
+package fr.jixter.badasign.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.jupiter.api.Test;
+
+class PdfLinearizerTests {
+
+  private static final Pattern OBJECT = Pattern.compile("(?<=\n)(\\d+) 0 obj\n");
+  private static final Pattern PARAMETERS =
+      Pattern.compile(
+          "/Linearized 1 /L (\\d+) +/H \\[ (\\d+) +(\\d+) +\\] /O (\\d+) +/E (\\d+) +/N (\\d+) +"
+              + "/T (\\d+)");
+
+  @Test
+  void hintTablesPointAtThePagesAndSharedObjects() throws IOException {
+    byte[] pdf;
+    try (PDDocument document = threePages()) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      new PdfLinearizer(document).save(out);
+      pdf = out.toByteArray();
+    }
+    String text = new String(pdf, StandardCharsets.ISO_8859_1);
+
+    // Where each object actually starts, read from the file rather than from its xref tables
+    TreeMap<Long, Integer> objectsByOffset = new TreeMap<>();
+    Map<Integer, Long> offsets = new TreeMap<>();
+    Matcher object = OBJECT.matcher(text);
+    while (object.find()) {
+      objectsByOffset.put((long) object.start(), Integer.parseInt(object.group(1)));
+      offsets.put(Integer.parseInt(object.group(1)), (long) object.start());
+    }
+    long mainXref = text.lastIndexOf("xref\n0 ");
+
+    Matcher parameters = PARAMETERS.matcher(text);
+    assertTrue(parameters.find());
+    long fileLength = Long.parseLong(parameters.group(1));
+    long hintOffset = Long.parseLong(parameters.group(2));
+    long hintLength = Long.parseLong(parameters.group(3));
+    int firstPage = Integer.parseInt(parameters.group(4));
+    long firstPageEnd = Long.parseLong(parameters.group(5));
+    int pageCount = Integer.parseInt(parameters.group(6));
+    long firstEntry = Long.parseLong(parameters.group(7));
+
+    List<Integer> pageNumbers;
+    int mediaBoxNumber;
+    int fontNumber;
+    int imageNumber;
+    try (PDDocument loaded = PDDocument.load(pdf)) {
+      pageNumbers = pageObjectNumbers(loaded);
+      PDPage second = loaded.getPage(1);
+      COSDictionary resources = second.getResources().getCOSObject();
+      mediaBoxNumber = objectNumber(second.getCOSObject(), COSName.MEDIA_BOX);
+      fontNumber = objectNumber(resources.getCOSDictionary(COSName.FONT), COSName.getPDFName("F1"));
+      imageNumber =
+          objectNumber(resources.getCOSDictionary(COSName.XOBJECT), COSName.getPDFName("Im1"));
+    }
+
+    assertEquals(pdf.length, fileLength);
+    assertEquals(3, pageCount);
+    assertEquals(pageNumbers.get(0), firstPage);
+    assertTrue(objectsByOffset.containsKey(hintOffset));
+    assertEquals(offsets.get(firstPage), hintOffset + hintLength);
+    assertEquals(offsets.get(pageNumbers.get(1)), firstPageEnd);
+    assertTrue(Character.isWhitespace(text.charAt((int) firstEntry)));
+    assertTrue(text.startsWith("0000000000 65535 f", (int) firstEntry + 1));
+    assertTrue(text.substring((int) mainXref, (int) firstEntry).matches("xref\n0 \\d+"));
+
+    // Hint stream data, whose offsets are given as if the hint stream were absent
+    int dataStart = text.indexOf("stream\n", (int) hintOffset) + "stream\n".length();
+    Matcher dictionary =
+        Pattern.compile("/Length (\\d+) /S (\\d+)").matcher(text.substring((int) hintOffset));
+    assertTrue(dictionary.find());
+    int dataLength = Integer.parseInt(dictionary.group(1));
+    BitReader bits = new BitReader(pdf, dataStart, dataLength);
+
+    // Page offset hint table, annex F.4.1
+    long minObjects = bits.read(32);
+    long firstPageOffset = bits.read(32);
+    int objectBits = (int) bits.read(16);
+    long minLength = bits.read(32);
+    int lengthBits = (int) bits.read(16);
+    bits.read(32 + 16 + 32 + 16);
+    int sharedCountBits = (int) bits.read(16);
+    int sharedIdBits = (int) bits.read(16);
+    bits.read(16 + 16);
+    long[] objectCounts = new long[pageCount];
+    long[] pageLengths = new long[pageCount];
+    long[] sharedCounts = new long[pageCount];
+    for (int i = 0; i < pageCount; i++) {
+      objectCounts[i] = minObjects + bits.read(objectBits);
+    }
+    bits.align();
+    for (int i = 0; i < pageCount; i++) {
+      pageLengths[i] = minLength + bits.read(lengthBits);
+    }
+    bits.align();
+    for (int i = 0; i < pageCount; i++) {
+      sharedCounts[i] = bits.read(sharedCountBits);
+    }
+    bits.align();
+    List<List<Integer>> sharedIds = new ArrayList<>();
+    for (int i = 0; i < pageCount; i++) {
+      List<Integer> ids = new ArrayList<>();
+      for (int j = 0; j < sharedCounts[i]; j++) {
+        ids.add((int) bits.read(sharedIdBits));
+      }
+      sharedIds.add(ids);
+    }
+
+    long start = firstPageOffset;
+    for (int i = 0; i < pageCount; i++) {
+      long actualStart = actual(start, hintOffset, hintLength);
+      long actualEnd = actual(start + pageLengths[i], hintOffset, hintLength);
+      assertEquals(offsets.get(pageNumbers.get(i)), actualStart, "offset of page " + i);
+      assertTrue(
+          objectsByOffset.containsKey(actualEnd) || actualEnd == mainXref, "end of page " + i);
+      assertEquals(
+          objectCounts[i],
+          objectsByOffset.subMap(actualStart, actualEnd).size(),
+          "objects of page " + i);
+      start += pageLengths[i];
+    }
+    assertEquals(firstPageEnd, actual(firstPageOffset + pageLengths[0], hintOffset, hintLength));
+
+    // Shared object hint table, annex F.4.2: the first page objects, then the shared ones
+    bits.seek(Integer.parseInt(dictionary.group(2)));
+    int firstSharedNumber = (int) bits.read(32);
+    long firstSharedOffset = bits.read(32);
+    int firstPageGroups = (int) bits.read(32);
+    int groups = (int) bits.read(32);
+    assertEquals(0, bits.read(16));
+    long minGroupLength = bits.read(32);
+    int groupLengthBits = (int) bits.read(16);
+    List<Long> groupStarts = new ArrayList<>();
+    long groupStart = firstPageOffset;
+    for (int i = 0; i < groups; i++) {
+      if (i == firstPageGroups) {
+        assertEquals(firstPageOffset + pageLengths[0], groupStart);
+        groupStart = firstSharedOffset;
+      }
+      long actualStart = actual(groupStart, hintOffset, hintLength);
+      assertTrue(objectsByOffset.containsKey(actualStart), "start of shared group " + i);
+      groupStarts.add(actualStart);
+      groupStart += minGroupLength + bits.read(groupLengthBits);
+    }
+    assertEquals(objectCounts[0], firstPageGroups);
+    assertEquals(firstSharedNumber, objectsByOffset.get(groupStarts.get(firstPageGroups)));
+
+    // All pages share the media box and the font, in the first page section, the last two pages
+    // also share the image
+    assertEquals(List.of(), sharedIds.get(0));
+    for (int i = 1; i < pageCount; i++) {
+      Set<Integer> shared = new HashSet<>();
+      for (int id : sharedIds.get(i)) {
+        shared.add(objectsByOffset.get(groupStarts.get(id)));
+      }
+      assertEquals(
+          Set.of(mediaBoxNumber, fontNumber, imageNumber), shared, "shared objects of page " + i);
+    }
+  }
+
+  /** Three pages sharing a font, the last two also sharing an image */
+  private static PDDocument threePages() throws IOException {
+    PDDocument document = new PDDocument();
+    BufferedImage logo = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+    logo.setRGB(3, 3, 0xFF0000);
+    PDImageXObject image = LosslessFactory.createFromImage(document, logo);
+    for (int i = 0; i < 3; i++) {
+      PDPage page = new PDPage();
+      document.addPage(page);
+      try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+        if (i > 0) {
+          content.drawImage(image, 50, 700);
+        }
+        content.beginText();
+        content.setFont(PDType1Font.HELVETICA, 12);
+        content.newLineAtOffset(50, 650);
+        content.showText("Page " + (i + 1) + " of the contract, ".repeat(i + 1));
+        content.endText();
+      }
+    }
+    return document;
+  }
+
+  private static List<Integer> pageObjectNumbers(PDDocument document) throws IOException {
+    List<Integer> numbers = new ArrayList<>();
+    for (PDPage page : document.getPages()) {
+      for (COSObject object : document.getDocument().getObjectsByType(COSName.PAGE)) {
+        if (object.getObject() == page.getCOSObject()) {
+          numbers.add((int) object.getObjectNumber());
+        }
+      }
+    }
+    return numbers;
+  }
+
+  private static int objectNumber(COSDictionary dictionary, COSName key) {
+    return (int) ((COSObject) dictionary.getItem(key)).getObjectNumber();
+  }
+
+  /** Offset in the file of an offset given as if the hint stream were absent */
+  private static long actual(long offset, long hintOffset, long hintLength) {
+    return offset >= hintOffset ? offset + hintLength : offset;
+  }
+
+  /** Reads bit-packed values, most significant bit first */
+  private static final class BitReader {
+
+    private final byte[] data;
+    private final int start;
+    private final int length;
+    private long position;
+
+    BitReader(byte[] data, int start, int length) {
+      this.data = data;
+      this.start = start;
+      this.length = length;
+    }
+
+    long read(int bitCount) {
+      long value = 0;
+      for (int i = 0; i < bitCount; i++) {
+        int index = (int) (position / 8);
+        if (index >= length) {
+          throw new IllegalStateException("Read past the end of the hint stream");
+        }
+        int bit = (data[start + index] >> (7 - (int) (position % 8))) & 1;
+        value = (value << 1) | bit;
+        position++;
+      }
+      return value;
+    }
+
+    void align() {
+      position = (position + 7) / 8 * 8;
+    }
+
+    void seek(int byteOffset) {
+      position = byteOffset * 8L;
+    }
+  }
+}